@@ -1,18 +1,1322 @@
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
+import java.io.*;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
 
 public class ATMInterface extends JFrame implements ActionListener {
+    // Balances of every account, kept apart from the Swing code so they can run headless.
+    // Accounts are numbered from 0 and balances are whole paise in one AtomicLongArray, so an
+    // account costs 8 bytes and no object. Every change is a compare-and-set on the account's own
+    // slot: operations on different accounts never wait for each other, and a balance can never
+    // go below zero. Neighbouring accounts share a cache line, which only costs anything when
+    // threads hammer adjacent account numbers.
+    //
+    // A credit that waits on the journal is reserved first: it is counted in the account's pending
+    // amount, which the overflow check includes, and settled or released once the write is done.
+    // A reserved debit keeps its amount pending so that handing it back can't overflow either.
+    // Credits are compare-and-set loops too. Balance plus pending is held under MAX_BALANCE, half
+    // the range of a long, and no movement exceeds MAX_AMOUNT, so credits racing on one account
+    // that each miss the others' reservations overshoot by at most their own amounts and can't wrap.
+    static class Ledger {
+        static final long MAX_AMOUNT = 10_000_000_000_000L;  // ₹10,000 crore
+        static final long MAX_BALANCE = Long.MAX_VALUE / 2;
+
+        private final AtomicLongArray balances;
+        private final AtomicLongArray pending;
+        private final AtomicInteger opened = new AtomicInteger();
+
+        Ledger(int capacity) {
+            if (capacity <= 0) throw new IllegalArgumentException("Capacity must be positive");
+            balances = new AtomicLongArray(capacity);
+            pending = new AtomicLongArray(capacity);
+        }
+
+        // Returns the new account's number
+        public int open(long openingPaise) {
+            if (openingPaise < 0) throw new IllegalArgumentException("Opening balance can't be negative");
+            if (openingPaise > MAX_BALANCE) throw new IllegalArgumentException("Opening balance is too large");
+            int account = opened.getAndIncrement();
+            if (account >= balances.length()) {
+                opened.decrementAndGet();
+                throw new IllegalStateException("Ledger is full (" + balances.length() + " accounts)");
+            }
+            balances.set(account, openingPaise);
+            return account;
+        }
+
+        public int size() {
+            return Math.min(opened.get(), balances.length());
+        }
+
+        public int capacity() {
+            return balances.length();
+        }
+
+        public long balance(int account) {
+            return balances.get(check(account));
+        }
+
+        // Returns the new balance
+        public long deposit(int account, long paise) {
+            checkAmount(paise);
+            check(account);
+            while (true) {
+                long current = balances.get(account);
+                long updated = current + paise;
+                if (updated + pending.get(account) > MAX_BALANCE) throw new IllegalStateException("Balance would overflow");
+                if (balances.compareAndSet(account, current, updated)) return updated;
+            }
+        }
+
+        // Sets a credit aside until settleCredit or releaseCredit, failing now if it could overflow
+        public void reserveCredit(int account, long paise) {
+            checkAmount(paise);
+            check(account);
+            while (true) {
+                long current = pending.get(account);
+                long updated = current + paise;
+                if (balances.get(account) + updated > MAX_BALANCE) throw new IllegalStateException("Balance would overflow");
+                if (pending.compareAndSet(account, current, updated)) return;
+            }
+        }
+
+        // Applies a reserved credit and returns the new balance. The balance goes up before the
+        // reservation goes, so their sum never reads low.
+        public long settleCredit(int account, long paise) {
+            long balance = balances.addAndGet(account, paise);
+            pending.addAndGet(account, -paise);
+            return balance;
+        }
+
+        public void releaseCredit(int account, long paise) {
+            pending.addAndGet(account, -paise);
+        }
+
+        // Like debit, but the amount stays reserved so settleCredit can hand it back and
+        // releaseCredit makes it final
+        public long debitReserved(int account, long paise) {
+            checkAmount(paise);
+            check(account);
+            pending.addAndGet(account, paise);
+            long balance = debit(account, paise);
+            if (balance < 0) pending.addAndGet(account, -paise);
+            return balance;
+        }
+
+        // Returns false if the balance doesn't cover the amount
+        public boolean withdraw(int account, long paise) {
+            return debit(account, paise) >= 0;
+        }
+
+        // Withdraws and returns the new balance, or -1 if the balance doesn't cover the amount
+        public long debit(int account, long paise) {
+            checkAmount(paise);
+            check(account);
+            while (true) {
+                long current = balances.get(account);
+                if (current < paise) return -1;
+                if (balances.compareAndSet(account, current, current - paise)) return current - paise;
+            }
+        }
+
+        // Moves the amount between two accounts, all or nothing. Returns false if the source
+        // balance doesn't cover it. The destination's credit is reserved before the source is
+        // debited, so once the debit is taken the credit can't fail and nothing is ever undone.
+        // No locks are taken: a balance read between the debit and the credit sees the money in
+        // neither account.
+        public boolean transfer(int from, int to, long paise) {
+            if (from == to) throw new IllegalArgumentException("Can't transfer to the same account");
+            check(from);
+            reserveCredit(to, paise);
+            if (debit(from, paise) < 0) {
+                releaseCredit(to, paise);
+                return false;
+            }
+            settleCredit(to, paise);
+            return true;
+        }
+
+        // Recovery only: sets or adjusts a balance without the rules above, opening the account if needed
+        void restore(int account, long paise) {
+            reach(account);
+            balances.set(account, paise);
+        }
+
+        void adjust(int account, long delta) {
+            reach(account);
+            while (true) {
+                long current = balances.get(account);
+                long updated = current + delta;
+                if (((current ^ updated) & (delta ^ updated)) < 0) throw new IllegalStateException("Balance of account " + account + " would overflow");
+                if (balances.compareAndSet(account, current, updated)) return;
+            }
+        }
+
+        private void reach(int account) {
+            if (account < 0 || account >= balances.length()) throw new IllegalStateException("Account " + account + " is beyond the ledger's capacity");
+            opened.accumulateAndGet(account + 1, Math::max);
+        }
+
+        // Sum of all balances; only exact while nothing is changing them
+        public long total() {
+            long total = 0;
+            for (int account = 0, n = size(); account < n; account++) total += balances.get(account);
+            return total;
+        }
+
+        private static void checkAmount(long paise) {
+            if (paise <= 0 || paise > MAX_AMOUNT) throw new IllegalArgumentException("Invalid amount!");
+        }
+
+        private int check(int account) {
+            if (account < 0 || account >= size()) throw new IllegalArgumentException("No such account: " + account);
+            return account;
+        }
+
+        // Parses rupees with at most two decimals into paise
+        static long parsePaise(String text) {
+            try {
+                BigDecimal rupees = new BigDecimal(text.trim());
+                if (rupees.signum() <= 0) throw new IllegalArgumentException("Invalid amount!");
+                long paise = rupees.movePointRight(2).longValueExact();
+                if (paise > MAX_AMOUNT) throw new IllegalArgumentException("Invalid amount!");
+                return paise;
+            } catch (ArithmeticException | NumberFormatException | NullPointerException ex) {
+                throw new IllegalArgumentException("Invalid amount!");
+            }
+        }
+
+        static String format(long paise) {
+            return "₹" + BigDecimal.valueOf(paise, 2).toPlainString();
+        }
+    }
+
+    // Append-only log of every money movement, for rebuilding the ledger after a crash.
+    //
+    //   [int length][int crc32][payload], payload = long sequence, byte type, int account,
+    //   int other account, long paise
+    //
+    // Sequence numbers are handed out in append order and have no gaps; recovery stops at the first
+    // record that is torn, fails its CRC or breaks the sequence, and truncates the log there.
+    // Appends are queued for one writer thread, which collects whatever arrives within the commit
+    // window after the first waiting record, writes the batch with one gathering write and forces it
+    // once (group commit). A commit therefore waits at most the window plus one force. A failed write
+    // or force stops the journal for good: the batch may be half on disk, and recovery ends at the
+    // first torn record, so nothing after it may be acknowledged. That batch, everything queued
+    // behind it and every later append fail instead.
+    static class Journal implements Closeable {
+        static final byte OPEN = 1, DEPOSIT = 2, WITHDRAW = 3, TRANSFER = 4;
+        private static final int PAYLOAD_SIZE = 8 + 1 + 4 + 4 + 8;
+        private static final int MAX_BATCH = 4096;
+
+        private static class PendingWrite {
+            final ByteBuffer buffer;
+            final CompletableFuture<Void> done = new CompletableFuture<>();
+            PendingWrite(ByteBuffer buffer) { this.buffer = buffer; }
+        }
+
+        private static final PendingWrite STOP = new PendingWrite(null);
+
+        // What recovery found: the last intact sequence number and where the valid records end
+        static class Recovery {
+            long lastSequence;
+            long validLength;
+            int records;
+        }
+
+        private final FileChannel channel;
+        private final long windowNanos;
+        private final LinkedBlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<>();
+        private final CRC32 crc = new CRC32();
+        private final Thread writer;
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private final LongAdder commits = new LongAdder(), records = new LongAdder();
+        private long lastSequence;
+        private IOException failure;  // guarded by this; set once the writer has stopped on an error
+
+        // Appends after the recovered records. windowMicros of 0 writes whatever queued up during the previous force.
+        Journal(Path file, Recovery recovered, long windowMicros) throws IOException {
+            if (windowMicros < 0) throw new IllegalArgumentException("Commit window can't be negative");
+            this.windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+            this.lastSequence = recovered.lastSequence;
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            channel.truncate(recovered.validLength);
+            channel.position(recovered.validLength);
+            writer = new Thread(this::writeLoop, "atm-journal-writer");
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        // Applies the intact records after the given sequence number to the ledger. Amounts are
+        // applied as they were recorded: a debit was only ever logged against credits that were
+        // already durable, so a valid prefix never takes a balance below zero.
+        static Recovery replay(Path file, Ledger ledger, long afterSequence) throws IOException {
+            Recovery result = new Recovery();
+            result.lastSequence = afterSequence;
+            if (!Files.exists(file)) return result;
+            CRC32 crc = new CRC32();
+            byte[] payload = new byte[PAYLOAD_SIZE];
+            ByteBuffer fields = ByteBuffer.wrap(payload);
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+                while (true) {
+                    try {
+                        if (in.readInt() != PAYLOAD_SIZE) break;
+                        int expectedCrc = in.readInt();
+                        in.readFully(payload);
+                        crc.reset();
+                        crc.update(payload);
+                        if ((int) crc.getValue() != expectedCrc) break;
+                    } catch (EOFException ex) {
+                        break;
+                    }
+                    fields.clear();
+                    long sequence = fields.getLong();
+                    byte type = fields.get();
+                    int account = fields.getInt(), other = fields.getInt();
+                    long paise = fields.getLong();
+                    // Records up to a checkpoint can remain if the process stopped before the log was emptied
+                    if (sequence > afterSequence) {
+                        if (sequence != result.lastSequence + 1) break;
+                        try {
+                            switch (type) {
+                                case OPEN: ledger.restore(account, paise); break;
+                                case DEPOSIT: ledger.adjust(account, paise); break;
+                                case WITHDRAW: ledger.adjust(account, -paise); break;
+                                case TRANSFER:
+                                    ledger.adjust(account, -paise);
+                                    ledger.adjust(other, paise);
+                                    break;
+                                default: throw new IOException("Unknown journal record type " + type + " at sequence " + sequence);
+                            }
+                        } catch (IllegalStateException ex) {
+                            throw new IOException("Journal record " + sequence + " can't be applied: " + ex.getMessage(), ex);
+                        }
+                        result.lastSequence = sequence;
+                        result.records++;
+                    }
+                    result.validLength += 8 + PAYLOAD_SIZE;
+                }
+            }
+            return result;
+        }
+
+        // Queues a record and returns a future completed once it is on disk
+        public synchronized CompletableFuture<Void> append(byte type, int account, int other, long paise) {
+            if (failure != null) throw new UncheckedIOException("Journal stopped after a write failure", failure);
+            if (closed.get()) throw new IllegalStateException("Journal is closed");
+            ByteBuffer buffer = ByteBuffer.allocate(8 + PAYLOAD_SIZE);
+            buffer.position(8);
+            buffer.putLong(++lastSequence).put(type).putInt(account).putInt(other).putLong(paise);
+            crc.reset();
+            crc.update(buffer.array(), 8, PAYLOAD_SIZE);
+            buffer.putInt(0, PAYLOAD_SIZE).putInt(4, (int) crc.getValue());
+            buffer.rewind();
+            PendingWrite write = new PendingWrite(buffer);
+            queue.add(write);
+            return write.done;
+        }
+
+        public synchronized long lastSequence() { return lastSequence; }
+
+        public long commits() { return commits.sum(); }
+        public long records() { return records.sum(); }
+
+        // Waits for everything queued to reach the disk, then stops the writer
+        @Override
+        public void close() throws IOException {
+            if (!closed.compareAndSet(false, true)) return;
+            synchronized (this) { queue.add(STOP); }
+            try {
+                writer.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            channel.close();
+        }
+
+        private void writeLoop() {
+            List<PendingWrite> batch = new ArrayList<>();
+            while (true) {
+                try {
+                    batch.add(queue.take());
+                    long deadline = System.nanoTime() + windowNanos;
+                    while (batch.size() < MAX_BATCH && batch.get(batch.size() - 1) != STOP) {
+                        if (queue.drainTo(batch, MAX_BATCH - batch.size()) > 0) continue;
+                        long wait = deadline - System.nanoTime();
+                        if (wait <= 0) break;
+                        PendingWrite next = queue.poll(wait, TimeUnit.NANOSECONDS);
+                        if (next == null) break;
+                        batch.add(next);
+                    }
+                    boolean stop = batch.remove(STOP);
+                    ByteBuffer[] buffers = new ByteBuffer[batch.size()];
+                    long remaining = 0;
+                    for (int i = 0; i < buffers.length; i++) {
+                        buffers[i] = batch.get(i).buffer;
+                        remaining += buffers[i].remaining();
+                    }
+                    if (buffers.length > 0) {
+                        while (remaining > 0) remaining -= channel.write(buffers);
+                        channel.force(false);
+                        commits.increment();
+                        records.add(buffers.length);
+                    }
+                    for (PendingWrite write : batch) write.done.complete(null);
+                    if (stop) return;
+                } catch (InterruptedException ex) {
+                    fail(batch, new InterruptedIOException("Journal writer interrupted"));
+                    return;
+                } catch (IOException ex) {
+                    System.err.println("Journal append failed, no more transactions will be accepted: " + ex);
+                    fail(batch, ex);
+                    return;
+                }
+                batch.clear();
+            }
+        }
+
+        // Fails the batch and whatever is still queued, and makes later appends fail. STOP may be
+        // among them; close() only waits for this thread, which returns next.
+        private void fail(List<PendingWrite> batch, IOException ex) {
+            synchronized (this) {
+                failure = ex;
+                queue.drainTo(batch);
+            }
+            for (PendingWrite write : batch) write.done.completeExceptionally(ex);
+        }
+    }
+
+    // The last few transactions of every account, for mini-statements. Each account has a fixed ring
+    // of ENTRY_WORDS longs per transaction (time and type, amount, balance after) preceded by a count
+    // of everything it has recorded, packed back to back in long[] chunks of CHUNK accounts. A chunk
+    // is allocated when the first of its accounts is opened, so recording never allocates. Writers of
+    // one account serialize on its lock stripe; transactions that land on one account at the same
+    // moment may be listed in either order, each with its own balance after.
+    static class MiniStatements {
+        static final byte OPENING = 0, DEPOSIT = 1, WITHDRAWAL = 2, TRANSFER_IN = 3, TRANSFER_OUT = 4;
+        static final String[] TYPE_NAMES = {"Opening", "Deposit", "Withdrawal", "Transfer in", "Transfer out"};
+        private static final int CHUNK_BITS = 12;
+        private static final int CHUNK = 1 << CHUNK_BITS;
+        private static final int ENTRY_WORDS = 3;
+        private static final int TYPE_BITS = 3;
+        private static final int LOCK_STRIPES = 256;
+
+        // One mini-statement line
+        static class Entry {
+            final long millis;
+            final byte type;
+            final long paise;
+            final long balanceAfter;
+
+            Entry(long millis, byte type, long paise, long balanceAfter) {
+                this.millis = millis;
+                this.type = type;
+                this.paise = paise;
+                this.balanceAfter = balanceAfter;
+            }
+
+            public String getType() { return TYPE_NAMES[type]; }
+        }
+
+        private final int entries;
+        private final int stride;  // longs per account: the count, then the ring
+        private final AtomicReferenceArray<long[]> chunks;
+        private final Object[] locks = new Object[LOCK_STRIPES];
+
+        MiniStatements(int capacity, int entries) {
+            if (entries <= 0) throw new IllegalArgumentException("A statement needs at least one entry");
+            this.entries = entries;
+            this.stride = 1 + entries * ENTRY_WORDS;
+            this.chunks = new AtomicReferenceArray<>((capacity + CHUNK - 1) >>> CHUNK_BITS);
+            for (int i = 0; i < locks.length; i++) locks[i] = new Object();
+        }
+
+        // Allocates the account's chunk if this is the first account in it
+        void open(int account) {
+            int chunk = account >>> CHUNK_BITS;
+            if (chunks.get(chunk) == null) chunks.compareAndSet(chunk, null, new long[CHUNK * stride]);
+        }
+
+        public void record(int account, byte type, long paise, long balanceAfter) {
+            long[] chunk = chunks.get(account >>> CHUNK_BITS);
+            if (chunk == null) {
+                open(account);  // accounts restored by recovery weren't opened here
+                chunk = chunks.get(account >>> CHUNK_BITS);
+            }
+            int base = (account & (CHUNK - 1)) * stride;
+            synchronized (locks[account & (LOCK_STRIPES - 1)]) {
+                long count = chunk[base];
+                int at = base + 1 + (int) (count % entries) * ENTRY_WORDS;
+                chunk[at] = System.currentTimeMillis() << TYPE_BITS | type;
+                chunk[at + 1] = paise;
+                chunk[at + 2] = balanceAfter;
+                chunk[base] = count + 1;
+            }
+        }
+
+        // The account's transactions, newest first
+        public List<Entry> recent(int account) {
+            List<Entry> result = new ArrayList<>(entries);
+            long[] chunk = chunks.get(account >>> CHUNK_BITS);
+            if (chunk == null) return result;
+            int base = (account & (CHUNK - 1)) * stride;
+            synchronized (locks[account & (LOCK_STRIPES - 1)]) {
+                long count = chunk[base];
+                for (long n = count - 1; n >= Math.max(0, count - entries); n--) {
+                    int at = base + 1 + (int) (n % entries) * ENTRY_WORDS;
+                    result.add(new Entry(chunk[at] >>> TYPE_BITS, (byte) (chunk[at] & ((1 << TYPE_BITS) - 1)), chunk[at + 1], chunk[at + 2]));
+                }
+            }
+            return result;
+        }
+    }
+
+    // The ledger with every change journaled before it is acknowledged. Credits are reserved, so an
+    // overflow is refused before anything is written, and applied only once their record is on
+    // disk; debits are taken first and handed back if the record can't be written. No balance ever
+    // depends on a movement that a crash could lose.
+    //
+    // Data directory layout:
+    //   checkpoint.bin   every balance as of a journal sequence number, written on close
+    //   journal.log      records after the checkpoint, see Journal
+    //
+    // Mini-statements are kept in memory only and start empty after a restart.
+    //
+    // Every change holds the read side of the gate from its reservation until its balance is
+    // settled, and close() takes the write side before checkpointing. So the checkpoint has every
+    // change the journal acknowledged, and changes after close() are refused.
+    static class Bank implements Closeable {
+        private static final int CHECKPOINT_MAGIC = 0x41544D43; // "ATMC"
+
+        private final Path dir;
+        private final Ledger ledger;
+        private final Journal journal;
+        private final MiniStatements statements;
+        private final ReentrantReadWriteLock gate = new ReentrantReadWriteLock();
+        private boolean closed;  // guarded by gate
+
+        private Bank(Path dir, Ledger ledger, Journal journal) {
+            this.dir = dir;
+            this.ledger = ledger;
+            this.journal = journal;
+            this.statements = new MiniStatements(ledger.capacity(), STATEMENT_ENTRIES);
+            for (int account = 0; account < ledger.size(); account++) statements.open(account);
+        }
+
+        // Loads the checkpoint, replays the journal after it and opens the journal for appending
+        static Bank open(Path dir, int capacity, long windowMicros) throws IOException {
+            Files.createDirectories(dir);
+            Path checkpoint = dir.resolve("checkpoint.bin");
+            long checkpointSequence = 0;
+            Ledger ledger;
+            if (Files.exists(checkpoint)) {
+                CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(Files.newInputStream(checkpoint), 1 << 16), new CRC32());
+                try (DataInputStream in = new DataInputStream(checked)) {
+                    if (in.readInt() != CHECKPOINT_MAGIC) throw new IOException("Not an ATM checkpoint: " + checkpoint);
+                    checkpointSequence = in.readLong();
+                    int accounts = in.readInt();
+                    ledger = new Ledger(Math.max(capacity, accounts));
+                    for (int account = 0; account < accounts; account++) ledger.restore(account, in.readLong());
+                    long expected = checked.getChecksum().getValue();
+                    if (in.readLong() != expected) throw new IOException("Checkpoint is corrupt: " + checkpoint);
+                }
+            } else {
+                ledger = new Ledger(capacity);
+            }
+            Path log = dir.resolve("journal.log");
+            Journal.Recovery recovered = Journal.replay(log, ledger, checkpointSequence);
+            return new Bank(dir, ledger, new Journal(log, recovered, windowMicros));
+        }
+
+        public Ledger ledger() { return ledger; }
+        public Journal journal() { return journal; }
+
+        public int open(long openingPaise) {
+            enter();
+            try {
+                int account = ledger.open(0);
+                statements.open(account);
+                if (openingPaise > 0) ledger.reserveCredit(account, openingPaise);
+                try {
+                    await(journal.append(Journal.OPEN, account, 0, openingPaise));
+                } catch (RuntimeException ex) {
+                    if (openingPaise > 0) ledger.releaseCredit(account, openingPaise);
+                    throw ex;
+                }
+                long balance = openingPaise > 0 ? ledger.settleCredit(account, openingPaise) : 0;
+                statements.record(account, MiniStatements.OPENING, openingPaise, balance);
+                return account;
+            } finally {
+                gate.readLock().unlock();
+            }
+        }
+
+        // The account's last STATEMENT_ENTRIES transactions, newest first
+        public List<MiniStatements.Entry> miniStatement(int account) {
+            ledger.balance(account);
+            return statements.recent(account);
+        }
+
+        public long balance(int account) {
+            return ledger.balance(account);
+        }
+
+        // Returns the new balance
+        public long deposit(int account, long paise) {
+            enter();
+            try {
+                ledger.reserveCredit(account, paise);
+                try {
+                    await(journal.append(Journal.DEPOSIT, account, 0, paise));
+                } catch (RuntimeException ex) {
+                    ledger.releaseCredit(account, paise);
+                    throw ex;
+                }
+                long balance = ledger.settleCredit(account, paise);
+                statements.record(account, MiniStatements.DEPOSIT, paise, balance);
+                return balance;
+            } finally {
+                gate.readLock().unlock();
+            }
+        }
+
+        // Returns false if the balance doesn't cover the amount
+        public boolean withdraw(int account, long paise) {
+            enter();
+            try {
+                long balance = ledger.debitReserved(account, paise);
+                if (balance < 0) return false;
+                try {
+                    await(journal.append(Journal.WITHDRAW, account, 0, paise));
+                } catch (RuntimeException ex) {
+                    ledger.settleCredit(account, paise);
+                    throw ex;
+                }
+                ledger.releaseCredit(account, paise);
+                statements.record(account, MiniStatements.WITHDRAWAL, paise, balance);
+                return true;
+            } finally {
+                gate.readLock().unlock();
+            }
+        }
+
+        // Returns false if the source balance doesn't cover the amount. The destination's credit is
+        // reserved before the source is debited, so a transfer is refused or completed whole and
+        // never half undone. It is not isolated from readers: while its record is written the
+        // amount is in neither balance, which is why total() is only exact at rest.
+        public boolean transfer(int from, int to, long paise) {
+            if (from == to) throw new IllegalArgumentException("Can't transfer to the same account");
+            enter();
+            try {
+                ledger.reserveCredit(to, paise);
+                long fromBalance;
+                try {
+                    fromBalance = ledger.debitReserved(from, paise);
+                } catch (RuntimeException ex) {
+                    ledger.releaseCredit(to, paise);
+                    throw ex;
+                }
+                if (fromBalance < 0) {
+                    ledger.releaseCredit(to, paise);
+                    return false;
+                }
+                try {
+                    await(journal.append(Journal.TRANSFER, from, to, paise));
+                } catch (RuntimeException ex) {
+                    ledger.releaseCredit(to, paise);
+                    ledger.settleCredit(from, paise);
+                    throw ex;
+                }
+                ledger.releaseCredit(from, paise);
+                statements.record(from, MiniStatements.TRANSFER_OUT, paise, fromBalance);
+                statements.record(to, MiniStatements.TRANSFER_IN, paise, ledger.settleCredit(to, paise));
+                return true;
+            } finally {
+                gate.readLock().unlock();
+            }
+        }
+
+        // Waits for changes in progress, refuses new ones, flushes the journal, writes a checkpoint
+        // of every balance and empties the journal
+        @Override
+        public void close() throws IOException {
+            gate.writeLock().lock();
+            try {
+                if (closed) return;
+                closed = true;
+            } finally {
+                gate.writeLock().unlock();
+            }
+            journal.close();
+            Path tmp = dir.resolve("checkpoint.bin.tmp");
+            CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16), new CRC32());
+            try (DataOutputStream out = new DataOutputStream(checked)) {
+                out.writeInt(CHECKPOINT_MAGIC);
+                out.writeLong(journal.lastSequence());
+                int accounts = ledger.size();
+                out.writeInt(accounts);
+                for (int account = 0; account < accounts; account++) out.writeLong(ledger.balance(account));
+                out.writeLong(checked.getChecksum().getValue());
+            }
+            try (FileChannel file = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                file.force(true);
+            }
+            Files.move(tmp, dir.resolve("checkpoint.bin"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            try (FileChannel log = FileChannel.open(dir.resolve("journal.log"), StandardOpenOption.WRITE)) {
+                log.truncate(0);
+                log.force(true);
+            }
+        }
+
+        // Takes the read side of the gate; the caller releases it once its change is settled
+        private void enter() {
+            gate.readLock().lock();
+            if (closed) {
+                gate.readLock().unlock();
+                throw new IllegalStateException("Bank is closed");
+            }
+        }
+
+        private static void await(CompletableFuture<Void> commit) {
+            try {
+                commit.join();
+            } catch (CompletionException ex) {
+                Throwable cause = ex.getCause();
+                if (cause instanceof IOException) throw new UncheckedIOException((IOException) cause);
+                throw ex;
+            }
+        }
+    }
+
+    // Cards and their PINs, for logging in. Card numbers are found through an open-addressed table of
+    // longs, and everything kept per card sits at the card's entry index in flat arrays: account,
+    // salt, PIN hash, failed attempts, lockout end and its current session. A card costs about 90
+    // bytes and no objects.
+    //
+    // PINs are stored as salted PBKDF2-HMAC-SHA256 hashes, deliberately slow to compute. Checks run
+    // on a bounded pool of verifier threads and are refused once its queue is full, so a burst of
+    // logins can't pile up unbounded work. A correct PIN opens a session whose token later requests
+    // present instead of the PIN; a card has at most one session. MAX_FAILURES wrong PINs in a row
+    // lock the card for LOCK_SECONDS. Cards are enrolled before logins start; lookups don't lock.
+    static class CredentialDirectory implements Closeable {
+        static final int MAX_FAILURES = 3;
+        static final int LOCK_SECONDS = 15 * 60;
+        static final int SESSION_SECONDS = 5 * 60;
+        private static final int SALT_SIZE = 16, HASH_SIZE = 32;
+        private static final int LOCK_STRIPES = 64;
+
+        enum Status { OK, WRONG_PIN, LOCKED, UNKNOWN_CARD, BUSY }
+
+        // Outcome of a login; token and account are only set when the status is OK
+        static class Login {
+            final Status status;
+            final long token;
+            final int account;
+            final int attemptsLeft;
+
+            Login(Status status, long token, int account, int attemptsLeft) {
+                this.status = status;
+                this.token = token;
+                this.account = account;
+                this.attemptsLeft = attemptsLeft;
+            }
+        }
+
+        private final int capacity;
+        private final int iterations;
+        private final LongSupplier clock;  // epoch seconds
+        private final long[] slots;        // card number per table slot, 0 for empty
+        private final int[] slotEntries;   // entry index per table slot
+        private final int[] accounts;
+        private final byte[] salts, hashes;
+        private final byte[] failures;
+        private final int[] lockedUntil;
+        private final long[] sessionTokens;
+        private final int[] sessionExpiry;
+        private final Object[] locks = new Object[LOCK_STRIPES];
+        private final SecureRandom random = new SecureRandom();
+        private final ThreadPoolExecutor verifiers;
+        private int size;
+
+        CredentialDirectory(int capacity, int iterations, int verifierThreads, int queueLength, LongSupplier clock) {
+            if (capacity <= 0 || iterations <= 0) throw new IllegalArgumentException("Capacity and iterations must be positive");
+            this.capacity = capacity;
+            this.iterations = iterations;
+            this.clock = clock;
+            int tableSize = Integer.highestOneBit(Math.max(2, capacity - 1)) << 2;  // at most half full
+            slots = new long[tableSize];
+            slotEntries = new int[tableSize];
+            accounts = new int[capacity];
+            salts = new byte[capacity * SALT_SIZE];
+            hashes = new byte[capacity * HASH_SIZE];
+            failures = new byte[capacity];
+            lockedUntil = new int[capacity];
+            sessionTokens = new long[capacity];
+            sessionExpiry = new int[capacity];
+            for (int i = 0; i < locks.length; i++) locks[i] = new Object();
+            verifiers = new ThreadPoolExecutor(verifierThreads, verifierThreads, 0, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(queueLength), r -> {
+                        Thread t = new Thread(r, "atm-pin-verifier");
+                        t.setDaemon(true);
+                        return t;
+                    });
+        }
+
+        // Hashes the PIN with a fresh salt and adds the card
+        public void enroll(long card, int account, char[] pin) {
+            byte[] salt = new byte[SALT_SIZE];
+            random.nextBytes(salt);
+            enrollHashed(card, account, salt, hash(pin, salt));
+        }
+
+        // Adds a card whose PIN was already hashed with this directory's iteration count, as a bulk load would
+        public synchronized void enrollHashed(long card, int account, byte[] salt, byte[] hash) {
+            if (card <= 0) throw new IllegalArgumentException("Invalid card number");
+            if (salt.length != SALT_SIZE || hash.length != HASH_SIZE) throw new IllegalArgumentException("Wrong salt or hash size");
+            int slot = slotOf(card);
+            if (slots[slot] == card) throw new IllegalStateException("Card " + card + " is already enrolled");
+            if (size == capacity) throw new IllegalStateException("Directory is full (" + capacity + " cards)");
+            int entry = size++;
+            accounts[entry] = account;
+            System.arraycopy(salt, 0, salts, entry * SALT_SIZE, SALT_SIZE);
+            System.arraycopy(hash, 0, hashes, entry * HASH_SIZE, HASH_SIZE);
+            slotEntries[slot] = entry;
+            slots[slot] = card;  // published last: lookups read the card first
+        }
+
+        public synchronized int size() { return size; }
+
+        // Checks the PIN on a verifier thread. Completes with BUSY instead of queueing when the pool is saturated.
+        public CompletableFuture<Login> login(long card, char[] pin) {
+            char[] copy = pin.clone();
+            try {
+                return CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return verify(card, copy);
+                    } finally {
+                        Arrays.fill(copy, '\0');
+                    }
+                }, verifiers);
+            } catch (RejectedExecutionException ex) {
+                Arrays.fill(copy, '\0');
+                return CompletableFuture.completedFuture(new Login(Status.BUSY, 0, -1, 0));
+            }
+        }
+
+        // Checks the PIN on the calling thread
+        public Login verify(long card, char[] pin) {
+            int entry = find(card);
+            if (entry < 0) {
+                hash(pin, new byte[SALT_SIZE]);  // same cost as a known card, so timing doesn't reveal which cards exist
+                return new Login(Status.UNKNOWN_CARD, 0, -1, 0);
+            }
+            int now = (int) clock.getAsLong();
+            synchronized (lockFor(entry)) {
+                if (lockedUntil[entry] > now) return new Login(Status.LOCKED, 0, -1, 0);
+            }
+            byte[] expected = Arrays.copyOfRange(hashes, entry * HASH_SIZE, (entry + 1) * HASH_SIZE);
+            byte[] actual = hash(pin, Arrays.copyOfRange(salts, entry * SALT_SIZE, (entry + 1) * SALT_SIZE));
+            boolean matches = MessageDigest.isEqual(expected, actual);
+            synchronized (lockFor(entry)) {
+                // a wrong PIN checked concurrently may have locked the card meanwhile
+                if (lockedUntil[entry] > now) return new Login(Status.LOCKED, 0, -1, 0);
+                if (!matches) {
+                    if (++failures[entry] >= MAX_FAILURES) {
+                        failures[entry] = 0;
+                        lockedUntil[entry] = now + LOCK_SECONDS;
+                        return new Login(Status.LOCKED, 0, -1, 0);
+                    }
+                    return new Login(Status.WRONG_PIN, 0, -1, MAX_FAILURES - failures[entry]);
+                }
+                failures[entry] = 0;
+                int nonce;
+                do nonce = random.nextInt(); while (nonce == 0);
+                long token = ((long) nonce << 32) | entry;
+                sessionTokens[entry] = token;
+                sessionExpiry[entry] = now + SESSION_SECONDS;
+                return new Login(Status.OK, token, accounts[entry], MAX_FAILURES);
+            }
+        }
+
+        // The session's account, extending the session; -1 once it has expired or was replaced by a new login
+        public int session(long token) {
+            int entry = (int) token;
+            if (entry < 0 || entry >= capacity) return -1;
+            int now = (int) clock.getAsLong();
+            synchronized (lockFor(entry)) {
+                if (sessionTokens[entry] != token || sessionExpiry[entry] <= now) return -1;
+                sessionExpiry[entry] = now + SESSION_SECONDS;
+                return accounts[entry];
+            }
+        }
+
+        public void logout(long token) {
+            int entry = (int) token;
+            if (entry < 0 || entry >= capacity) return;
+            synchronized (lockFor(entry)) {
+                if (sessionTokens[entry] == token) {
+                    sessionTokens[entry] = 0;
+                    sessionExpiry[entry] = 0;
+                }
+            }
+        }
+
+        // Logins waiting for a verifier thread
+        public int queuedLogins() { return verifiers.getQueue().size(); }
+
+        @Override
+        public void close() {
+            verifiers.shutdownNow();
+        }
+
+        // Entry index of the card, or -1
+        int find(long card) {
+            for (int slot = spread(card) & (slots.length - 1); ; slot = (slot + 1) & (slots.length - 1)) {
+                long key = slots[slot];
+                if (key == card) return slotEntries[slot];
+                if (key == 0) return -1;
+            }
+        }
+
+        private int slotOf(long card) {
+            int slot = spread(card) & (slots.length - 1);
+            while (slots[slot] != 0 && slots[slot] != card) slot = (slot + 1) & (slots.length - 1);
+            return slot;
+        }
+
+        private static int spread(long card) {
+            long h = card * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+
+        private Object lockFor(int entry) {
+            return locks[entry & (LOCK_STRIPES - 1)];
+        }
+
+        byte[] hash(char[] pin, byte[] salt) {
+            PBEKeySpec spec = new PBEKeySpec(pin, salt, iterations, HASH_SIZE * 8);
+            try {
+                return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+            } catch (GeneralSecurityException ex) {
+                throw new IllegalStateException("PBKDF2WithHmacSHA256 is unavailable", ex);
+            } finally {
+                spec.clearPassword();
+            }
+        }
+
+        // Card numbers as printed: digits, optionally grouped with spaces or dashes
+        static long parseCard(String text) {
+            String digits = text.replaceAll("[\\s-]", "");
+            if (!digits.matches("\\d{12,18}")) throw new IllegalArgumentException("Invalid card number");
+            return Long.parseLong(digits);
+        }
+    }
+
+    // Headless load test of the login, balance, deposit and withdraw flows against a journaled bank:
+    //
+    //   java ATMInterface --simulate [--sessions n] [--seconds n] [--accounts n] [--hot-accounts fraction]
+    //       [--hot-share fraction] [--think-ms n] [--mix balance=60,deposit=20,withdraw=20]
+    //       [--pin-iterations n] [--data dir]
+    //
+    // Every session has its own card. Cards are spread over the accounts so that the hot fraction of
+    // accounts gets the hot share of the cards. A session repeatedly logs in, does a few operations
+    // with exponentially distributed think times between them and logs out. Each visit is one task,
+    // resubmitted until the run ends. Sessions run on virtual threads where the runtime has them
+    // (Java 21); otherwise the visits share a pool of platform threads, which caps how many sessions
+    // are active at once.
+    //
+    // The report gives throughput, latency percentiles per flow and the invariants checked after the
+    // run: the money in the ledger equals the opening total plus the acknowledged deposits minus the
+    // acknowledged withdrawals, no balance is negative, reopening the data directory recovers the
+    // same balances, and closing the bank in the middle of a stream of deposits keeps every one it
+    // acknowledged.
+    static class LoadSimulator {
+        static final long OPENING_PAISE = 10_000_00;
+        static final int PLATFORM_THREADS = 512;
+        static final String PIN = "1234";
+        private static final long CARD_BASE = 6000_0000_0000_0000L;
+
+        int sessions = 100_000;
+        int seconds = 30;
+        int accounts = 100_000;
+        double hotAccounts = 0.01;
+        double hotShare = 0.5;
+        long thinkMillis = 200;
+        int balanceWeight = 60, depositWeight = 20, withdrawWeight = 20;
+        int pinIterations = 1000;
+        Path dataDir;
+
+        private final LatencyHistogram login = new LatencyHistogram(), balance = new LatencyHistogram(),
+                deposit = new LatencyHistogram(), withdraw = new LatencyHistogram();
+        private final LongAdder deposited = new LongAdder(), withdrawn = new LongAdder();
+        private final LongAdder declined = new LongAdder(), busy = new LongAdder(), expired = new LongAdder(), failed = new LongAdder();
+
+        // Parses the options after --simulate
+        static LoadSimulator parse(String[] args) {
+            LoadSimulator sim = new LoadSimulator();
+            for (int i = 0; i < args.length; i += 2) {
+                if (i + 1 == args.length) throw new IllegalArgumentException("Missing value for " + args[i]);
+                String value = args[i + 1];
+                try {
+                    switch (args[i]) {
+                        case "--sessions": sim.sessions = Integer.parseInt(value); break;
+                        case "--seconds": sim.seconds = Integer.parseInt(value); break;
+                        case "--accounts": sim.accounts = Integer.parseInt(value); break;
+                        case "--hot-accounts": sim.hotAccounts = Double.parseDouble(value); break;
+                        case "--hot-share": sim.hotShare = Double.parseDouble(value); break;
+                        case "--think-ms": sim.thinkMillis = Long.parseLong(value); break;
+                        case "--pin-iterations": sim.pinIterations = Integer.parseInt(value); break;
+                        case "--data": sim.dataDir = Paths.get(value); break;
+                        case "--mix":
+                            sim.balanceWeight = sim.depositWeight = sim.withdrawWeight = 0;
+                            for (String part : value.split(",")) {
+                                String[] pair = part.split("=");
+                                if (pair.length != 2) throw new IllegalArgumentException("Mix entries look like balance=60");
+                                int weight = Integer.parseInt(pair[1].trim());
+                                switch (pair[0].trim()) {
+                                    case "balance": sim.balanceWeight = weight; break;
+                                    case "deposit": sim.depositWeight = weight; break;
+                                    case "withdraw": sim.withdrawWeight = weight; break;
+                                    default: throw new IllegalArgumentException("Unknown operation " + pair[0]);
+                                }
+                            }
+                            break;
+                        default: throw new IllegalArgumentException("Unknown option " + args[i]);
+                    }
+                } catch (NumberFormatException ex) {
+                    throw new IllegalArgumentException("Invalid value for " + args[i] + ": " + value);
+                }
+            }
+            if (sim.sessions <= 0 || sim.seconds <= 0 || sim.accounts <= 0 || sim.pinIterations <= 0 || sim.thinkMillis < 0) {
+                throw new IllegalArgumentException("Counts and durations must be positive");
+            }
+            if (sim.hotAccounts < 0 || sim.hotAccounts > 1 || sim.hotShare < 0 || sim.hotShare > 1) {
+                throw new IllegalArgumentException("Hot fractions must be between 0 and 1");
+            }
+            if (sim.balanceWeight < 0 || sim.depositWeight < 0 || sim.withdrawWeight < 0
+                    || sim.balanceWeight + sim.depositWeight + sim.withdrawWeight == 0) {
+                throw new IllegalArgumentException("The mix needs a positive weight");
+            }
+            return sim;
+        }
+
+        // Runs the simulation, prints the report and returns whether every invariant held
+        boolean run(PrintStream out) throws IOException, InterruptedException {
+            boolean temporary = dataDir == null;
+            Path dir = temporary ? Files.createTempDirectory("atm-sim") : dataDir;
+            Bank bank = Bank.open(dir, accounts, COMMIT_WINDOW_MICROS);
+            ExecutorService executor = sessionExecutor();
+            int opened = bank.ledger().size();
+            if (opened < accounts) {
+                // concurrently, so the openings share forces; a full ledger or a failed journal ends the run
+                out.println("Opening " + (accounts - opened) + " accounts...");
+                CompletableFuture<?>[] openings = new CompletableFuture<?>[accounts - opened];
+                for (int i = 0; i < openings.length; i++) {
+                    openings[i] = CompletableFuture.runAsync(() -> bank.open(OPENING_PAISE), executor);
+                }
+                try {
+                    CompletableFuture.allOf(openings).join();
+                } catch (CompletionException ex) {
+                    executor.shutdown();
+                    RuntimeException failure = ex.getCause() instanceof RuntimeException ? (RuntimeException) ex.getCause() : ex;
+                    try {
+                        bank.close();
+                    } catch (IOException closeFailure) {
+                        failure.addSuppressed(closeFailure);
+                    }
+                    throw failure;
+                }
+            }
+            long openingTotal = bank.ledger().total();
+
+            int verifiers = Runtime.getRuntime().availableProcessors();
+            CredentialDirectory directory = new CredentialDirectory(sessions, pinIterations, verifiers, 4096,
+                    () -> System.currentTimeMillis() / 1000);
+            // one salt and hash for every card: enrolling is not what is being measured
+            byte[] salt = new byte[16];
+            byte[] hash = directory.hash(PIN.toCharArray(), salt);
+            SplittableRandom random = new SplittableRandom(42);
+            int hot = Math.max(1, (int) (accounts * hotAccounts));
+            for (int card = 0; card < sessions; card++) {
+                int account = random.nextDouble() < hotShare || hot == accounts
+                        ? random.nextInt(hot) : hot + random.nextInt(accounts - hot);
+                directory.enrollHashed(CARD_BASE + card, account, salt, hash);
+            }
+
+            boolean virtual = !(executor instanceof ThreadPoolExecutor);
+            out.println("Running " + sessions + " sessions for " + seconds + " s on "
+                    + (virtual ? "virtual threads" : PLATFORM_THREADS + " platform threads (no virtual threads in this runtime)"));
+            long start = System.nanoTime();
+            long deadline = start + TimeUnit.SECONDS.toNanos(seconds);
+            AtomicInteger live = new AtomicInteger(sessions);
+            CountDownLatch finished = new CountDownLatch(1);
+            for (int card = 0; card < sessions; card++) {
+                Session session = new Session(CARD_BASE + card, new SplittableRandom(card), bank, directory, executor, deadline, live, finished);
+                executor.execute(session);
+            }
+            finished.await();
+            double elapsed = (System.nanoTime() - start) / 1e9;
+            executor.shutdown();
+            directory.close();
+
+            long total = bank.ledger().total();
+            long expected = openingTotal + deposited.sum() - withdrawn.sum();
+            int negative = 0;
+            for (int account = 0; account < bank.ledger().size(); account++) if (bank.balance(account) < 0) negative++;
+            long[] before = balances(bank.ledger());
+            long commits = bank.journal().commits(), records = bank.journal().records();
+            bank.close();
+            Bank reopened = Bank.open(dir, accounts, COMMIT_WINDOW_MICROS);
+            boolean recovered = Arrays.equals(before, balances(reopened.ledger()));
+            boolean closeKept = closeUnderLoad(reopened, dir);
+            if (temporary) {
+                Files.deleteIfExists(dir.resolve("journal.log"));
+                Files.deleteIfExists(dir.resolve("checkpoint.bin"));
+                Files.deleteIfExists(dir);
+            }
+
+            long operations = login.count() + balance.count() + deposit.count() + withdraw.count();
+            out.printf("%n%,d operations in %.1f s: %,.0f ops/s%n", operations, elapsed, operations / elapsed);
+            out.printf("journal: %,d records in %,d forces (%.1f per force)%n", records, commits, commits == 0 ? 0 : (double) records / commits);
+            out.printf("declined withdrawals %,d, busy logins %,d, expired sessions %,d, errors %,d%n",
+                    declined.sum(), busy.sum(), expired.sum(), failed.sum());
+            out.printf("%n%-10s %12s %10s %10s %10s %10s %10s%n", "latency", "count", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+            report(out, "login", login);
+            report(out, "balance", balance);
+            report(out, "deposit", deposit);
+            report(out, "withdraw", withdraw);
+
+            boolean conserved = total == expected;
+            out.println();
+            out.println((conserved ? "PASS" : "FAIL") + "  money conserved: ledger " + Ledger.format(total) + ", expected " + Ledger.format(expected));
+            out.println((negative == 0 ? "PASS" : "FAIL") + "  no negative balances (" + negative + " negative)");
+            out.println((recovered ? "PASS" : "FAIL") + "  journal recovery matches the final balances");
+            out.println((closeKept ? "PASS" : "FAIL") + "  deposits acknowledged while closing survive the close");
+            return conserved && negative == 0 && recovered && closeKept && failed.sum() == 0;
+        }
+
+        // Closes the bank while deposits keep arriving, then opens the directory again and checks that
+        // it holds exactly the deposits acknowledged before the close refused the rest
+        private static boolean closeUnderLoad(Bank bank, Path dir) throws IOException, InterruptedException {
+            long before = bank.ledger().total();
+            int accounts = bank.ledger().size();
+            LongAdder acknowledged = new LongAdder();
+            AtomicInteger unexpected = new AtomicInteger();
+            Thread[] depositors = new Thread[8];
+            CountDownLatch started = new CountDownLatch(depositors.length);
+            for (int i = 0; i < depositors.length; i++) {
+                int first = i % accounts;
+                depositors[i] = new Thread(() -> {
+                    started.countDown();
+                    for (int account = first; ; account = (account + depositors.length) % accounts) {
+                        try {
+                            bank.deposit(account, 100);
+                        } catch (IllegalStateException ex) {
+                            return;  // closed
+                        } catch (RuntimeException ex) {
+                            unexpected.incrementAndGet();
+                            return;
+                        }
+                        acknowledged.add(100);
+                    }
+                }, "atm-sim-depositor");
+                depositors[i].start();
+            }
+            started.await();
+            Thread.sleep(50);
+            bank.close();
+            for (Thread depositor : depositors) depositor.join();
+            Bank reopened = Bank.open(dir, accounts, COMMIT_WINDOW_MICROS);
+            long after = reopened.ledger().total();
+            reopened.close();
+            return unexpected.get() == 0 && after == before + acknowledged.sum();
+        }
+
+        // One card's repeated visits to the ATM
+        private class Session implements Runnable {
+            private final long card;
+            private final SplittableRandom random;
+            private final Bank bank;
+            private final CredentialDirectory directory;
+            private final ExecutorService executor;
+            private final long deadline;
+            private final AtomicInteger live;
+            private final CountDownLatch finished;
+            private final char[] pin = PIN.toCharArray();
+
+            Session(long card, SplittableRandom random, Bank bank, CredentialDirectory directory, ExecutorService executor,
+                    long deadline, AtomicInteger live, CountDownLatch finished) {
+                this.card = card;
+                this.random = random;
+                this.bank = bank;
+                this.directory = directory;
+                this.executor = executor;
+                this.deadline = deadline;
+                this.live = live;
+                this.finished = finished;
+            }
+
+            @Override
+            public void run() {
+                try {
+                    if (System.nanoTime() < deadline) visit();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                } catch (RuntimeException ex) {
+                    failed.increment();
+                    if (failed.sum() <= 10) System.err.println("Session error: " + ex);
+                }
+                if (System.nanoTime() < deadline && !Thread.currentThread().isInterrupted()) {
+                    executor.execute(this);
+                } else if (live.decrementAndGet() == 0) {
+                    finished.countDown();
+                }
+            }
+
+            // Logs in, does a few operations and logs out
+            private void visit() throws InterruptedException {
+                think();
+                long t0 = System.nanoTime();
+                CredentialDirectory.Login result = directory.login(card, pin).join();
+                login.record(System.nanoTime() - t0);
+                if (result.status == CredentialDirectory.Status.BUSY) {
+                    busy.increment();
+                    return;
+                }
+                if (result.status != CredentialDirectory.Status.OK) throw new IllegalStateException("Login failed: " + result.status);
+                int operations = 1 + random.nextInt(8);
+                for (int i = 0; i < operations && System.nanoTime() < deadline; i++) {
+                    think();
+                    int account = directory.session(result.token);
+                    if (account < 0) {
+                        expired.increment();
+                        return;
+                    }
+                    int pick = random.nextInt(balanceWeight + depositWeight + withdrawWeight);
+                    long paise = 100 * (1 + random.nextInt(5000));
+                    long t1 = System.nanoTime();
+                    if (pick < balanceWeight) {
+                        bank.balance(account);
+                        balance.record(System.nanoTime() - t1);
+                    } else if (pick < balanceWeight + depositWeight) {
+                        bank.deposit(account, paise);
+                        deposited.add(paise);
+                        deposit.record(System.nanoTime() - t1);
+                    } else {
+                        if (bank.withdraw(account, paise)) withdrawn.add(paise);
+                        else declined.increment();
+                        withdraw.record(System.nanoTime() - t1);
+                    }
+                }
+                directory.logout(result.token);
+            }
+
+            private void think() throws InterruptedException {
+                if (thinkMillis == 0) return;
+                long millis = (long) (-Math.log(1 - random.nextDouble()) * thinkMillis);
+                long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                Thread.sleep(Math.max(0, Math.min(millis, left)));
+            }
+        }
+
+        // Executors.newVirtualThreadPerTaskExecutor() where the runtime has it, found reflectively so this
+        // still compiles and runs on Java 17
+        static ExecutorService sessionExecutor() {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException | RuntimeException ex) {
+                return new ThreadPoolExecutor(PLATFORM_THREADS, PLATFORM_THREADS, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+                    Thread t = new Thread(r, "atm-sim-session");
+                    t.setDaemon(true);
+                    return t;
+                });
+            }
+        }
+
+        private static long[] balances(Ledger ledger) {
+            long[] balances = new long[ledger.size()];
+            for (int account = 0; account < balances.length; account++) balances[account] = ledger.balance(account);
+            return balances;
+        }
+
+        private static void report(PrintStream out, String name, LatencyHistogram h) {
+            out.printf("%-10s %,12d %10.2f %10.2f %10.2f %10.2f %10.2f%n", name, h.count(), h.percentile(0.5) / 1e6,
+                    h.percentile(0.9) / 1e6, h.percentile(0.99) / 1e6, h.percentile(0.999) / 1e6, h.max() / 1e6);
+        }
+    }
+
+    static final String DATA_DIR = "atm-data";
+    // Transactions kept per account for the mini-statement, -Datm.statementEntries
+    static final int STATEMENT_ENTRIES = Integer.getInteger("atm.statementEntries", 10);
+    // PBKDF2 rounds per PIN check, -Datm.pinIterations; hashes enrolled with one count only verify with that count
+    static final int PIN_ITERATIONS = Integer.getInteger("atm.pinIterations", 10_000);
+    // Card enrolled at startup for account 0
+    static final long DEMO_CARD = 4000_0000_0000_0002L;
+    static final String DEMO_PIN = "1234";
+    // Longest a commit waits for other sessions' records to share its force, -Datm.commitWindowMicros.
+    // At 0 a batch is whatever queued during the previous force; a window trades latency for fewer
+    // forces on disks that charge per force.
+    static final long COMMIT_WINDOW_MICROS = Long.getLong("atm.commitWindowMicros", 0);
+
     private CardLayout cardLayout;
     private JPanel mainPanel, loginPanel, atmPanel;
-    private JTextField userField;
-    private JPasswordField passField;
+    private JTextField cardField;
+    private JPasswordField pinField;
+    private JButton loginBtn;
     private JLabel balanceLabel;
-    private double balance = 1000.0; // starting balance
-    private final String USERNAME = "mihir";
-    private final String PASSWORD = "123";
+    private final Bank bank;
+    private final CredentialDirectory directory;
+    private long session;  // EDT only, 0 when logged out
+    // Deposits and withdrawals wait for the journal's force, so they run here rather than on the EDT
+    private final ExecutorService teller = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "atm-teller");
+        t.setDaemon(true);
+        return t;
+    });
+    private static final DateTimeFormatter STATEMENT_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm").withZone(ZoneId.systemDefault());
 
-    public ATMInterface() {
+    // The window only reads and changes the logged-in card's account through the bank
+    public ATMInterface(Bank bank, CredentialDirectory directory) {
+        this.bank = bank;
+        this.directory = directory;
         setTitle("ATM Machine");
         setSize(400, 300);
         setDefaultCloseOperation(EXIT_ON_CLOSE);
@@ -24,15 +1328,15 @@ public class ATMInterface extends JFrame implements ActionListener {
         // Login Panel
         loginPanel = new JPanel(new GridLayout(4, 2, 10, 10));
         loginPanel.setBorder(BorderFactory.createEmptyBorder(30, 50, 30, 50));
-        userField = new JTextField();
-        passField = new JPasswordField();
-        JButton loginBtn = new JButton("Login");
+        cardField = new JTextField();
+        pinField = new JPasswordField();
+        loginBtn = new JButton("Login");
         loginBtn.addActionListener(this);
 
-        loginPanel.add(new JLabel("Username:"));
-        loginPanel.add(userField);
-        loginPanel.add(new JLabel("Password:"));
-        loginPanel.add(passField);
+        loginPanel.add(new JLabel("Card Number:"));
+        loginPanel.add(cardField);
+        loginPanel.add(new JLabel("PIN:"));
+        loginPanel.add(pinField);
         loginPanel.add(new JLabel());
         loginPanel.add(loginBtn);
 
@@ -41,21 +1345,24 @@ public class ATMInterface extends JFrame implements ActionListener {
         atmPanel.setLayout(new GridLayout(6, 1, 10, 10));
         atmPanel.setBorder(BorderFactory.createEmptyBorder(30, 50, 30, 50));
 
-        balanceLabel = new JLabel("Balance: ₹" + balance);
+        balanceLabel = new JLabel();
         JButton checkBalanceBtn = new JButton("Check Balance");
         JButton depositBtn = new JButton("Deposit");
         JButton withdrawBtn = new JButton("Withdraw");
+        JButton statementBtn = new JButton("Mini Statement");
         JButton exitBtn = new JButton("Exit");
 
         checkBalanceBtn.addActionListener(this);
         depositBtn.addActionListener(this);
         withdrawBtn.addActionListener(this);
+        statementBtn.addActionListener(this);
         exitBtn.addActionListener(this);
 
         atmPanel.add(balanceLabel);
         atmPanel.add(checkBalanceBtn);
         atmPanel.add(depositBtn);
         atmPanel.add(withdrawBtn);
+        atmPanel.add(statementBtn);
         atmPanel.add(exitBtn);
 
         // Add to main panel
@@ -72,55 +1379,180 @@ public class ATMInterface extends JFrame implements ActionListener {
 
         switch (command) {
             case "Login":
-                String username = userField.getText();
-                String password = new String(passField.getPassword());
-                if (username.equals(USERNAME) && password.equals(PASSWORD)) {
-                    cardLayout.show(mainPanel, "ATM");
-                } else {
+                long card;
+                try {
+                    card = CredentialDirectory.parseCard(cardField.getText());
+                } catch (IllegalArgumentException ex) {
                     JOptionPane.showMessageDialog(this, "Invalid credentials", "Error", JOptionPane.ERROR_MESSAGE);
+                    break;
                 }
+                char[] pin = pinField.getPassword();
+                pinField.setText("");
+                loginBtn.setEnabled(false);
+                // the PIN is checked on a verifier thread; the result comes back to the EDT
+                directory.login(card, pin)
+                        .exceptionally(ex -> new CredentialDirectory.Login(CredentialDirectory.Status.BUSY, 0, -1, 0))
+                        .thenAccept(login -> SwingUtilities.invokeLater(() -> loggedIn(login)));
+                Arrays.fill(pin, '\0');
                 break;
 
             case "Check Balance":
-                balanceLabel.setText("Balance: ₹" + balance);
+                int account = currentAccount();
+                if (account >= 0) balanceLabel.setText("Balance: " + Ledger.format(bank.balance(account)));
                 break;
 
             case "Deposit":
+                account = currentAccount();
+                if (account < 0) break;
                 String depositStr = JOptionPane.showInputDialog(this, "Enter deposit amount:");
+                if (depositStr == null) break;
+                long depositAmt;
                 try {
-                    double depositAmt = Double.parseDouble(depositStr);
-                    if (depositAmt <= 0) throw new NumberFormatException();
-                    balance += depositAmt;
-                    JOptionPane.showMessageDialog(this, "Deposited ₹" + depositAmt);
-                    balanceLabel.setText("Balance: ₹" + balance);
-                } catch (Exception ex) {
+                    depositAmt = Ledger.parsePaise(depositStr);
+                } catch (IllegalArgumentException ex) {
                     JOptionPane.showMessageDialog(this, "Invalid amount!", "Error", JOptionPane.ERROR_MESSAGE);
+                    break;
                 }
+                int depositAccount = account;
+                inBackground(() -> bank.deposit(depositAccount, depositAmt), balance -> {
+                    JOptionPane.showMessageDialog(this, "Deposited " + Ledger.format(depositAmt));
+                    balanceLabel.setText("Balance: " + Ledger.format(balance));
+                });
                 break;
 
             case "Withdraw":
+                account = currentAccount();
+                if (account < 0) break;
                 String withdrawStr = JOptionPane.showInputDialog(this, "Enter withdrawal amount:");
+                if (withdrawStr == null) break;
+                long withdrawAmt;
                 try {
-                    double withdrawAmt = Double.parseDouble(withdrawStr);
-                    if (withdrawAmt <= 0 || withdrawAmt > balance) throw new NumberFormatException();
-                    balance -= withdrawAmt;
-                    JOptionPane.showMessageDialog(this, "Withdrew ₹" + withdrawAmt);
-                    balanceLabel.setText("Balance: ₹" + balance);
-                } catch (Exception ex) {
+                    withdrawAmt = Ledger.parsePaise(withdrawStr);
+                } catch (IllegalArgumentException ex) {
                     JOptionPane.showMessageDialog(this, "Invalid or insufficient balance!", "Error", JOptionPane.ERROR_MESSAGE);
+                    break;
                 }
+                int withdrawAccount = account;
+                inBackground(() -> bank.withdraw(withdrawAccount, withdrawAmt), withdrawn -> {
+                    if (withdrawn) {
+                        JOptionPane.showMessageDialog(this, "Withdrew " + Ledger.format(withdrawAmt));
+                        balanceLabel.setText("Balance: " + Ledger.format(bank.balance(withdrawAccount)));
+                    } else {
+                        JOptionPane.showMessageDialog(this, "Invalid or insufficient balance!", "Error", JOptionPane.ERROR_MESSAGE);
+                    }
+                });
+                break;
+
+            case "Mini Statement":
+                account = currentAccount();
+                if (account < 0) break;
+                StringBuilder statement = new StringBuilder(String.format("%-17s %-13s %12s %12s%n", "Date", "Type", "Amount", "Balance"));
+                for (MiniStatements.Entry entry : bank.miniStatement(account)) {
+                    statement.append(String.format("%-17s %-13s %12s %12s%n", STATEMENT_TIME.format(Instant.ofEpochMilli(entry.millis)),
+                            entry.getType(), Ledger.format(entry.paise), Ledger.format(entry.balanceAfter)));
+                }
+                JTextArea lines = new JTextArea(statement.toString());
+                lines.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+                lines.setEditable(false);
+                JOptionPane.showMessageDialog(this, lines, "Mini Statement", JOptionPane.PLAIN_MESSAGE);
                 break;
 
             case "Exit":
                 int confirm = JOptionPane.showConfirmDialog(this, "Do you really want to exit?", "Exit", JOptionPane.YES_NO_OPTION);
                 if (confirm == JOptionPane.YES_OPTION) {
+                    directory.logout(session);
                     System.exit(0);
                 }
                 break;
         }
     }
 
-    public static void main(String[] args) {
-        new ATMInterface();
+    private void loggedIn(CredentialDirectory.Login login) {
+        loginBtn.setEnabled(true);
+        switch (login.status) {
+            case OK:
+                session = login.token;
+                cardField.setText("");
+                balanceLabel.setText("Balance: " + Ledger.format(bank.balance(login.account)));
+                cardLayout.show(mainPanel, "ATM");
+                break;
+            case WRONG_PIN:
+                JOptionPane.showMessageDialog(this, "Incorrect PIN, " + login.attemptsLeft + " attempts left", "Error", JOptionPane.ERROR_MESSAGE);
+                break;
+            case LOCKED:
+                JOptionPane.showMessageDialog(this, "Card locked after too many wrong PINs, try again later", "Error", JOptionPane.ERROR_MESSAGE);
+                break;
+            case BUSY:
+                JOptionPane.showMessageDialog(this, "The ATM is busy, please try again", "Error", JOptionPane.ERROR_MESSAGE);
+                break;
+            default:
+                JOptionPane.showMessageDialog(this, "Invalid credentials", "Error", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    // Runs a bank call on the teller thread and hands its result, or why it failed, back to the EDT
+    private <T> void inBackground(Supplier<T> call, Consumer<T> done) {
+        CompletableFuture.supplyAsync(call, teller).whenComplete((result, ex) -> SwingUtilities.invokeLater(() -> {
+            if (ex == null) {
+                done.accept(result);
+                return;
+            }
+            Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+            if (cause instanceof UncheckedIOException) {
+                JOptionPane.showMessageDialog(this, "The transaction could not be recorded and was not carried out: "
+                        + cause.getMessage(), "Storage Error", JOptionPane.ERROR_MESSAGE);
+            } else if (cause instanceof IllegalArgumentException || cause instanceof IllegalStateException) {
+                JOptionPane.showMessageDialog(this, cause.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+            } else {
+                JOptionPane.showMessageDialog(this, "Unexpected error: " + cause, "Error", JOptionPane.ERROR_MESSAGE);
+            }
+        }));
+    }
+
+    // The logged-in account, or -1 after returning to the login screen because the session expired
+    private int currentAccount() {
+        int account = directory.session(session);
+        if (account < 0) {
+            session = 0;
+            cardLayout.show(mainPanel, "Login");
+            JOptionPane.showMessageDialog(this, "Your session has expired, please log in again", "Error", JOptionPane.ERROR_MESSAGE);
+        }
+        return account;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("--simulate")) {
+            LoadSimulator sim;
+            try {
+                sim = LoadSimulator.parse(Arrays.copyOfRange(args, 1, args.length));
+            } catch (IllegalArgumentException ex) {
+                System.err.println(ex.getMessage());
+                System.exit(2);
+                return;
+            }
+            System.exit(sim.run(System.out) ? 0 : 1);
+        }
+        Bank bank;
+        try {
+            bank = Bank.open(Paths.get(DATA_DIR), 1 << 20, COMMIT_WINDOW_MICROS);
+        } catch (IOException ex) {
+            JOptionPane.showMessageDialog(null, "Could not open " + DATA_DIR + ": " + ex.getMessage(), "Startup Error", JOptionPane.ERROR_MESSAGE);
+            System.exit(1);
+            return;
+        }
+        int account = bank.ledger().size() > 0 ? 0 : bank.open(1000_00); // starting balance
+        int verifiers = Runtime.getRuntime().availableProcessors();
+        // Room for a card per account opened so far; each card's entries are allocated up front
+        CredentialDirectory directory = new CredentialDirectory(bank.ledger().size(), PIN_ITERATIONS, verifiers, 1024,
+                () -> System.currentTimeMillis() / 1000);
+        directory.enroll(DEMO_CARD, account, DEMO_PIN.toCharArray());
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                bank.close();
+            } catch (IOException ex) {
+                System.err.println("Checkpoint failed, the journal is still intact: " + ex);
+            }
+        }, "atm-shutdown"));
+        SwingUtilities.invokeLater(() -> new ATMInterface(bank, directory));
     }
 }
@@ -0,0 +1,542 @@
+import javax.swing.*;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Headless micro-benchmarks for the hospital and ATM hot paths.
+//
+//   java Benchmarks [--quick] [--filter <regex>] [--json <file>] [--baseline <file>] [--tolerance <percent>]
+//
+// Every benchmark runs warmup iterations and then measured iterations, each at least ITERATION_MILLIS
+// long, and reports the average time per operation in ns/op with a 99.9% confidence half-width.
+// --json writes the results in JMH's JSON layout, one benchmark per line. --baseline reads such a
+// file back and exits with 1 when any benchmark got slower than the baseline score by more than the
+// tolerance (default 10%).
+//
+// This is the quick in-process fallback: one JVM, one setup per benchmark and a volatile sink instead
+// of a Blackhole, so its numbers are only comparable with its own earlier runs, not with JMH's. The
+// JMH suite in jmh/ runs the same cases in forked JVMs (gradle jmh).
+//
+// Run with a fixed heap large enough for the 1M-row cases, e.g. -Xms2g -Xmx2g.
+public class Benchmarks {
+
+    static final int WARMUP_ITERATIONS = 3, MEASURED_ITERATIONS = 5;
+    static final int QUICK_WARMUP_ITERATIONS = 1, QUICK_MEASURED_ITERATIONS = 3;
+    static final long ITERATION_MILLIS = 1000, QUICK_ITERATION_MILLIS = 200;
+    // Rows handed to the table per chunk, as TaskRunner.load does
+    static final int LOAD_CHUNK = 500;
+    // Rows or list cells a viewport shows at once
+    static final int VISIBLE_ROWS = 40;
+
+    // Results are folded in here so the JIT can't drop the work being measured
+    static volatile long sink;
+
+    // One invocation performs a fixed number of operations and returns something derived from them.
+    // close() releases what the setup made, such as threads and temp files, once measuring is over.
+    interface Body extends AutoCloseable {
+        long invoke() throws Exception;
+
+        @Override
+        default void close() throws Exception {}
+    }
+
+    interface Setup {
+        Body prepare() throws Exception;
+    }
+
+    static class Benchmark {
+        final String name;
+        final Map<String, String> params;
+        final int threads;
+        final int opsPerInvocation;
+        final Setup setup;
+
+        Benchmark(String name, Map<String, String> params, int threads, int opsPerInvocation, Setup setup) {
+            this.name = name;
+            this.params = params;
+            this.threads = threads;
+            this.opsPerInvocation = opsPerInvocation;
+            this.setup = setup;
+        }
+
+        String key() { return name + params; }
+    }
+
+    static class Result {
+        final Benchmark benchmark;
+        final double[] iterations;  // ns/op of each measured iteration
+        final double score, scoreError;
+
+        Result(Benchmark benchmark, double[] iterations) {
+            this.benchmark = benchmark;
+            this.iterations = iterations;
+            double sum = 0;
+            for(double v : iterations) sum += v;
+            score = sum / iterations.length;
+            double squares = 0;
+            for(double v : iterations) squares += (v - score) * (v - score);
+            double stdDev = iterations.length > 1 ? Math.sqrt(squares / (iterations.length - 1)) : 0;
+            scoreError = studentT999(iterations.length - 1) * stdDev / Math.sqrt(iterations.length);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.awt.headless", "true");
+
+        boolean quick = false;
+        Pattern filter = null;
+        Path json = null, baseline = null;
+        double tolerance = 10;
+        for(int i = 0; i < args.length; i++) {
+            switch(args[i]) {
+                case "--quick": quick = true; break;
+                case "--filter": filter = Pattern.compile(args[++i]); break;
+                case "--json": json = Paths.get(args[++i]); break;
+                case "--baseline": baseline = Paths.get(args[++i]); break;
+                case "--tolerance": tolerance = Double.parseDouble(args[++i]); break;
+                default:
+                    System.err.println("Usage: Benchmarks [--quick] [--filter <regex>] [--json <file>]"
+                            + " [--baseline <file>] [--tolerance <percent>]");
+                    System.exit(2);
+            }
+        }
+        int warmup = quick ? QUICK_WARMUP_ITERATIONS : WARMUP_ITERATIONS;
+        int measured = quick ? QUICK_MEASURED_ITERATIONS : MEASURED_ITERATIONS;
+        long iterationNanos = (quick ? QUICK_ITERATION_MILLIS : ITERATION_MILLIS) * 1_000_000;
+
+        List<Result> results = new ArrayList<>();
+        for(Benchmark b : benchmarks()) {
+            if(filter != null && !filter.matcher(b.name).find()) continue;
+            Result result = run(b, warmup, measured, iterationNanos);
+            results.add(result);
+            System.out.printf("%-28s %-16s %14.3f +- %10.3f ns/op%n", b.name, formatParams(b.params),
+                    result.score, result.scoreError);
+        }
+
+        if(json != null) writeJson(json, results, warmup, measured);
+        if(baseline != null) System.exit(compare(results, readScores(baseline), tolerance) ? 0 : 1);
+    }
+
+    // --- Benchmarks ---
+
+    static List<Benchmark> benchmarks() {
+        List<Benchmark> list = new ArrayList<>();
+
+        list.add(new Benchmark("patient.create", params(), 1, 10_000, () -> () -> {
+            long ids = 0;
+            for(int i = 0; i < 10_000; i++) {
+                ids += new HospitalManagementSystemGUI.Patient("Patient", 40, "F", "555-0100").getId();
+            }
+            return ids;
+        }));
+
+        int lookupSize = 1_000_000;
+        int[] probes = randomIds(1 << 16, lookupSize);
+        list.add(new Benchmark("lookup.repository", params("size", lookupSize), 1, probes.length, () -> {
+            HospitalManagementSystemGUI.Repository<HospitalManagementSystemGUI.Patient> repository =
+                    new HospitalManagementSystemGUI.Repository<>(HospitalManagementSystemGUI.Patient::getId);
+            List<HospitalManagementSystemGUI.Patient> all = patients(lookupSize);
+            for(HospitalManagementSystemGUI.Patient p : all) repository.add(p);
+            int firstId = all.get(0).getId();
+            return () -> {
+                long found = 0;
+                for(int probe : probes) found += repository.get(firstId + probe).getAge();
+                return found;
+            };
+        }));
+        // The map the stores were kept in before Repository, for comparison
+        list.add(new Benchmark("lookup.hashMap", params("size", lookupSize), 1, probes.length, () -> {
+            Map<Integer, HospitalManagementSystemGUI.Patient> map = new HashMap<>();
+            List<HospitalManagementSystemGUI.Patient> all = patients(lookupSize);
+            for(HospitalManagementSystemGUI.Patient p : all) map.put(p.getId(), p);
+            int firstId = all.get(0).getId();
+            return () -> {
+                long found = 0;
+                for(int probe : probes) found += map.get(firstId + probe).getAge();
+                return found;
+            };
+        }));
+
+        // Fills the patient table the way a background load does and reads the cells of the first screen
+        for(int rows : new int[]{10_000, 100_000, 1_000_000}) {
+            list.add(new Benchmark("table.populate", params("rows", rows), 1, rows, () -> {
+                List<HospitalManagementSystemGUI.Patient> all = patients(rows);
+                HospitalManagementSystemGUI.Repository<HospitalManagementSystemGUI.Patient> repository =
+                        new HospitalManagementSystemGUI.Repository<>(HospitalManagementSystemGUI.Patient::getId);
+                for(HospitalManagementSystemGUI.Patient p : all) repository.add(p);
+                HospitalManagementSystemGUI.EntityTableModel<HospitalManagementSystemGUI.Patient> model = patientModel(repository);
+                JTable table = new JTable(model);
+                return () -> {
+                    model.beginLoad(null);
+                    for(int from = 0; from < all.size(); from += LOAD_CHUNK) {
+                        model.appendLoaded(all.subList(from, Math.min(all.size(), from + LOAD_CHUNK)));
+                    }
+                    model.endLoad();
+                    long cells = 0;
+                    for(int row = 0; row < VISIBLE_ROWS; row++) {
+                        for(int column = 0; column < table.getColumnCount(); column++) {
+                            cells += table.getValueAt(row, column).hashCode();
+                        }
+                    }
+                    return cells + table.getRowCount();
+                };
+            }));
+        }
+
+        // Shows a long record history and renders a screenful of cells at random scroll positions,
+        // which inflates sealed segments as the cache misses
+        int records = 100_000;
+        list.add(new Benchmark("ehr.render", params("records", records), 1, VISIBLE_ROWS * 64, () -> {
+            HospitalManagementSystemGUI.EHR ehr = new HospitalManagementSystemGUI.EHR(1);
+            for(int i = 0; i < records; i++) ehr.addRecord("2024-01-01 10:00 Visit " + i + ": routine check, vitals normal");
+            HospitalManagementSystemGUI.EHRListModel model = new HospitalManagementSystemGUI.EHRListModel();
+            int[] tops = randomIds(64, records - VISIBLE_ROWS);
+            return () -> {
+                model.show(ehr);
+                long length = 0;
+                for(int top : tops) {
+                    for(int i = top; i < top + VISIBLE_ROWS; i++) length += model.getElementAt(i).length();
+                }
+                return length;
+            };
+        }));
+
+        int atmOps = 100_000;
+        list.add(new Benchmark("atm.deposit", params(), 1, atmOps, () -> {
+            ATMInterface.Ledger ledger = new ATMInterface.Ledger(1);
+            int account = ledger.open(1000_00);
+            return () -> {
+                for(int i = 0; i < atmOps; i++) ledger.deposit(account, 100);
+                return ledger.balance(account);
+            };
+        }));
+        list.add(new Benchmark("atm.withdraw", params(), 1, atmOps, () -> {
+            ATMInterface.Ledger ledger = new ATMInterface.Ledger(1);
+            int account = ledger.open(Long.MAX_VALUE / 2);
+            return () -> {
+                long ok = 0;
+                for(int i = 0; i < atmOps; i++) if(ledger.withdraw(account, 100)) ok++;
+                return ok;
+            };
+        }));
+        // Several threads alternating deposits and withdrawals, all on one account or each on its own
+        int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        for(boolean shared : new boolean[]{true, false}) {
+            list.add(new Benchmark("atm.depositWithdraw", params("threads", threads, "accounts", shared ? "shared" : "own"),
+                    threads, atmOps, () -> {
+                ATMInterface.Ledger ledger = new ATMInterface.Ledger(threads * 1024);
+                for(int i = 0; i < threads * 1024; i++) ledger.open(1000_00);
+                ExecutorService pool = atmPool(threads);
+                int perThread = atmOps / threads;
+                return closing(() -> {
+                    List<Future<Long>> futures = new ArrayList<>();
+                    for(int t = 0; t < threads; t++) {
+                        int account = shared ? 0 : t * 1024;  // own accounts a page apart
+                        futures.add(pool.submit(() -> {
+                            long ok = 0;
+                            for(int i = 0; i < perThread; i++) {
+                                ledger.deposit(account, 100);
+                                if(ledger.withdraw(account, 100)) ok++;
+                            }
+                            return ok;
+                        }));
+                    }
+                    long ok = 0;
+                    for(Future<Long> f : futures) ok += f.get();
+                    return ok;
+                }, pool::shutdownNow);
+            }));
+        }
+        // Transfers between random pairs of a million accounts from several threads
+        int ledgerAccounts = 1_000_000;
+        list.add(new Benchmark("atm.transfer", params("threads", threads, "accounts", ledgerAccounts), threads, atmOps, () -> {
+            ATMInterface.Ledger ledger = new ATMInterface.Ledger(ledgerAccounts);
+            for(int i = 0; i < ledgerAccounts; i++) ledger.open(1000_00);
+            int[] pairs = randomIds(2 * atmOps, ledgerAccounts);
+            ExecutorService pool = atmPool(threads);
+            int perThread = atmOps / threads;
+            return closing(() -> {
+                List<Future<Long>> futures = new ArrayList<>();
+                for(int t = 0; t < threads; t++) {
+                    int first = t * perThread;
+                    futures.add(pool.submit(() -> {
+                        long ok = 0;
+                        for(int i = first; i < first + perThread; i++) {
+                            int a = pairs[2 * i], b = pairs[2 * i + 1];
+                            if(a != b && ledger.transfer(a, b, 100)) ok++;
+                        }
+                        return ok;
+                    }));
+                }
+                long ok = 0;
+                for(Future<Long> f : futures) ok += f.get();
+                return ok;
+            }, pool::shutdownNow);
+        }));
+        // Withdrawals recorded into the mini-statement rings of random accounts among a million
+        list.add(new Benchmark("atm.withdrawWithStatement", params("accounts", ledgerAccounts), 1, atmOps, () -> {
+            ATMInterface.Ledger ledger = new ATMInterface.Ledger(ledgerAccounts);
+            ATMInterface.MiniStatements statements = new ATMInterface.MiniStatements(ledgerAccounts, 10);
+            for(int i = 0; i < ledgerAccounts; i++) statements.open(ledger.open(Long.MAX_VALUE / 2));
+            int[] accounts = randomIds(atmOps, ledgerAccounts);
+            return () -> {
+                long balance = 0;
+                for(int account : accounts) {
+                    balance = ledger.debit(account, 100);
+                    statements.record(account, ATMInterface.MiniStatements.WITHDRAWAL, 100, balance);
+                }
+                return balance;
+            };
+        }));
+        // A burst of simultaneous card logins through the bounded verifier pool, at a cheap PBKDF2 cost
+        int logins = 2000, pinIterations = 1000;
+        list.add(new Benchmark("atm.login", params("sessions", logins, "iterations", pinIterations), 1, logins, () -> {
+            int verifiers = Runtime.getRuntime().availableProcessors();
+            ATMInterface.CredentialDirectory directory = new ATMInterface.CredentialDirectory(logins, pinIterations,
+                    verifiers, logins, () -> System.currentTimeMillis() / 1000);
+            char[] pin = "1234".toCharArray();
+            for(int i = 0; i < logins; i++) directory.enroll(4000_0000_0000_0000L + i, i, pin);
+            return closing(() -> {
+                List<CompletableFuture<ATMInterface.CredentialDirectory.Login>> futures = new ArrayList<>();
+                for(int i = 0; i < logins; i++) futures.add(directory.login(4000_0000_0000_0000L + i, pin));
+                long ok = 0;
+                for(CompletableFuture<ATMInterface.CredentialDirectory.Login> f : futures) {
+                    if(f.get().status == ATMInterface.CredentialDirectory.Status.OK) ok++;
+                }
+                return ok;
+            }, directory::close);
+        }));
+        // Journaled deposits from many sessions at once, each waiting for its commit, in a temp directory
+        int sessions = 64, durableOps = sessions * 32;
+        for(long window : new long[]{0, 500}) {
+            list.add(new Benchmark("atm.durableDeposit", params("sessions", sessions, "windowMicros", window), sessions, durableOps, () -> {
+                Path dir = Files.createTempDirectory("bench-atm");
+                ATMInterface.Bank bank = ATMInterface.Bank.open(dir, sessions, window);
+                for(int i = 0; i < sessions; i++) bank.open(0);
+                ExecutorService pool = atmPool(sessions);
+                return closing(() -> {
+                    List<Future<Long>> futures = new ArrayList<>();
+                    for(int s = 0; s < sessions; s++) {
+                        int account = s;
+                        futures.add(pool.submit(() -> {
+                            long balance = 0;
+                            for(int i = 0; i < durableOps / sessions; i++) balance = bank.deposit(account, 100);
+                            return balance;
+                        }));
+                    }
+                    long total = 0;
+                    for(Future<Long> f : futures) total += f.get();
+                    return total;
+                }, () -> {
+                    pool.shutdownNow();
+                    bank.close();
+                    deleteTree(dir);
+                });
+            }));
+        }
+
+        return list;
+    }
+
+    // Entry point for the JMH suite, whose benchmark classes must live in a package and so can't name
+    // these classes. Prepares the case with that name whose params include every name=value in filter,
+    // after checking it performs the operations per call that the JMH side divides by. The result is
+    // also AutoCloseable, for the suite's teardown.
+    public static Callable<Long> prepare(String name, String filter, int opsPerInvocation) throws Exception {
+        List<String> wanted = filter.isEmpty() ? Collections.emptyList() : Arrays.asList(filter.split(","));
+        for(Benchmark b : benchmarks()) {
+            if(!b.name.equals(name) || !Arrays.asList(formatParams(b.params).split(",")).containsAll(wanted)) continue;
+            if(b.opsPerInvocation != opsPerInvocation) {
+                throw new IllegalStateException(b.name + " performs " + b.opsPerInvocation + " operations per call, not " + opsPerInvocation);
+            }
+            return new JmhBody(b.setup.prepare());
+        }
+        throw new IllegalArgumentException("No benchmark " + name + " with " + filter);
+    }
+
+    private static class JmhBody implements Callable<Long>, AutoCloseable {
+        private final Body body;
+
+        JmhBody(Body body) { this.body = body; }
+
+        @Override public Long call() throws Exception { return body.invoke(); }
+        @Override public void close() throws Exception { body.close(); }
+    }
+
+    static Body closing(Body body, AutoCloseable resources) {
+        return new Body() {
+            @Override public long invoke() throws Exception { return body.invoke(); }
+            @Override public void close() throws Exception { resources.close(); }
+        };
+    }
+
+    static void deleteTree(Path dir) throws IOException {
+        try(Stream<Path> paths = Files.walk(dir)) {
+            List<Path> all = paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList());
+            for(Path p : all) Files.deleteIfExists(p);
+        }
+    }
+
+    static ExecutorService atmPool(int threads) {
+        return Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "bench-atm");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    static HospitalManagementSystemGUI.EntityTableModel<HospitalManagementSystemGUI.Patient> patientModel(
+            HospitalManagementSystemGUI.Repository<HospitalManagementSystemGUI.Patient> repository) {
+        return new HospitalManagementSystemGUI.EntityTableModel<HospitalManagementSystemGUI.Patient>(
+                new String[]{"ID", "Name", "Age", "Gender", "Contact"}, repository) {
+            @Override
+            protected Object valueAt(HospitalManagementSystemGUI.Patient p, int column) {
+                switch(column) {
+                    case 0: return p.getId();
+                    case 1: return p.getName();
+                    case 2: return p.getAge();
+                    case 3: return p.getGender();
+                    default: return p.getContact();
+                }
+            }
+        };
+    }
+
+    static List<HospitalManagementSystemGUI.Patient> patients(int count) {
+        List<HospitalManagementSystemGUI.Patient> list = new ArrayList<>(count);
+        for(int i = 0; i < count; i++) {
+            list.add(new HospitalManagementSystemGUI.Patient("Patient " + i, 20 + i % 60, i % 2 == 0 ? "F" : "M",
+                    "555-" + (1000 + i % 9000)));
+        }
+        return list;
+    }
+
+    // Fixed-seed offsets in [0, bound) so every run probes the same ids
+    static int[] randomIds(int count, int bound) {
+        Random random = new Random(42);
+        int[] ids = new int[count];
+        for(int i = 0; i < count; i++) ids[i] = random.nextInt(bound);
+        return ids;
+    }
+
+    static Map<String, String> params(Object... pairs) {
+        Map<String, String> map = new LinkedHashMap<>();
+        for(int i = 0; i < pairs.length; i += 2) map.put((String) pairs[i], String.valueOf(pairs[i + 1]));
+        return map;
+    }
+
+    // --- Harness ---
+
+    static Result run(Benchmark b, int warmup, int measured, long iterationNanos) throws Exception {
+        try(Body body = b.setup.prepare()) {
+            for(int i = 0; i < warmup; i++) iteration(body, b.opsPerInvocation, iterationNanos);
+            double[] scores = new double[measured];
+            for(int i = 0; i < measured; i++) scores[i] = iteration(body, b.opsPerInvocation, iterationNanos);
+            return new Result(b, scores);
+        }
+    }
+
+    // Invokes the body until the iteration time has passed; returns ns per operation
+    static double iteration(Body body, int opsPerInvocation, long iterationNanos) throws Exception {
+        long invocations = 0, acc = 0;
+        long start = System.nanoTime(), elapsed;
+        do {
+            acc += body.invoke();
+            invocations++;
+            elapsed = System.nanoTime() - start;
+        } while(elapsed < iterationNanos);
+        sink += acc;
+        return (double) elapsed / (invocations * opsPerInvocation);
+    }
+
+    // Two-sided 99.9% Student's t quantile, as JMH uses for scoreError
+    static double studentT999(int degreesOfFreedom) {
+        double[] table = {Double.NaN, 636.619, 31.599, 12.924, 8.610, 6.869, 5.959, 5.408, 5.041, 4.781, 4.587};
+        if(degreesOfFreedom < 1) return Double.NaN;
+        return degreesOfFreedom < table.length ? table[degreesOfFreedom] : 3.291;
+    }
+
+    // --- JSON export and baseline comparison ---
+
+    static void writeJson(Path file, List<Result> results, int warmup, int measured) throws IOException {
+        try(Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            out.write("[\n");
+            for(int i = 0; i < results.size(); i++) {
+                Result r = results.get(i);
+                StringBuilder params = new StringBuilder("{");
+                for(Map.Entry<String, String> e : r.benchmark.params.entrySet()) {
+                    if(params.length() > 1) params.append(", ");
+                    params.append('"').append(e.getKey()).append("\" : \"").append(e.getValue()).append('"');
+                }
+                params.append('}');
+                StringBuilder raw = new StringBuilder("[[");
+                for(int j = 0; j < r.iterations.length; j++) raw.append(j > 0 ? ", " : "").append(r.iterations[j]);
+                raw.append("]]");
+                out.write(String.format(Locale.ROOT, "    {\"benchmark\" : \"%s\", \"mode\" : \"avgt\", \"threads\" : %d, "
+                                + "\"forks\" : 0, \"warmupIterations\" : %d, \"measurementIterations\" : %d, "
+                                + "\"params\" : %s, \"primaryMetric\" : {\"score\" : %s, \"scoreError\" : %s, "
+                                + "\"scoreUnit\" : \"ns/op\", \"rawData\" : %s}}%s\n",
+                        r.benchmark.name, r.benchmark.threads, warmup, measured, params, r.score,
+                        Double.isNaN(r.scoreError) ? "\"NaN\"" : r.scoreError, raw, i < results.size() - 1 ? "," : ""));
+            }
+            out.write("]\n");
+        }
+    }
+
+    private static final Pattern BASELINE_LINE = Pattern.compile(
+            "\"benchmark\"\\s*:\\s*\"([^\"]+)\".*?\"params\"\\s*:\\s*\\{([^}]*)}.*?\"score\"\\s*:\\s*([-0-9.eE]+)");
+    private static final Pattern BASELINE_PARAM = Pattern.compile("\"([^\"]+)\"\\s*:\\s*\"([^\"]*)\"");
+
+    // Scores by benchmark key from a file written by --json
+    static Map<String, Double> readScores(Path file) throws IOException {
+        Map<String, Double> scores = new HashMap<>();
+        for(String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            Matcher m = BASELINE_LINE.matcher(line);
+            if(!m.find()) continue;
+            Map<String, String> params = new LinkedHashMap<>();
+            Matcher p = BASELINE_PARAM.matcher(m.group(2));
+            while(p.find()) params.put(p.group(1), p.group(2));
+            scores.put(m.group(1) + params, Double.parseDouble(m.group(3)));
+        }
+        return scores;
+    }
+
+    // Prints each result against the baseline; false if any is slower by more than tolerance percent
+    static boolean compare(List<Result> results, Map<String, Double> baseline, double tolerance) {
+        boolean ok = true;
+        System.out.println();
+        for(Result r : results) {
+            Double before = baseline.get(r.benchmark.key());
+            if(before == null) {
+                System.out.printf("%-28s %-16s (not in baseline)%n", r.benchmark.name, formatParams(r.benchmark.params));
+                continue;
+            }
+            double change = (r.score - before) / before * 100;
+            boolean regressed = change > tolerance;
+            if(regressed) ok = false;
+            System.out.printf("%-28s %-16s %+7.1f%%%s%n", r.benchmark.name, formatParams(r.benchmark.params), change,
+                    regressed ? "  REGRESSION" : "");
+        }
+        return ok;
+    }
+
+    static String formatParams(Map<String, String> params) {
+        StringBuilder text = new StringBuilder();
+        for(Map.Entry<String, String> e : params.entrySet()) {
+            if(text.length() > 0) text.append(',');
+            text.append(e.getKey()).append('=').append(e.getValue());
+        }
+        return text.toString();
+    }
+}
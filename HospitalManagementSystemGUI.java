@@ -1,25 +1,107 @@
 import javax.swing.*;
-import javax.swing.table.DefaultTableModel;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.table.AbstractTableModel;
 import java.awt.*;
+import java.io.*;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.text.Normalizer;
+import java.time.DayOfWeek;
+import java.time.Duration;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.format.TextStyle;
 import java.util.*;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.function.LongSupplier;
+import java.util.function.ToIntFunction;
+import java.util.zip.CRC32;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
 
 // The full dynamic Hospital Management System with Swing GUI
 public class HospitalManagementSystemGUI {
 
+    static final DateTimeFormatter DATE_TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
+    static final Patient PROTOTYPE_PATIENT = new Patient(0, "XXXXXXXXXXXXXXXXXXXXXXXX", 0, Patient.genders.encode(""), "");
+    static final String DATA_DIR = "hms-data";
+    // EDT waits longer than this are reported as stalls, see EdtWatchdog
+    static final long EDT_STALL_MILLIS = 200;
+
     // --- Entities ---
 
     static class Patient {
-        private static int idCounter = 1;
+        private static final IdAllocator ids = new IdAllocator();
+        static final SymbolTable genders = new SymbolTable("gender");
         private int id;
         private String name;
         private int age;
-        private String gender;
+        private int gender;
         private String contact;
 
         public Patient(String name, int age, String gender, String contact) {
-            this.id = idCounter++;
+            this(ids.allocate(), name, age, genders.encode(gender), contact);
+        }
+
+        private Patient(int id, String name, int age, int gender, String contact) {
+            this.id = id;
+            ids.observe(id);
             this.name = name;
             this.age = age;
             this.gender = gender;
@@ -29,160 +111,5496 @@ public class HospitalManagementSystemGUI {
         public int getId() { return id; }
         public String getName() { return name; }
         public int getAge() { return age; }
-        public String getGender() { return gender; }
+        public String getGender() { return genders.decode(gender); }
+        public int getGenderCode() { return gender; }
         public String getContact() { return contact; }
 
         @Override
         public String toString() {
             return id + " - " + name;
         }
-    }
+    }
+
+    static class Appointment {
+        private static final IdAllocator ids = new IdAllocator();
+        static final SymbolTable doctors = new SymbolTable("doctor");
+        static final byte SCHEDULED = 0, CHECKED_IN = 1, NO_SHOW = 2;
+        private static final String[] STATUS_NAMES = {"Scheduled", "Checked in", "No-show"};
+        private int id;
+        private int patientId;
+        private int staffId;  // 0 when the doctor is free text that matches no single staff member
+        private int doctorName;
+        private LocalDateTime appointmentDateTime;
+        private volatile byte status;
+        private volatile byte remindersSent;  // bit per ReminderScheduler reminder kind
+
+        public Appointment(int patientId, int staffId, String doctorName, LocalDateTime appointmentDateTime) {
+            this(ids.allocate(), patientId, staffId, doctors.encode(doctorName), appointmentDateTime);
+        }
+
+        private Appointment(int id, int patientId, int staffId, int doctorName, LocalDateTime appointmentDateTime) {
+            this.id = id;
+            ids.observe(id);
+            this.patientId = patientId;
+            this.staffId = staffId;
+            this.doctorName = doctorName;
+            this.appointmentDateTime = appointmentDateTime;
+        }
+
+        public int getId() { return id; }
+        public int getPatientId() { return patientId; }
+        public int getStaffId() { return staffId; }
+        public String getDoctorName() { return doctors.decode(doctorName); }
+        public int getDoctorCode() { return doctorName; }
+        public LocalDateTime getAppointmentDateTime() { return appointmentDateTime; }
+        public byte getStatusCode() { return status; }
+        public String getStatus() { return STATUS_NAMES[status]; }
+        public byte getRemindersSent() { return remindersSent; }
+
+        // Returns false if the patient was already checked in; a no-show can still arrive late
+        public synchronized boolean checkIn() {
+            if(status == CHECKED_IN) return false;
+            status = CHECKED_IN;
+            return true;
+        }
+
+        // Returns false unless the appointment was still waiting for the patient
+        public synchronized boolean markNoShow() {
+            if(status != SCHEDULED) return false;
+            status = NO_SHOW;
+            return true;
+        }
+
+        // Returns false if that reminder was already sent
+        public synchronized boolean markReminderSent(int kind) {
+            if((remindersSent & (1 << kind)) != 0) return false;
+            remindersSent |= (byte) (1 << kind);
+            return true;
+        }
+
+        synchronized void restoreStatus(byte status, byte remindersSent) {
+            this.status = status;
+            this.remindersSent = remindersSent;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d - PatientID:%d Doctor:%s %s", id, patientId, getDoctorName(),
+                    appointmentDateTime.format(DATE_TIME_FORMAT));
+        }
+    }
+
+    // Append-only record history kept in segments of SEGMENT_SIZE records. Full segments are sealed
+    // into deflate-compressed blocks and only inflated (into a small LRU cache) when read.
+    // All access is synchronized on the EHR.
+    static class EHR {
+        static final int SEGMENT_SIZE = 256;
+        private static final int CACHED_SEGMENTS = 4;
+
+        private int patientId;
+        private ArrayList<byte[]> sealedSegments = new ArrayList<>();
+        private ArrayList<String> openSegment = new ArrayList<>();
+        private int size;
+        private Map<Integer, String[]> inflated = new LinkedHashMap<Integer, String[]>(8, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, String[]> eldest) {
+                return size() > CACHED_SEGMENTS;
+            }
+        };
+
+        public EHR(int patientId) {
+            this.patientId = patientId;
+        }
+
+        public int getPatientId() { return patientId; }
+        public synchronized int size() { return size; }
+
+        public synchronized void addRecord(String record) {
+            openSegment.add(record);
+            size++;
+            if(openSegment.size() == SEGMENT_SIZE) {
+                sealedSegments.add(compress(openSegment));
+                openSegment = new ArrayList<>();
+            }
+        }
+
+        public synchronized String getRecord(int index) {
+            if(index < 0 || index >= size) throw new IndexOutOfBoundsException("Record " + index + " of " + size);
+            int segment = index / SEGMENT_SIZE;
+            if(segment == sealedSegments.size()) return openSegment.get(index % SEGMENT_SIZE);
+            return inflated.computeIfAbsent(segment, s -> decompress(sealedSegments.get(s)))[index % SEGMENT_SIZE];
+        }
+
+        // Up to count records starting at from
+        public synchronized List<String> getRecords(int from, int count) {
+            int to = Math.min(size, from + count);
+            List<String> page = new ArrayList<>(Math.max(0, to - from));
+            for(int i = from; i < to; i++) page.add(getRecord(i));
+            return page;
+        }
+
+        private static byte[] compress(List<String> records) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try(DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes))) {
+                for(String record : records) PersistenceEngine.writeString(out, record);
+            } catch(IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            return bytes.toByteArray();
+        }
+
+        private static String[] decompress(byte[] block) {
+            String[] records = new String[SEGMENT_SIZE];
+            try(DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(block)))) {
+                for(int i = 0; i < records.length; i++) records[i] = PersistenceEngine.readString(in);
+            } catch(IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            return records;
+        }
+    }
+
+    // Amounts are held as a long count of minor units (paise), so sums are exact
+    static class Billing {
+        private static final IdAllocator ids = new IdAllocator();
+        private int billId;
+        private int patientId;
+        private long amount;
+        private LocalDateTime billingDate;
+        private volatile boolean paid;
+
+        public Billing(int patientId, long amount) {
+            this(ids.allocate(), patientId, amount, LocalDateTime.now(), false);
+        }
+
+        private Billing(int billId, int patientId, long amount, LocalDateTime billingDate, boolean paid) {
+            this.billId = billId;
+            ids.observe(billId);
+            this.patientId = patientId;
+            this.amount = amount;
+            this.billingDate = billingDate;
+            this.paid = paid;
+        }
+
+        public int getBillId() { return billId; }
+        public int getPatientId() { return patientId; }
+        public long getAmountMinor() { return amount; }
+        public LocalDateTime getBillingDate() { return billingDate; }
+        public boolean isPaid() { return paid; }
+
+        // Returns false if the bill was already paid
+        public synchronized boolean pay() {
+            if(paid) return false;
+            paid = true;
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d - PatientID:%d Amount:%s Date:%s Paid:%s", billId, patientId, formatAmount(amount),
+                    billingDate.format(DATE_TIME_FORMAT), paid ? "Yes" : "No");
+        }
+
+        // "1499.5" -> 149950 minor units. Throws NumberFormatException for malformed text and
+        // ArithmeticException for more than two decimal places or an amount that doesn't fit a long.
+        static long parseAmount(String text) {
+            return new BigDecimal(text).movePointRight(2).longValueExact();
+        }
+
+        static String formatAmount(long minor) {
+            return BigDecimal.valueOf(minor, 2).toPlainString();
+        }
+    }
+
+    // Stock is one AtomicLong holding on-hand (high 32 bits) and reserved (low 32 bits), so every
+    // movement is a single lock-free compare-and-set and the two can never be seen out of step.
+    // Available = on hand - reserved. Reservations hold stock for a dispense in progress and are
+    // not persisted; only on-hand survives a restart.
+    static class InventoryItem {
+        // Returned by adjust when the movement would leave negative on-hand, reserved or available stock
+        static final long REJECTED = -1L;
+
+        private static final IdAllocator ids = new IdAllocator();
+        static final SymbolTable units = new SymbolTable("unit");
+        private int itemId;
+        private String name;
+        private final AtomicLong stock = new AtomicLong();
+        private volatile int reorderLevel;
+        private int unit;
+
+        public InventoryItem(String name, int quantity, String unit) {
+            this(ids.allocate(), name, quantity, units.encode(unit));
+        }
+
+        private InventoryItem(int itemId, String name, int quantity, int unit) {
+            this.itemId = itemId;
+            ids.observe(itemId);
+            this.name = name;
+            this.stock.set(pack(quantity, 0));
+            this.unit = unit;
+        }
+
+        public int getItemId() { return itemId; }
+        public String getName() { return name; }
+        public int getQuantity() { return onHand(stock.get()); }
+        public int getReserved() { return reserved(stock.get()); }
+        public int getAvailable() { return available(stock.get()); }
+        public String getUnit() { return units.decode(unit); }
+        public int getUnitCode() { return unit; }
+
+        // Low-stock alerts fire when available stock is at or below this level
+        public int getReorderLevel() { return reorderLevel; }
+        int setReorderLevel(int level) {
+            int old = reorderLevel;
+            reorderLevel = level;
+            return old;
+        }
+
+        // Applies both deltas atomically and returns the previous packed state, or REJECTED.
+        // restock: (+n, 0)  dispense: (-n, 0)  reserve: (0, +n)  commit: (-n, -n)  release: (0, -n)
+        long adjust(int onHandDelta, int reservedDelta) {
+            while(true) {
+                long current = stock.get();
+                long onHand = (long) onHand(current) + onHandDelta;
+                long reserved = (long) reserved(current) + reservedDelta;
+                // onHand >= reserved keeps available stock non-negative, so a dispense can't take reserved stock
+                if(reserved < 0 || onHand < reserved || onHand > Integer.MAX_VALUE) return REJECTED;
+                if(stock.compareAndSet(current, pack((int) onHand, (int) reserved))) return current;
+            }
+        }
+
+        // Recovery sets the logged on-hand directly; reservations don't survive a restart
+        void restoreQuantity(int quantity) {
+            stock.set(pack(quantity, 0));
+        }
+
+        static long pack(int onHand, int reserved) { return (long) onHand << 32 | (reserved & 0xFFFFFFFFL); }
+        static int onHand(long state) { return (int) (state >>> 32); }
+        static int reserved(long state) { return (int) state; }
+        static int available(long state) { return onHand(state) - reserved(state); }
+    }
+
+    static class Staff {
+        private static final IdAllocator ids = new IdAllocator();
+        static final SymbolTable roles = new SymbolTable("role");
+        private int staffId;
+        private String name;
+        private int role;
+        private String contact;
+
+        public Staff(String name, String role, String contact) {
+            this(ids.allocate(), name, roles.encode(role), contact);
+        }
+
+        private Staff(int staffId, String name, int role, String contact) {
+            this.staffId = staffId;
+            ids.observe(staffId);
+            this.name = name;
+            this.role = role;
+            this.contact = contact;
+        }
+
+        public int getStaffId() { return staffId; }
+        public String getName() { return name; }
+        public String getRole() { return roles.decode(role); }
+        public int getRoleCode() { return role; }
+        public String getContact() { return contact; }
+
+        @Override
+        public String toString() {
+            return staffId + " - " + name + " (" + getRole() + ")";
+        }
+    }
+
+    // --- Stock Alerts ---
+
+    interface StockListener {
+        void lowStock(InventoryItem item, int available);
+        default void backInStock(InventoryItem item, int available) {}
+    }
+
+    // Publishes reorder-level crossings. A stock movement costs one comparison here; listeners run
+    // only when available stock drops to or below the item's reorder level, or climbs back above it.
+    // Each crossing is reported once, on the thread that made it. Crossings made concurrently may
+    // arrive out of order, so a listener that needs the current level should read it from the item.
+    static class StockAlerts {
+        private final List<StockListener> listeners = new CopyOnWriteArrayList<>();
+
+        public void addListener(StockListener listener) { listeners.add(listener); }
+
+        void moved(InventoryItem item, int availableBefore, int availableAfter) {
+            int level = item.getReorderLevel();
+            publish(item, availableBefore <= level, availableAfter <= level, availableAfter);
+        }
+
+        void levelChanged(InventoryItem item, int oldLevel, int newLevel) {
+            int available = item.getAvailable();
+            publish(item, available <= oldLevel, available <= newLevel, available);
+        }
+
+        private void publish(InventoryItem item, boolean wasLow, boolean isLow, int available) {
+            if(wasLow == isLow) return;
+            for(StockListener listener : listeners) {
+                if(isLow) listener.lowStock(item, available);
+                else listener.backInStock(item, available);
+            }
+        }
+    }
+
+    // --- Symbol Tables ---
+
+    // Interns the values of a low-cardinality field (gender, doctor, unit, role) as dense int codes,
+    // so each record holds a 4-byte code instead of its own String and equality checks compare ints.
+    // Codes are given out in first-seen order and never change or get reused. The persistence layer
+    // logs each new symbol (from inside define, before any record can carry its code) and writes the
+    // tables into snapshots, so a code means the same symbol after a restart. Encoding a known value
+    // and decoding are lock-free; only defining a new symbol locks.
+    static class SymbolTable {
+        interface Listener {
+            void defined(SymbolTable table, int code, String symbol);
+        }
+
+        private final String name;
+        private final ConcurrentHashMap<String, Integer> codes = new ConcurrentHashMap<>();
+        // Written before the code is published in codes, so anyone holding a code can read its symbol
+        private volatile String[] symbols = new String[16];
+        private volatile int size;
+        private volatile Listener listener;
+
+        SymbolTable(String name) {
+            this.name = name;
+        }
+
+        public String getName() { return name; }
+        public int size() { return size; }
+
+        public int encode(String symbol) {
+            Integer code = codes.get(symbol);
+            return code != null ? code : define(symbol);
+        }
+
+        public String decode(int code) {
+            return symbols[code];
+        }
+
+        // The symbol's code, or -1 if no record has used it; for filters that must not add symbols
+        public int codeOf(String symbol) {
+            Integer code = codes.get(symbol);
+            return code == null ? -1 : code;
+        }
+
+        // Every symbol in code order
+        public List<String> symbols() {
+            int n = size;
+            return Arrays.asList(Arrays.copyOf(symbols, n));
+        }
+
+        private synchronized int define(String symbol) {
+            Integer existing = codes.get(symbol);
+            if(existing != null) return existing;
+            int code = size;
+            put(code, symbol);
+            Listener l = listener;
+            if(l != null) l.defined(this, code, symbol);
+            codes.put(symbol, code);
+            return code;
+        }
+
+        // Puts a symbol back at the code it was persisted with; a no-op if it's already there
+        synchronized void restore(int code, String symbol) {
+            put(code, symbol);
+            codes.put(symbol, code);
+        }
+
+        void setListener(Listener listener) { this.listener = listener; }
+
+        private void put(int code, String symbol) {
+            String[] current = symbols;
+            if(code >= current.length) current = Arrays.copyOf(current, Math.max(code + 1, current.length * 2));
+            current[code] = symbol;
+            symbols = current;
+            if(code >= size) size = code + 1;
+        }
+    }
+
+    // --- Repositories ---
+
+    // Hands out ids from a shared counter in blocks of BLOCK_SIZE per thread, so a thread creating
+    // many entities touches the shared AtomicInteger once per block. Ids are unique but, across
+    // threads, neither gap-free nor in creation order; a restart skips the unused rest of each block.
+    static class IdAllocator {
+        static final int BLOCK_SIZE = 64;
+
+        private final AtomicInteger next = new AtomicInteger(1);
+        private final AtomicInteger generation = new AtomicInteger();
+        // {next id, end of block, generation the block was reserved in}
+        private final ThreadLocal<int[]> block = ThreadLocal.withInitial(() -> new int[]{0, 0, -1});
+
+        public int allocate() {
+            int[] b = block.get();
+            int current = generation.get();
+            if(b[0] == b[1] || b[2] != current) {
+                b[2] = current;
+                b[0] = next.getAndAdd(BLOCK_SIZE);
+                b[1] = b[0] + BLOCK_SIZE;
+            }
+            return b[0]++;
+        }
+
+        // Keeps future ids above one that was restored from disk
+        public void observe(int id) {
+            if(next.get() <= id) {
+                next.accumulateAndGet(id + 1, Math::max);
+                generation.incrementAndGet();
+            }
+        }
+
+        // First id no thread has reserved yet
+        public int peek() { return next.get(); }
+
+        public void reset(int value) {
+            next.set(value);
+            generation.incrementAndGet();
+        }
+    }
+
+    interface RepositoryListener<T> {
+        void added(T entity);
+        default void updated(T entity) {}
+    }
+
+    // Thread-safe store for one entity type. Ids are small and dense (they come from IdAllocator), so
+    // entities live in an array indexed by id instead of a hash map: no boxed keys, no map nodes,
+    // about 4 bytes per slot. The array is split into chunks of CHUNK_SIZE slots that are allocated
+    // as ids reach them, so growing never copies entities. Slots are read and written through
+    // AtomicReferenceArray, so writers on different ids never block each other or readers.
+    // Iterating values() walks ids in ascending order, never throws and sees everything added
+    // before it started; snapshot() gives a stable list to count and walk.
+    // Listeners run on the thread that made the change.
+    static class Repository<T> {
+        private static final int CHUNK_BITS = 12;
+        private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+        private final ToIntFunction<T> idOf;
+        // Copy-on-write directory of chunks; replaced under the repository lock when a chunk is added
+        private volatile AtomicReferenceArray<T>[] chunks = newDirectory(0);
+        private final AtomicInteger size = new AtomicInteger();
+        private final List<RepositoryListener<T>> listeners = new CopyOnWriteArrayList<>();
+
+        public Repository(ToIntFunction<T> idOf) {
+            this.idOf = idOf;
+        }
+
+        public T get(int id) {
+            AtomicReferenceArray<T> chunk = chunk(id);
+            return chunk == null ? null : chunk.get(id & (CHUNK_SIZE - 1));
+        }
+
+        public int size() { return size.get(); }
+        public int idOf(T entity) { return idOf.applyAsInt(entity); }
+        public Collection<T> values() { return values; }
+        public List<T> snapshot() { return new ArrayList<>(values); }
+
+        public void add(T entity) {
+            int id = idOf.applyAsInt(entity);
+            if(chunkForWrite(id).getAndSet(id & (CHUNK_SIZE - 1), entity) == null) size.incrementAndGet();
+            for(RepositoryListener<T> listener : listeners) listener.added(entity);
+        }
+
+        // Tells listeners that an entity already in the repository changed
+        public void updated(T entity) {
+            for(RepositoryListener<T> listener : listeners) listener.updated(entity);
+        }
+
+        public T computeIfAbsent(int id, IntFunction<T> factory) {
+            T existing = get(id);
+            if(existing != null) return existing;
+            T created = factory.apply(id);
+            AtomicReferenceArray<T> chunk = chunkForWrite(id);
+            if(!chunk.compareAndSet(id & (CHUNK_SIZE - 1), null, created)) return chunk.get(id & (CHUNK_SIZE - 1));
+            size.incrementAndGet();
+            for(RepositoryListener<T> listener : listeners) listener.added(created);
+            return created;
+        }
+
+        public void addListener(RepositoryListener<T> listener) { listeners.add(listener); }
+
+        private AtomicReferenceArray<T> chunk(int id) {
+            AtomicReferenceArray<T>[] directory = chunks;
+            int index = id >>> CHUNK_BITS;
+            return index < directory.length ? directory[index] : null;
+        }
+
+        private AtomicReferenceArray<T> chunkForWrite(int id) {
+            if(id < 0) throw new IllegalArgumentException("Negative id " + id);
+            AtomicReferenceArray<T> chunk = chunk(id);
+            if(chunk != null) return chunk;
+            synchronized(this) {
+                chunk = chunk(id);
+                if(chunk != null) return chunk;
+                int index = id >>> CHUNK_BITS;
+                AtomicReferenceArray<T>[] directory = Arrays.copyOf(chunks, Math.max(chunks.length, index + 1));
+                chunk = new AtomicReferenceArray<>(CHUNK_SIZE);
+                directory[index] = chunk;
+                chunks = directory;
+                return chunk;
+            }
+        }
+
+        private static <T> AtomicReferenceArray<T>[] newDirectory(int length) {
+            @SuppressWarnings("unchecked")
+            AtomicReferenceArray<T>[] directory = (AtomicReferenceArray<T>[]) new AtomicReferenceArray<?>[length];
+            return directory;
+        }
+
+        // Read-only view in id order, skipping empty slots
+        private final Collection<T> values = new AbstractCollection<T>() {
+            @Override
+            public int size() { return size.get(); }
+
+            @Override
+            public Iterator<T> iterator() {
+                AtomicReferenceArray<T>[] directory = chunks;
+                return new Iterator<T>() {
+                    private int chunkIndex, slot = -1;
+                    private T next = advance();
+
+                    private T advance() {
+                        for(; chunkIndex < directory.length; chunkIndex++, slot = -1) {
+                            AtomicReferenceArray<T> chunk = directory[chunkIndex];
+                            if(chunk == null) continue;
+                            while(++slot < CHUNK_SIZE) {
+                                T value = chunk.get(slot);
+                                if(value != null) return value;
+                            }
+                        }
+                        return null;
+                    }
+
+                    @Override
+                    public boolean hasNext() { return next != null; }
+
+                    @Override
+                    public T next() {
+                        if(next == null) throw new NoSuchElementException();
+                        T value = next;
+                        next = advance();
+                        return value;
+                    }
+                };
+            }
+        };
+    }
+
+    // Thread-safe long counters indexed by a dense int id (e.g. a patient id), stored in chunked
+    // AtomicLongArrays like Repository stores entities: 8 bytes per id, no boxing, no map nodes.
+    static class DenseCounters {
+        private static final int CHUNK_BITS = 12;
+        private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+        private volatile AtomicLongArray[] chunks = new AtomicLongArray[0];
+
+        public long get(int id) {
+            AtomicLongArray[] directory = chunks;
+            int index = id >>> CHUNK_BITS;
+            if(index >= directory.length || directory[index] == null) return 0;
+            return directory[index].get(id & (CHUNK_SIZE - 1));
+        }
+
+        public void add(int id, long delta) {
+            if(id < 0) throw new IllegalArgumentException("Negative id " + id);
+            AtomicLongArray[] directory = chunks;
+            int index = id >>> CHUNK_BITS;
+            AtomicLongArray chunk = index < directory.length ? directory[index] : null;
+            if(chunk == null) chunk = allocate(index);
+            chunk.addAndGet(id & (CHUNK_SIZE - 1), delta);
+        }
+
+        private synchronized AtomicLongArray allocate(int index) {
+            if(index < chunks.length && chunks[index] != null) return chunks[index];
+            AtomicLongArray[] directory = Arrays.copyOf(chunks, Math.max(chunks.length, index + 1));
+            directory[index] = new AtomicLongArray(CHUNK_SIZE);
+            chunks = directory;
+            return directory[index];
+        }
+    }
+
+    // Forwards repository events to the EDT, where the table models and indexes live. Events from any
+    // number of threads are queued and handed over in batches with at most one drain pending per
+    // listener, so a burst of changes costs the EDT one pass instead of one task per entity. A pass
+    // takes at most MAX_BATCH events and queues another for the rest, letting input and painting in
+    // between.
+    static <T> RepositoryListener<T> onEdt(Consumer<List<T>> added) {
+        return onEdt(added, updated -> {});
+    }
+
+    static <T> RepositoryListener<T> onEdt(Consumer<List<T>> added, Consumer<List<T>> updated) {
+        return new EdtBatcher<>(added, updated);
+    }
+
+    static class EdtBatcher<T> implements RepositoryListener<T> {
+        static final int MAX_BATCH = 1000;
+
+        private final Consumer<List<T>> onAdded, onUpdated;
+        private final Queue<T> added = new ConcurrentLinkedQueue<>();
+        private final Queue<T> updated = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        EdtBatcher(Consumer<List<T>> onAdded, Consumer<List<T>> onUpdated) {
+            this.onAdded = onAdded;
+            this.onUpdated = onUpdated;
+        }
+
+        public void added(T entity) {
+            added.add(entity);
+            schedule();
+        }
+
+        public void updated(T entity) {
+            updated.add(entity);
+            schedule();
+        }
+
+        private void schedule() {
+            if(scheduled.compareAndSet(false, true)) SwingUtilities.invokeLater(this::drain);
+        }
+
+        private void drain() {
+            // Cleared first, so events queued while this runs schedule another drain
+            scheduled.set(false);
+            List<T> batch = take(added);
+            if(!batch.isEmpty()) onAdded.accept(batch);
+            batch = take(updated);
+            if(!batch.isEmpty()) onUpdated.accept(batch);
+            if(!added.isEmpty() || !updated.isEmpty()) schedule();
+        }
+
+        private static <T> List<T> take(Queue<T> queue) {
+            List<T> batch = new ArrayList<>();
+            for(T entity; batch.size() < MAX_BATCH && (entity = queue.poll()) != null; ) batch.add(entity);
+            return batch;
+        }
+    }
+
+    static void runOnEdt(Runnable task) {
+        if(SwingUtilities.isEventDispatchThread()) task.run();
+        else SwingUtilities.invokeLater(task);
+    }
+
+    // --- Managers / Models ---
+    private final Repository<Patient> patients = new Repository<>(Patient::getId);
+    private final Repository<Appointment> appointments = new Repository<>(Appointment::getId);
+    private final Repository<EHR> ehrRecords = new Repository<>(EHR::getPatientId);
+    private final Repository<Billing> bills = new Repository<>(Billing::getBillId);
+    private final Repository<InventoryItem> inventoryItems = new Repository<>(InventoryItem::getItemId);
+    private final Repository<Staff> staffMembers = new Repository<>(Staff::getStaffId);
+    private final Metrics metrics = new Metrics();
+    private final Roster roster = new Roster();
+
+    // --- Persistence ---
+
+    // Write-ahead log plus periodic snapshots for the repositories.
+    //
+    // Data directory layout:
+    //   snapshot-<n>.bin   full state, covers every log segment numbered below n
+    //   wal-<n>.log        [int length][int crc32][payload] records, payload = type byte + fields
+    //   columns/           columnar copy of the latest snapshot, see ColumnarStore
+    //   lock               held locked while a process has the directory open, so two can't clobber each other's segments
+    //
+    // Every mutation is appended to the current log segment by a single writer thread that drains
+    // whatever is queued, writes it with one gathering write and forces it once (group commit).
+    // A failed write or force stops the log for good: the batch may be torn, and recovery cuts the
+    // segment at the first bad record, so nothing after it may be acknowledged. The failed batch,
+    // everything queued behind it and every later append complete exceptionally instead.
+    // Startup loads the newest snapshot and replays only the segments after it; a torn
+    // record at the end of the last segment is truncated away.
+    //
+    // The log* methods are thread-safe. Changes to existing entities are logged after applying them,
+    // under whatever lock orders changes to the same entity. A new entity is logged first and only
+    // added to its repository once the record is on disk, all between beginChange and endChange.
+    // Snapshots roll the log first, once no change is between the two, and then read the live
+    // repositories without stopping writers, so a change can be both in a snapshot and in the
+    // following segment; every record type is therefore idempotent on replay.
+    static class PersistenceEngine implements Closeable {
+        private static final int SNAPSHOT_MAGIC = 0x484D5353; // "HMSS"
+        private static final int FORMAT_VERSION = 1;
+        private static final int SNAPSHOT_EVERY = 100_000;
+        private static final int MAX_BATCH = 4096;
+        private static final int MAX_RECORD_SIZE = 16 << 20;
+
+        private static final byte PATIENT = 1;
+        private static final byte APPOINTMENT = 2;
+        private static final byte EHR_RECORD = 3;
+        private static final byte BILL = 4;
+        private static final byte BILL_PAID = 5;
+        private static final byte INVENTORY_ITEM = 6;
+        private static final byte INVENTORY_QUANTITY = 7;
+        private static final byte STAFF = 8;
+        private static final byte REORDER_LEVEL = 9;
+        private static final byte SYMBOL = 10;
+        private static final byte SHIFT = 11;
+        private static final byte SHIFTS_CLEARED = 12;
+        private static final byte APPOINTMENT_STATUS = 13;
+
+        // Persisted table ids are positions in this array
+        private static final SymbolTable[] SYMBOL_TABLES = {Patient.genders, Appointment.doctors, InventoryItem.units, Staff.roles};
+
+        private static class PendingWrite {
+            final ByteBuffer buffer;
+            final CompletableFuture<Void> done = new CompletableFuture<>();
+            PendingWrite(ByteBuffer buffer) { this.buffer = buffer; }
+        }
+
+        private static final PendingWrite STOP = new PendingWrite(null);
+
+        private final HospitalManagementSystemGUI app;
+        private final Path dir;
+        private final LinkedBlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<>();
+        private final Object channelLock = new Object();
+        private final Object snapshotLock = new Object();
+        private final ByteArrayOutputStream scratch = new ByteArrayOutputStream(256);
+        private final DataOutputStream scratchOut = new DataOutputStream(scratch);
+        private final CRC32 crc = new CRC32();
+        private final ExecutorService snapshotter = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "hms-snapshot");
+            t.setDaemon(true);
+            return t;
+        });
+        private final AtomicBoolean snapshotPending = new AtomicBoolean();
+        // Shared from logging a new entity until it is in its repository, exclusive while a snapshot
+        // rolls the log, so everything logged to the segments a snapshot replaces is in what it reads
+        private final ReentrantReadWriteLock changeGate = new ReentrantReadWriteLock(true);
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private FileChannel channel;
+        private FileChannel lockChannel;
+        private long segment;
+        private int recordsSinceSnapshot;
+        private int snapshotHolds;  // automatic snapshots wait while this is above zero
+        private Thread writer;
+        private volatile IOException failure;  // set once the writer has stopped on an error
+        private final LatencyHistogram commitLatency;
+        private final LongAdder recordsWritten;
+
+        public PersistenceEngine(HospitalManagementSystemGUI app, Path dir) {
+            this.app = app;
+            this.dir = dir;
+            this.commitLatency = app.metrics.histogram("wal.commit");
+            this.recordsWritten = app.metrics.counter("wal.records");
+        }
+
+        // Records waiting for the writer thread
+        public int queuedWrites() { return queue.size(); }
+
+        public void beginChange() { changeGate.readLock().lock(); }
+        public void endChange() { changeGate.readLock().unlock(); }
+
+        // Loads the newest snapshot, replays the log tail and opens the last segment for appending.
+        // An unreadable snapshot is an IOException: there is no older state to start from instead.
+        // Fails with an IOException if another process has the directory open.
+        public void recover() throws IOException {
+            Files.createDirectories(dir);
+            lock(false);
+            try {
+                // left over from a snapshot that was interrupted by the process exiting
+                try(DirectoryStream<Path> files = Files.newDirectoryStream(dir, "snapshot-*.bin.tmp")) {
+                    for(Path file : files) Files.delete(file);
+                }
+                long validLength = load();
+                channel = FileChannel.open(segmentPath(segment), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                channel.truncate(validLength);
+                channel.position(validLength);
+            } catch(IOException | RuntimeException ex) {
+                unlock();
+                throw ex;
+            }
+            writer = new Thread(this::writeLoop, "hms-wal-writer");
+            writer.setDaemon(true);
+            writer.start();
+            for(SymbolTable table : SYMBOL_TABLES) table.setListener(this::logSymbol);
+        }
+
+        // Loads the same state as recover() but changes nothing on disk: no truncation, no writer and
+        // no snapshots, so a reader such as export can't disturb the data it reads. It shares the
+        // directory lock with other readers; close() releases it.
+        public void read() throws IOException {
+            if(!Files.isDirectory(dir)) return;
+            lock(true);
+            try {
+                load();
+            } catch(IOException | RuntimeException ex) {
+                unlock();
+                throw ex;
+            }
+        }
+
+        // Loads the newest snapshot and replays the segments after it; returns the valid length of the last one
+        private long load() throws IOException {
+            // Taking a snapshot deletes the ones before it and the segments they cover, so there is
+            // nothing to fall back on: starting without the newest one would lose most of the data
+            long snapshotSegment = -1;
+            List<Long> snapshots = listSegments("snapshot-", ".bin");
+            if(!snapshots.isEmpty()) {
+                snapshotSegment = snapshots.get(snapshots.size() - 1);
+                Path file = dir.resolve("snapshot-" + snapshotSegment + ".bin");
+                try {
+                    loadSnapshot(file);
+                } catch(IOException | RuntimeException ex) {
+                    throw new IOException("Snapshot " + file + " is unreadable; restore it from a backup before starting: " + ex, ex);
+                }
+            }
+
+            segment = Math.max(snapshotSegment, 0);
+            long validLength = 0;
+            for(long n : listSegments("wal-", ".log")) {
+                if(n < snapshotSegment) continue;
+                segment = n;
+                validLength = replay(dir.resolve("wal-" + n + ".log"));
+            }
+            return validLength;
+        }
+
+        // Exclusive to write, shared to read. The lock is released when the process exits, however it exits
+        private void lock(boolean shared) throws IOException {
+            lockChannel = FileChannel.open(dir.resolve("lock"), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            FileLock lock;
+            try {
+                lock = lockChannel.tryLock(0, Long.MAX_VALUE, shared);
+            } catch(OverlappingFileLockException ex) {
+                lock = null;
+            }
+            if(lock == null) {
+                unlock();
+                throw new IOException(dir.toAbsolutePath() + " is in use by another Hospital Management System process; close it first");
+            }
+        }
+
+        private void unlock() {
+            if(lockChannel == null) return;
+            try {
+                lockChannel.close();
+            } catch(IOException ex) {
+                System.err.println("Error releasing " + dir.resolve("lock") + ": " + ex);
+            }
+            lockChannel = null;
+        }
+
+        public synchronized CompletableFuture<Void> logPatient(Patient p) {
+            begin(PATIENT);
+            try { writePatient(scratchOut, p); } catch(IOException ex) { throw new UncheckedIOException(ex); }
+            return commit();
+        }
+
+        public synchronized CompletableFuture<Void> logAppointment(Appointment a) {
+            begin(APPOINTMENT);
+            try { writeAppointment(scratchOut, a); } catch(IOException ex) { throw new UncheckedIOException(ex); }
+            return commit();
+        }
+
+        // Logs the appointment's current status and sent reminders, so replaying it is idempotent
+        public synchronized CompletableFuture<Void> logAppointmentStatus(Appointment a) {
+            begin(APPOINTMENT_STATUS);
+            try {
+                scratchOut.writeInt(a.getId());
+                scratchOut.writeByte(a.getStatusCode());
+                scratchOut.writeByte(a.getRemindersSent());
+            } catch(IOException ex) { throw new UncheckedIOException(ex); }
+            return commit();
+        }
+
+        // recordIndex is the position the record was appended at, so replay can skip records a snapshot already has
+        public synchronized CompletableFuture<Void> logEhrRecord(int patientId, int recordIndex, String record) {
+            begin(EHR_RECORD);
+            try {
+                scratchOut.writeInt(patientId);
+                scratchOut.writeInt(recordIndex);
+                writeString(scratchOut, record);
+            } catch(IOException ex) { throw new UncheckedIOException(ex); }
+            return commit();
+        }
+
+        public synchronized CompletableFuture<Void> logShift(int staffId, DayOfWeek day, int fromSlot, int toSlot) {
+            begin(SHIFT);
+            try {
+                scratchOut.writeInt(staffId);
+                scratchOut.writeByte(day.getValue());
+                scratchOut.writeInt(fromSlot);
+                scratchOut.writeInt(toSlot);
+            } catch(IOException ex) { throw new UncheckedIOException(ex); }
+            return commit();
+        }
+
+        public synchronized CompletableFuture<Void> logShiftsCleared(int staffId) {
+            begin(SHIFTS_CLEARED);
+            try { scratchOut.writeInt(staffId); } catch(IOException ex) { throw new UncheckedIOException(ex); }
+            return commit();
+        }
+
+        public synchronized CompletableFuture<Void> logBill(Billing b) {
+            begin(BILL);
+            try { writeBill(scratchOut, b); } catch(IOException ex) { throw new UncheckedIOException(ex); }
+            return commit();
+        }
+
+        public synchronized CompletableFuture<Void> logBillPaid(Billing b) {
+            begin(BILL_PAID);
+            try { scratchOut.writeInt(b.getBillId()); } catch(IOException ex) { throw new UncheckedIOException(ex); }
+            return commit();
+        }
+
+        public synchronized CompletableFuture<Void> logInventoryItem(InventoryItem item) {
+            begin(INVENTORY_ITEM);
+            try { writeInventoryItem(scratchOut, item); } catch(IOException ex) { throw new UncheckedIOException(ex); }
+            return commit();
+        }
+
+        // Logs the item's current quantity, so replaying it is idempotent
+        public synchronized CompletableFuture<Void> logInventoryQuantity(InventoryItem item) {
+            begin(INVENTORY_QUANTITY);
+            try {
+                scratchOut.writeInt(item.getItemId());
+                scratchOut.writeInt(item.getQuantity());
+            } catch(IOException ex) { throw new UncheckedIOException(ex); }
+            return commit();
+        }
+
+        public synchronized CompletableFuture<Void> logReorderLevel(InventoryItem item) {
+            begin(REORDER_LEVEL);
+            try {
+                scratchOut.writeInt(item.getItemId());
+                scratchOut.writeInt(item.getReorderLevel());
+            } catch(IOException ex) { throw new UncheckedIOException(ex); }
+            return commit();
+        }
+
+        public synchronized CompletableFuture<Void> logStaff(Staff s) {
+            begin(STAFF);
+            try { writeStaff(scratchOut, s); } catch(IOException ex) { throw new UncheckedIOException(ex); }
+            return commit();
+        }
+
+        // Called from inside SymbolTable.define, so it is queued ahead of every record carrying the new code
+        public synchronized CompletableFuture<Void> logSymbol(SymbolTable table, int code, String symbol) {
+            begin(SYMBOL);
+            try {
+                scratchOut.writeByte(Arrays.asList(SYMBOL_TABLES).indexOf(table));
+                scratchOut.writeInt(code);
+                writeString(scratchOut, symbol);
+            } catch(IOException ex) { throw new UncheckedIOException(ex); }
+            return commit();
+        }
+
+        private void begin(byte type) {
+            scratch.reset();
+            scratch.write(type);
+        }
+
+        private CompletableFuture<Void> commit() {
+            byte[] payload = scratch.toByteArray();
+            crc.reset();
+            crc.update(payload);
+            ByteBuffer buffer = ByteBuffer.allocate(8 + payload.length);
+            buffer.putInt(payload.length).putInt((int) crc.getValue()).put(payload).flip();
+            PendingWrite write = enqueue(new PendingWrite(buffer));
+            if(++recordsSinceSnapshot >= SNAPSHOT_EVERY && snapshotHolds == 0 && !closed.get() && snapshotPending.compareAndSet(false, true)) {
+                snapshotter.execute(() -> {
+                    try {
+                        snapshot();
+                    } catch(IOException | UncheckedIOException ex) {
+                        System.err.println("Snapshot failed, continuing on the log: " + ex);
+                    } finally {
+                        snapshotPending.set(false);
+                    }
+                });
+            }
+            return write.done;
+        }
+
+        // Queues a write for the writer thread, or fails it if the log has stopped. The failure is
+        // set before the writer drains the queue, so a write added meanwhile is either drained and
+        // failed there or found again here.
+        private PendingWrite enqueue(PendingWrite write) {
+            IOException stopped = failure;
+            if(stopped == null) {
+                queue.add(write);
+                stopped = failure;
+                if(stopped == null || !queue.remove(write)) return write;
+            }
+            write.done.completeExceptionally(stopped);
+            return write;
+        }
+
+        // Holds automatic snapshots off, for a bulk load that would otherwise trigger one every
+        // SNAPSHOT_EVERY records, until the matching resumeSnapshots()
+        public synchronized void suspendSnapshots() {
+            snapshotHolds++;
+        }
+
+        // Lets automatic snapshots run again, first taking the one that was held off if it is due
+        public void resumeSnapshots() {
+            boolean due;
+            synchronized(this) {
+                due = --snapshotHolds == 0 && recordsSinceSnapshot >= SNAPSHOT_EVERY && !closed.get();
+            }
+            if(!due) return;
+            try {
+                snapshot();
+            } catch(IOException | UncheckedIOException ex) {
+                System.err.println("Snapshot failed, continuing on the log: " + ex);
+            }
+        }
+
+        // Waits until everything appended so far is on disk
+        public void sync() {
+            PendingWrite barrier = enqueue(new PendingWrite(ByteBuffer.allocate(0)));
+            try {
+                barrier.done.join();
+            } catch(CompletionException ex) {
+                throw new UncheckedIOException("Write-ahead log stopped after a write failure", (IOException) ex.getCause());
+            }
+        }
+
+        // Rolls the log to a new segment and writes the full state as the snapshot for that segment
+        public void snapshot() throws IOException {
+            synchronized(snapshotLock) {
+                long next;
+                changeGate.writeLock().lock();
+                try {
+                    synchronized(this) {
+                        sync();
+                        next = segment + 1;
+                        synchronized(channelLock) {
+                            channel.close();
+                            channel = FileChannel.open(segmentPath(next), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                    StandardOpenOption.TRUNCATE_EXISTING);
+                            segment = next;
+                        }
+                        recordsSinceSnapshot = 0;
+                    }
+                } finally {
+                    changeGate.writeLock().unlock();
+                }
+
+                Path tmp = dir.resolve("snapshot-" + next + ".bin.tmp");
+                try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+                    writeSnapshot(out);
+                }
+                try(FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                    ch.force(true);
+                }
+                Files.move(tmp, dir.resolve("snapshot-" + next + ".bin"),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                try {
+                    ColumnarStore.write(dir.resolve("columns"), app.patients.snapshot(), app.appointments.snapshot(),
+                            app.bills.snapshot());
+                } catch(IOException ex) {
+                    System.err.println("Columnar snapshot failed: " + ex);
+                }
+
+                for(long n : listSegments("snapshot-", ".bin")) {
+                    if(n < next) Files.deleteIfExists(dir.resolve("snapshot-" + n + ".bin"));
+                }
+                for(long n : listSegments("wal-", ".log")) {
+                    if(n < next) Files.deleteIfExists(segmentPath(n));
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            // Under the lock commit() holds, so a commit either queues its snapshot before the
+            // shutdown or sees closed and skips it
+            synchronized(this) {
+                if(!closed.compareAndSet(false, true)) return;
+                snapshotter.shutdown();
+            }
+            // Opened with read(), or never opened: there is nothing to save
+            if(writer == null) {
+                unlock();
+                return;
+            }
+            try {
+                snapshotter.awaitTermination(1, TimeUnit.MINUTES);
+                boolean dirty;
+                synchronized(this) { dirty = recordsSinceSnapshot > 0; }
+                if(dirty) snapshot();
+                else sync();
+            } catch(IOException | UncheckedIOException | InterruptedException ex) {
+                System.err.println("Final snapshot failed, the log is still intact: " + ex);
+            }
+            queue.add(STOP);
+            try {
+                writer.join();
+                synchronized(channelLock) { channel.close(); }
+            } catch(InterruptedException | IOException ex) {
+                System.err.println("Error closing write-ahead log: " + ex);
+            }
+            unlock();
+        }
+
+        private void writeLoop() {
+            List<PendingWrite> batch = new ArrayList<>();
+            while(true) {
+                try {
+                    batch.add(queue.take());
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                    boolean stop = batch.remove(STOP);
+                    ByteBuffer[] buffers = new ByteBuffer[batch.size()];
+                    long remaining = 0;
+                    for(int i = 0; i < buffers.length; i++) {
+                        buffers[i] = batch.get(i).buffer;
+                        remaining += buffers[i].remaining();
+                    }
+                    long start = System.nanoTime();
+                    synchronized(channelLock) {
+                        while(remaining > 0) remaining -= channel.write(buffers);
+                        channel.force(false);
+                    }
+                    commitLatency.record(System.nanoTime() - start);
+                    recordsWritten.add(batch.size());
+                    for(PendingWrite write : batch) write.done.complete(null);
+                    if(stop) return;
+                } catch(InterruptedException ex) {
+                    fail(batch, new InterruptedIOException("Write-ahead log writer interrupted"));
+                    return;
+                } catch(IOException ex) {
+                    System.err.println("Write-ahead log append failed, no more changes will be saved: " + ex);
+                    fail(batch, ex);
+                    return;
+                }
+                batch.clear();
+            }
+        }
+
+        // Fails the batch and whatever is still queued, STOP included; close() only waits for this thread
+        private void fail(List<PendingWrite> batch, IOException ex) {
+            failure = ex;
+            queue.drainTo(batch);
+            for(PendingWrite write : batch) write.done.completeExceptionally(ex);
+        }
+
+        // Applies every intact record of a segment and returns the length of its valid prefix
+        private long replay(Path file) throws IOException {
+            long valid = 0;
+            byte[] payload = new byte[256];
+            try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+                while(true) {
+                    int length, expectedCrc;
+                    try {
+                        length = in.readInt();
+                        expectedCrc = in.readInt();
+                        if(length <= 0 || length > MAX_RECORD_SIZE) break;
+                        if(payload.length < length) payload = new byte[Math.max(length, payload.length * 2)];
+                        in.readFully(payload, 0, length);
+                    } catch(EOFException ex) {
+                        break;
+                    }
+                    crc.reset();
+                    crc.update(payload, 0, length);
+                    if((int) crc.getValue() != expectedCrc) break;
+                    apply(new DataInputStream(new ByteArrayInputStream(payload, 0, length)));
+                    valid += 8 + length;
+                    recordsSinceSnapshot++;
+                }
+            }
+            return valid;
+        }
+
+        private void apply(DataInputStream in) throws IOException {
+            byte type = in.readByte();
+            switch(type) {
+                case SYMBOL:
+                    SYMBOL_TABLES[in.readByte()].restore(in.readInt(), readString(in));
+                    break;
+                case PATIENT:
+                    app.patients.add(readPatient(in));
+                    break;
+                case APPOINTMENT:
+                    app.appointments.add(readAppointment(in));
+                    break;
+                case APPOINTMENT_STATUS: {
+                    Appointment a = app.appointments.get(in.readInt());
+                    byte status = in.readByte(), reminders = in.readByte();
+                    if(a != null) a.restoreStatus(status, reminders);
+                    break;
+                }
+                case SHIFT: {
+                    int staffId = in.readInt();
+                    DayOfWeek day = DayOfWeek.of(in.readByte());
+                    app.roster.addShift(staffId, day, in.readInt(), in.readInt());
+                    break;
+                }
+                case SHIFTS_CLEARED:
+                    app.roster.clearShifts(in.readInt());
+                    break;
+                case EHR_RECORD: {
+                    EHR ehr = app.ehrRecords.computeIfAbsent(in.readInt(), EHR::new);
+                    int recordIndex = in.readInt();
+                    String record = readString(in);
+                    if(recordIndex >= ehr.size()) ehr.addRecord(record);
+                    break;
+                }
+                case BILL:
+                    app.bills.add(readBill(in));
+                    break;
+                case BILL_PAID: {
+                    Billing b = app.bills.get(in.readInt());
+                    if(b != null) b.pay();
+                    break;
+                }
+                case INVENTORY_ITEM:
+                    app.inventoryItems.add(readInventoryItem(in));
+                    break;
+                case INVENTORY_QUANTITY: {
+                    InventoryItem item = app.inventoryItems.get(in.readInt());
+                    int quantity = in.readInt();
+                    if(item != null) item.restoreQuantity(quantity);
+                    break;
+                }
+                case REORDER_LEVEL: {
+                    InventoryItem item = app.inventoryItems.get(in.readInt());
+                    int level = in.readInt();
+                    if(item != null) item.setReorderLevel(level);
+                    break;
+                }
+                case STAFF:
+                    app.staffMembers.add(readStaff(in));
+                    break;
+                default:
+                    throw new IOException("Unknown log record type " + type);
+            }
+        }
+
+        private void writeSnapshot(DataOutputStream out) throws IOException {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(Patient.ids.peek());
+            out.writeInt(Appointment.ids.peek());
+            out.writeInt(Billing.ids.peek());
+            out.writeInt(InventoryItem.ids.peek());
+            out.writeInt(Staff.ids.peek());
+
+            List<Patient> patientList = app.patients.snapshot();
+            out.writeInt(patientList.size());
+            for(Patient p : patientList) writePatient(out, p);
+            List<Appointment> appointmentList = app.appointments.snapshot();
+            out.writeInt(appointmentList.size());
+            for(Appointment a : appointmentList) writeAppointment(out, a);
+            List<EHR> ehrList = app.ehrRecords.snapshot();
+            out.writeInt(ehrList.size());
+            for(EHR ehr : ehrList) {
+                synchronized(ehr) {
+                    out.writeInt(ehr.getPatientId());
+                    out.writeInt(ehr.size());
+                    for(int i = 0; i < ehr.size(); i++) writeString(out, ehr.getRecord(i));
+                }
+            }
+            List<Billing> billList = app.bills.snapshot();
+            out.writeInt(billList.size());
+            for(Billing b : billList) writeBill(out, b);
+            List<InventoryItem> itemList = app.inventoryItems.snapshot();
+            out.writeInt(itemList.size());
+            for(InventoryItem item : itemList) writeInventoryItem(out, item);
+            List<Staff> staffList = app.staffMembers.snapshot();
+            out.writeInt(staffList.size());
+            for(Staff s : staffList) writeStaff(out, s);
+
+            List<InventoryItem> withLevels = new ArrayList<>();
+            for(InventoryItem item : itemList) if(item.getReorderLevel() != 0) withLevels.add(item);
+            out.writeInt(withLevels.size());
+            for(InventoryItem item : withLevels) {
+                out.writeInt(item.getItemId());
+                out.writeInt(item.getReorderLevel());
+            }
+
+            Map<Integer, long[]> shifts = app.roster.shifts();
+            out.writeInt(shifts.size());
+            for(Map.Entry<Integer, long[]> e : shifts.entrySet()) {
+                out.writeInt(e.getKey());
+                for(long word : e.getValue()) out.writeLong(word);
+            }
+
+            List<Appointment> withStatus = new ArrayList<>();
+            for(Appointment a : appointmentList) {
+                if(a.getStatusCode() != Appointment.SCHEDULED || a.getRemindersSent() != 0) withStatus.add(a);
+            }
+            out.writeInt(withStatus.size());
+            for(Appointment a : withStatus) {
+                out.writeInt(a.getId());
+                out.writeByte(a.getStatusCode());
+                out.writeByte(a.getRemindersSent());
+            }
+
+            // Written last, so each table holds every code used by the records above
+            for(SymbolTable table : SYMBOL_TABLES) {
+                List<String> symbols = table.symbols();
+                out.writeInt(symbols.size());
+                for(String symbol : symbols) writeString(out, symbol);
+            }
+        }
+
+        private void loadSnapshot(Path file) throws IOException {
+            try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+                if(in.readInt() != SNAPSHOT_MAGIC) throw new IOException("Not a snapshot file");
+                int version = in.readInt();
+                if(version != FORMAT_VERSION) throw new IOException("Unsupported snapshot version " + version);
+                int[] counters = new int[5];
+                for(int i = 0; i < counters.length; i++) counters[i] = in.readInt();
+
+                for(int n = in.readInt(); n > 0; n--) app.patients.add(readPatient(in));
+                for(int n = in.readInt(); n > 0; n--) app.appointments.add(readAppointment(in));
+                for(int n = in.readInt(); n > 0; n--) {
+                    EHR ehr = new EHR(in.readInt());
+                    for(int r = in.readInt(); r > 0; r--) ehr.addRecord(readString(in));
+                    app.ehrRecords.add(ehr);
+                }
+                for(int n = in.readInt(); n > 0; n--) app.bills.add(readBill(in));
+                for(int n = in.readInt(); n > 0; n--) app.inventoryItems.add(readInventoryItem(in));
+                for(int n = in.readInt(); n > 0; n--) app.staffMembers.add(readStaff(in));
+                for(int n = in.readInt(); n > 0; n--) {
+                    InventoryItem item = app.inventoryItems.get(in.readInt());
+                    int level = in.readInt();
+                    if(item != null) item.setReorderLevel(level);
+                }
+                for(int n = in.readInt(); n > 0; n--) {
+                    int staffId = in.readInt();
+                    long[] weekly = new long[7 * Roster.WORDS];
+                    for(int i = 0; i < weekly.length; i++) weekly[i] = in.readLong();
+                    app.roster.restoreShifts(staffId, weekly);
+                }
+                for(int n = in.readInt(); n > 0; n--) {
+                    Appointment a = app.appointments.get(in.readInt());
+                    byte status = in.readByte(), reminders = in.readByte();
+                    if(a != null) a.restoreStatus(status, reminders);
+                }
+                for(SymbolTable table : SYMBOL_TABLES) {
+                    int n = in.readInt();
+                    for(int code = 0; code < n; code++) table.restore(code, readString(in));
+                }
+
+                // Counters may be ahead of the highest stored id, so restore them exactly
+                Patient.ids.reset(counters[0]);
+                Appointment.ids.reset(counters[1]);
+                Billing.ids.reset(counters[2]);
+                InventoryItem.ids.reset(counters[3]);
+                Staff.ids.reset(counters[4]);
+            }
+        }
+
+        private Path segmentPath(long n) { return dir.resolve("wal-" + n + ".log"); }
+
+        private List<Long> listSegments(String prefix, String suffix) throws IOException {
+            List<Long> segments = new ArrayList<>();
+            try(DirectoryStream<Path> files = Files.newDirectoryStream(dir, prefix + "*" + suffix)) {
+                for(Path file : files) {
+                    String name = file.getFileName().toString();
+                    try {
+                        segments.add(Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length())));
+                    } catch(NumberFormatException ignored) {
+                        // not one of ours
+                    }
+                }
+            }
+            Collections.sort(segments);
+            return segments;
+        }
+
+        // --- Record encoding, shared by the log and snapshots ---
+
+        static void writePatient(DataOutput out, Patient p) throws IOException {
+            out.writeInt(p.getId());
+            writeString(out, p.getName());
+            out.writeInt(p.getAge());
+            out.writeInt(p.getGenderCode());
+            writeString(out, p.getContact());
+        }
+
+        static Patient readPatient(DataInput in) throws IOException {
+            return new Patient(in.readInt(), readString(in), in.readInt(), in.readInt(), readString(in));
+        }
+
+        static void writeAppointment(DataOutput out, Appointment a) throws IOException {
+            out.writeInt(a.getId());
+            out.writeInt(a.getPatientId());
+            out.writeInt(a.getStaffId());
+            out.writeInt(a.getDoctorCode());
+            writeDateTime(out, a.getAppointmentDateTime());
+        }
+
+        static Appointment readAppointment(DataInput in) throws IOException {
+            return new Appointment(in.readInt(), in.readInt(), in.readInt(), in.readInt(), readDateTime(in));
+        }
+
+        static void writeBill(DataOutput out, Billing b) throws IOException {
+            out.writeInt(b.getBillId());
+            out.writeInt(b.getPatientId());
+            out.writeLong(b.getAmountMinor());
+            writeDateTime(out, b.getBillingDate());
+            out.writeBoolean(b.isPaid());
+        }
+
+        static Billing readBill(DataInput in) throws IOException {
+            return new Billing(in.readInt(), in.readInt(), in.readLong(), readDateTime(in), in.readBoolean());
+        }
+
+        static void writeInventoryItem(DataOutput out, InventoryItem item) throws IOException {
+            out.writeInt(item.getItemId());
+            writeString(out, item.getName());
+            out.writeInt(item.getQuantity());
+            out.writeInt(item.getUnitCode());
+        }
+
+        static InventoryItem readInventoryItem(DataInput in) throws IOException {
+            return new InventoryItem(in.readInt(), readString(in), in.readInt(), in.readInt());
+        }
+
+        static void writeStaff(DataOutput out, Staff s) throws IOException {
+            out.writeInt(s.getStaffId());
+            writeString(out, s.getName());
+            out.writeInt(s.getRoleCode());
+            writeString(out, s.getContact());
+        }
+
+        static Staff readStaff(DataInput in) throws IOException {
+            return new Staff(in.readInt(), readString(in), in.readInt(), readString(in));
+        }
+
+        static void writeDateTime(DataOutput out, LocalDateTime dateTime) throws IOException {
+            out.writeLong(dateTime.toEpochSecond(ZoneOffset.UTC));
+            out.writeInt(dateTime.getNano());
+        }
+
+        static LocalDateTime readDateTime(DataInput in) throws IOException {
+            return LocalDateTime.ofEpochSecond(in.readLong(), in.readInt(), ZoneOffset.UTC);
+        }
+
+        // Length-prefixed UTF-8, unlike writeUTF not limited to 64KB
+        static void writeString(DataOutput out, String s) throws IOException {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        static String readString(DataInput in) throws IOException {
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    // --- Columnar Snapshot ---
+
+    // Column-per-file copy of the Patient, Appointment and Billing stores for reports that only scan a
+    // few fields. Written next to every snapshot into <data>/columns/ and read through memory-mapped,
+    // little-endian buffers, so a scan touches only the pages of the columns it reads.
+    //
+    //   <table>.rows           int row count
+    //   <table>.<col>.i32/.i64/.f64/.i8   fixed-width values, one per row
+    //   <table>.<col>.dict     int count + length-prefixed UTF-8 strings; the column is then .i32 codes
+    //
+    // Timestamps are stored as UTC epoch seconds.
+    static class ColumnarStore {
+        private final Path dir;
+        private final List<FileChannel> channels = new ArrayList<>();
+
+        private ColumnarStore(Path dir) { this.dir = dir; }
+
+        // Writes the three tables into a fresh directory and swaps it in place of the old one
+        static void write(Path dir, Collection<Patient> patients, Collection<Appointment> appointments,
+                          Collection<Billing> bills) throws IOException {
+            Path tmp = dir.resolveSibling(dir.getFileName() + ".tmp");
+            deleteDirectory(tmp);
+            Files.createDirectories(tmp);
+
+            writeRows(tmp, "patient", patients.size());
+            try(ColumnWriter id = new ColumnWriter(tmp.resolve("patient.id.i32"));
+                ColumnWriter age = new ColumnWriter(tmp.resolve("patient.age.i32"));
+                DictionaryWriter name = new DictionaryWriter(tmp, "patient.name");
+                ColumnWriter gender = new ColumnWriter(tmp.resolve("patient.gender.i32"));
+                DictionaryWriter contact = new DictionaryWriter(tmp, "patient.contact")) {
+                for(Patient p : patients) {
+                    id.putInt(p.getId());
+                    age.putInt(p.getAge());
+                    name.put(p.getName());
+                    gender.putInt(p.getGenderCode());
+                    contact.put(p.getContact());
+                }
+            }
+            // Symbol codes are the dictionary codes; written after the rows so it covers every code they use
+            writeDictionary(tmp.resolve("patient.gender.dict"), Patient.genders.symbols());
+
+            writeRows(tmp, "appointment", appointments.size());
+            try(ColumnWriter id = new ColumnWriter(tmp.resolve("appointment.id.i32"));
+                ColumnWriter patientId = new ColumnWriter(tmp.resolve("appointment.patientId.i32"));
+                ColumnWriter doctor = new ColumnWriter(tmp.resolve("appointment.doctorName.i32"));
+                ColumnWriter dateTime = new ColumnWriter(tmp.resolve("appointment.appointmentDateTime.i64"))) {
+                for(Appointment a : appointments) {
+                    id.putInt(a.getId());
+                    patientId.putInt(a.getPatientId());
+                    doctor.putInt(a.getDoctorCode());
+                    dateTime.putLong(a.getAppointmentDateTime().toEpochSecond(ZoneOffset.UTC));
+                }
+            }
+            writeDictionary(tmp.resolve("appointment.doctorName.dict"), Appointment.doctors.symbols());
+
+            writeRows(tmp, "billing", bills.size());
+            try(ColumnWriter id = new ColumnWriter(tmp.resolve("billing.billId.i32"));
+                ColumnWriter patientId = new ColumnWriter(tmp.resolve("billing.patientId.i32"));
+                ColumnWriter amount = new ColumnWriter(tmp.resolve("billing.amount.i64"));
+                ColumnWriter date = new ColumnWriter(tmp.resolve("billing.billingDate.i64"));
+                ColumnWriter paid = new ColumnWriter(tmp.resolve("billing.paid.i8"))) {
+                for(Billing b : bills) {
+                    id.putInt(b.getBillId());
+                    patientId.putInt(b.getPatientId());
+                    amount.putLong(b.getAmountMinor());
+                    date.putLong(b.getBillingDate().toEpochSecond(ZoneOffset.UTC));
+                    paid.putByte(b.isPaid() ? (byte) 1 : 0);
+                }
+            }
+
+            // The old copy is moved aside rather than deleted first, so a crash between the two moves
+            // still leaves a complete directory, which open() falls back to
+            Path old = aside(dir);
+            deleteDirectory(old);
+            if(Files.exists(dir)) Files.move(dir, old, StandardCopyOption.ATOMIC_MOVE);
+            Files.move(tmp, dir, StandardCopyOption.ATOMIC_MOVE);
+            deleteDirectory(old);
+        }
+
+        static ColumnarStore open(Path dir) throws IOException {
+            if(!Files.isDirectory(dir) && Files.isDirectory(aside(dir))) dir = aside(dir);
+            if(!Files.isDirectory(dir)) throw new NoSuchFileException(dir.toString());
+            return new ColumnarStore(dir);
+        }
+
+        private static Path aside(Path dir) {
+            return dir.resolveSibling(dir.getFileName() + ".old");
+        }
+
+        public PatientColumns patients() throws IOException { return new PatientColumns(this); }
+        public AppointmentColumns appointments() throws IOException { return new AppointmentColumns(this); }
+        public BillingColumns bills() throws IOException { return new BillingColumns(this); }
+
+        public void close() throws IOException {
+            for(FileChannel channel : channels) channel.close();
+            channels.clear();
+        }
+
+        int rows(String table) throws IOException {
+            return map(table + ".rows").getInt(0);
+        }
+
+        ByteBuffer map(String file) throws IOException {
+            FileChannel channel = FileChannel.open(dir.resolve(file), StandardOpenOption.READ);
+            channels.add(channel);
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        Dictionary dictionary(String column) throws IOException {
+            return new Dictionary(map(column + ".dict"));
+        }
+
+        private static void writeRows(Path dir, String table, int rows) throws IOException {
+            try(ColumnWriter writer = new ColumnWriter(dir.resolve(table + ".rows"))) {
+                writer.putInt(rows);
+            }
+        }
+
+        private static void writeDictionary(Path file, List<String> values) throws IOException {
+            try(ColumnWriter dict = new ColumnWriter(file)) {
+                dict.putInt(values.size());
+                for(String value : values) {
+                    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                    dict.putInt(bytes.length);
+                    dict.putBytes(bytes);
+                }
+            }
+        }
+
+        private static void deleteDirectory(Path dir) throws IOException {
+            if(!Files.exists(dir)) return;
+            try(DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+                for(Path file : files) Files.delete(file);
+            }
+            Files.delete(dir);
+        }
+
+        // Buffered little-endian writer for one column file
+        static class ColumnWriter implements Closeable {
+            private final FileChannel channel;
+            private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+
+            ColumnWriter(Path file) throws IOException {
+                channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING);
+            }
+
+            void putInt(int value) throws IOException { ensure(4); buffer.putInt(value); }
+            void putLong(long value) throws IOException { ensure(8); buffer.putLong(value); }
+            void putByte(byte value) throws IOException { ensure(1); buffer.put(value); }
+
+            void putBytes(byte[] bytes) throws IOException {
+                for(int off = 0; off < bytes.length; ) {
+                    ensure(1);
+                    int n = Math.min(buffer.remaining(), bytes.length - off);
+                    buffer.put(bytes, off, n);
+                    off += n;
+                }
+            }
+
+            private void ensure(int bytes) throws IOException {
+                if(buffer.remaining() < bytes) flush();
+            }
+
+            private void flush() throws IOException {
+                buffer.flip();
+                while(buffer.hasRemaining()) channel.write(buffer);
+                buffer.clear();
+            }
+
+            @Override
+            public void close() throws IOException {
+                flush();
+                channel.close();
+            }
+        }
+
+        // A mapped .dict file. Opening it only records where each value starts; a value is decoded
+        // when it is asked for, so a scan that reads codes never builds the strings.
+        static class Dictionary {
+            private final ByteBuffer buffer;
+            private final int[] offsets;
+
+            Dictionary(ByteBuffer buffer) {
+                this.buffer = buffer;
+                offsets = new int[buffer.getInt(0)];
+                int at = 4;
+                for(int code = 0; code < offsets.length; code++) {
+                    offsets[code] = at;
+                    at += 4 + buffer.getInt(at);
+                }
+            }
+
+            public int size() { return offsets.length; }
+
+            public String get(int code) {
+                int at = offsets[code];
+                byte[] bytes = new byte[buffer.getInt(at)];
+                buffer.duplicate().position(at + 4).get(bytes);
+                return new String(bytes, StandardCharsets.UTF_8);
+            }
+        }
+
+        // Writes int codes for a string column and its dictionary on close
+        static class DictionaryWriter implements Closeable {
+            private final Path dictFile;
+            private final ColumnWriter codes;
+            private final Map<String, Integer> dictionary = new HashMap<>();
+            private final List<String> values = new ArrayList<>();
+
+            DictionaryWriter(Path dir, String column) throws IOException {
+                this.dictFile = dir.resolve(column + ".dict");
+                this.codes = new ColumnWriter(dir.resolve(column + ".i32"));
+            }
+
+            void put(String value) throws IOException {
+                Integer code = dictionary.get(value);
+                if(code == null) {
+                    code = values.size();
+                    dictionary.put(value, code);
+                    values.add(value);
+                }
+                codes.putInt(code);
+            }
+
+            @Override
+            public void close() throws IOException {
+                codes.close();
+                writeDictionary(dictFile, values);
+            }
+        }
+    }
+
+    // Zero-copy views over the mapped columns; each accessor reads one value straight from the mapping
+
+    static class PatientColumns {
+        private final int rows;
+        private final IntBuffer id, age, name, gender, contact;
+        private final ColumnarStore.Dictionary names, genders, contacts;
+
+        PatientColumns(ColumnarStore store) throws IOException {
+            rows = store.rows("patient");
+            id = store.map("patient.id.i32").asIntBuffer();
+            age = store.map("patient.age.i32").asIntBuffer();
+            name = store.map("patient.name.i32").asIntBuffer();
+            gender = store.map("patient.gender.i32").asIntBuffer();
+            contact = store.map("patient.contact.i32").asIntBuffer();
+            names = store.dictionary("patient.name");
+            genders = store.dictionary("patient.gender");
+            contacts = store.dictionary("patient.contact");
+        }
+
+        public int rows() { return rows; }
+        public int id(int row) { return id.get(row); }
+        public int age(int row) { return age.get(row); }
+        public String name(int row) { return names.get(name.get(row)); }
+        public String gender(int row) { return genders.get(gender.get(row)); }
+        public String contact(int row) { return contacts.get(contact.get(row)); }
+
+        // Patient count per gender, counted on the codes without decoding any strings
+        public Map<String, Integer> countByGender() {
+            int[] counts = new int[genders.size()];
+            for(int row = 0; row < rows; row++) counts[gender.get(row)]++;
+            Map<String, Integer> result = new TreeMap<>();
+            for(int code = 0; code < counts.length; code++) {
+                if(counts[code] > 0) result.put(genders.get(code), counts[code]);
+            }
+            return result;
+        }
+    }
+
+    static class AppointmentColumns {
+        private final int rows;
+        private final IntBuffer id, patientId, doctor;
+        private final LongBuffer dateTime;
+        private final ColumnarStore.Dictionary doctors;
+
+        AppointmentColumns(ColumnarStore store) throws IOException {
+            rows = store.rows("appointment");
+            id = store.map("appointment.id.i32").asIntBuffer();
+            patientId = store.map("appointment.patientId.i32").asIntBuffer();
+            doctor = store.map("appointment.doctorName.i32").asIntBuffer();
+            dateTime = store.map("appointment.appointmentDateTime.i64").asLongBuffer();
+            doctors = store.dictionary("appointment.doctorName");
+        }
+
+        public int rows() { return rows; }
+        public int id(int row) { return id.get(row); }
+        public int patientId(int row) { return patientId.get(row); }
+        public String doctorName(int row) { return doctors.get(doctor.get(row)); }
+        public long epochSecond(int row) { return dateTime.get(row); }
+
+        // Appointments per doctor in [from, to)
+        public Map<String, Integer> countByDoctor(LocalDateTime from, LocalDateTime to) {
+            long lo = from.toEpochSecond(ZoneOffset.UTC), hi = to.toEpochSecond(ZoneOffset.UTC);
+            int[] counts = new int[doctors.size()];
+            for(int row = 0; row < rows; row++) {
+                long t = dateTime.get(row);
+                if(t >= lo && t < hi) counts[doctor.get(row)]++;
+            }
+            Map<String, Integer> result = new TreeMap<>();
+            for(int code = 0; code < counts.length; code++) {
+                if(counts[code] > 0) result.put(doctors.get(code), counts[code]);
+            }
+            return result;
+        }
+    }
+
+    static class BillingColumns {
+        private final int rows;
+        private final IntBuffer billId, patientId;
+        private final LongBuffer amount, billingDate;
+        private final ByteBuffer paid;
+
+        BillingColumns(ColumnarStore store) throws IOException {
+            rows = store.rows("billing");
+            billId = store.map("billing.billId.i32").asIntBuffer();
+            patientId = store.map("billing.patientId.i32").asIntBuffer();
+            amount = store.map("billing.amount.i64").asLongBuffer();
+            billingDate = store.map("billing.billingDate.i64").asLongBuffer();
+            paid = store.map("billing.paid.i8");
+        }
+
+        public int rows() { return rows; }
+        public int billId(int row) { return billId.get(row); }
+        public int patientId(int row) { return patientId.get(row); }
+        public long amountMinor(int row) { return amount.get(row); }
+        public long epochSecond(int row) { return billingDate.get(row); }
+        public boolean paid(int row) { return paid.get(row) != 0; }
+
+        // Sum of amounts for bills with the given paid flag
+        public long totalAmount(boolean isPaid) {
+            byte wanted = isPaid ? (byte) 1 : 0;
+            long total = 0;
+            for(int row = 0; row < rows; row++) {
+                if(paid.get(row) == wanted) total += amount.get(row);
+            }
+            return total;
+        }
+    }
+
+    // --- Appointment Index ---
+
+    // Secondary indexes over the appointment store: patient -> appointment ids, doctor ->
+    // appointments by time, and all appointments by time. Range queries and clash checks are
+    // TreeMap lookups, O(log n) plus the size of the result. The service adds a booking here before
+    // it is saved, so its slot is taken while the save is pending, and removes it if that fails.
+    // Methods synchronize on the index, so it can be updated from any thread.
+    static class AppointmentIndex {
+        // Appointments have no end time, so two bookings for one doctor clash when closer than this
+        static final Duration SLOT_LENGTH = Duration.ofMinutes(15);
+
+        private final Repository<Appointment> store;
+        private final Map<Integer, List<Integer>> byPatient = new HashMap<>();
+        private final Map<String, NavigableMap<LocalDateTime, Appointment>> byDoctor = new HashMap<>();
+        private final NavigableMap<LocalDateTime, List<Appointment>> byTime = new TreeMap<>();
+
+        public AppointmentIndex(Repository<Appointment> store) {
+            this.store = store;
+            for(Appointment a : store.values()) add(a);
+        }
+
+        public synchronized void add(Appointment a) {
+            byPatient.computeIfAbsent(a.getPatientId(), k -> new ArrayList<>(2)).add(a.getId());
+            byDoctor.computeIfAbsent(doctorKey(a.getDoctorName()), k -> new TreeMap<>())
+                    .put(a.getAppointmentDateTime(), a);
+            byTime.computeIfAbsent(a.getAppointmentDateTime(), k -> new ArrayList<>(1)).add(a);
+        }
+
+        public synchronized void remove(Appointment a) {
+            List<Integer> ids = byPatient.get(a.getPatientId());
+            if(ids != null) ids.remove(Integer.valueOf(a.getId()));
+            NavigableMap<LocalDateTime, Appointment> schedule = byDoctor.get(doctorKey(a.getDoctorName()));
+            if(schedule != null) schedule.remove(a.getAppointmentDateTime(), a);
+            List<Appointment> atTime = byTime.get(a.getAppointmentDateTime());
+            if(atTime != null) {
+                atTime.remove(a);
+                if(atTime.isEmpty()) byTime.remove(a.getAppointmentDateTime());
+            }
+        }
+
+        public synchronized List<Appointment> forPatient(int patientId) {
+            List<Appointment> result = new ArrayList<>();
+            for(int id : byPatient.getOrDefault(patientId, Collections.emptyList())) {
+                Appointment a = store.get(id);
+                if(a != null) result.add(a);
+            }
+            return result;
+        }
+
+        // The doctor's appointments in [from, to)
+        public synchronized Collection<Appointment> forDoctor(String doctor, LocalDateTime from, LocalDateTime to) {
+            NavigableMap<LocalDateTime, Appointment> schedule = byDoctor.get(doctorKey(doctor));
+            if(schedule == null || !from.isBefore(to)) return Collections.emptyList();
+            return new ArrayList<>(schedule.subMap(from, true, to, false).values());
+        }
+
+        // All appointments in [from, to), in time order
+        public synchronized List<Appointment> between(LocalDateTime from, LocalDateTime to) {
+            List<Appointment> result = new ArrayList<>();
+            if(!from.isBefore(to)) return result;
+            for(List<Appointment> atTime : byTime.subMap(from, true, to, false).values()) result.addAll(atTime);
+            return result;
+        }
+
+        // An existing appointment of the doctor that overlaps a new one at the given time, or null
+        public synchronized Appointment findConflict(String doctor, LocalDateTime at) {
+            NavigableMap<LocalDateTime, Appointment> schedule = byDoctor.get(doctorKey(doctor));
+            if(schedule == null) return null;
+            Map.Entry<LocalDateTime, Appointment> before = schedule.floorEntry(at);
+            if(before != null && before.getKey().plus(SLOT_LENGTH).isAfter(at)) return before.getValue();
+            Map.Entry<LocalDateTime, Appointment> after = schedule.higherEntry(at);
+            if(after != null && at.plus(SLOT_LENGTH).isAfter(after.getKey())) return after.getValue();
+            return null;
+        }
+
+        private static String doctorKey(String doctor) {
+            return doctor.trim().toLowerCase();
+        }
+    }
+
+    // --- Roster ---
+
+    // Shifts and bookings per staff member as bitsets of SLOT_MINUTES slots: a weekly on-shift
+    // pattern (one bit per slot for each day of the week) plus booked slots per day, kept in blocks
+    // of BLOCK_DAYS days. An appointment can start in a slot that is on shift and unbooked for
+    // APPOINTMENT_SLOTS slots, so finding one is a few word-wide ANDs per staff member per day.
+    // Bookings come from appointments linked to a staff member; each marks every slot it overlaps,
+    // which also covers appointments that don't start on a slot boundary.
+    // Also resolves doctor names to staff members. Methods synchronize on the roster.
+    static class Roster {
+        static final int SLOT_MINUTES = 5;
+        static final int SLOTS_PER_DAY = 24 * 60 / SLOT_MINUTES;
+        static final int WORDS = (SLOTS_PER_DAY + 63) / 64;
+        static final int APPOINTMENT_SLOTS = (int) (AppointmentIndex.SLOT_LENGTH.toMinutes() / SLOT_MINUTES);
+        static final int HORIZON_DAYS = 366;
+        private static final int BLOCK_DAYS = 64;
+        // Bits of the last word that belong to the day; the next day's first slots are shifted in above them
+        private static final int TAIL_BITS = SLOTS_PER_DAY - 64 * (WORDS - 1);
+        // Returned by staffNamed when more than one staff member has the name
+        static final int AMBIGUOUS = -1;
+
+        static class Slot {
+            final int staffId;
+            final LocalDateTime start;
+
+            Slot(int staffId, LocalDateTime start) {
+                this.staffId = staffId;
+                this.start = start;
+            }
+        }
+
+        private static class Schedule {
+            final long[] weekly = new long[7 * WORDS];  // on-shift slots, Monday first
+            final Map<Long, long[]> booked = new HashMap<>();  // epochDay / BLOCK_DAYS -> BLOCK_DAYS * WORDS
+            boolean hasShifts;
+        }
+
+        private final Map<Integer, Schedule> schedules = new HashMap<>();
+        private final Map<String, Integer> staffByName = new HashMap<>();
+        private final long[] window = new long[WORDS + 1];
+        private final long[] starts = new long[WORDS];
+
+        // --- Shifts ---
+
+        // Puts the staff member on shift in slots [fromSlot, toSlot) every such day of the week
+        public synchronized void addShift(int staffId, DayOfWeek day, int fromSlot, int toSlot) {
+            Schedule s = schedule(staffId);
+            int base = (day.getValue() - 1) * WORDS;
+            for(int slot = fromSlot; slot < toSlot; slot++) s.weekly[base + (slot >>> 6)] |= 1L << slot;
+            s.hasShifts = true;
+        }
+
+        public synchronized void clearShifts(int staffId) {
+            Schedule s = schedules.get(staffId);
+            if(s == null) return;
+            Arrays.fill(s.weekly, 0);
+            s.hasShifts = false;
+        }
+
+        public synchronized boolean hasShifts(int staffId) {
+            Schedule s = schedules.get(staffId);
+            return s != null && s.hasShifts;
+        }
+
+        // Weekly patterns of everyone with shifts, for snapshots
+        public synchronized Map<Integer, long[]> shifts() {
+            Map<Integer, long[]> result = new TreeMap<>();
+            for(Map.Entry<Integer, Schedule> e : schedules.entrySet()) {
+                if(e.getValue().hasShifts) result.put(e.getKey(), e.getValue().weekly.clone());
+            }
+            return result;
+        }
+
+        synchronized void restoreShifts(int staffId, long[] weekly) {
+            Schedule s = schedule(staffId);
+            System.arraycopy(weekly, 0, s.weekly, 0, s.weekly.length);
+            s.hasShifts = false;
+            for(long word : weekly) s.hasShifts |= word != 0;
+        }
+
+        // e.g. "Mon 08:00-16:00, Tue 08:00-12:00 13:00-17:00"
+        public synchronized String describeShifts(int staffId) {
+            Schedule s = schedules.get(staffId);
+            if(s == null || !s.hasShifts) return "";
+            StringBuilder text = new StringBuilder();
+            for(DayOfWeek day : DayOfWeek.values()) {
+                int base = (day.getValue() - 1) * WORDS;
+                String dayName = day.getDisplayName(TextStyle.SHORT, Locale.ENGLISH);
+                boolean first = true;
+                for(int slot = 0; slot < SLOTS_PER_DAY; ) {
+                    if(!isSet(s.weekly, base, slot)) { slot++; continue; }
+                    int end = slot;
+                    while(end < SLOTS_PER_DAY && isSet(s.weekly, base, end)) end++;
+                    text.append(first ? (text.length() > 0 ? ", " : "") + dayName + " " : " ")
+                            .append(slotTime(slot)).append('-').append(slotTime(end));
+                    first = false;
+                    slot = end;
+                }
+            }
+            return text.toString();
+        }
+
+        // --- Bookings ---
+
+        public synchronized void book(Appointment a) {
+            if(a.getStaffId() == 0) return;
+            Schedule s = schedule(a.getStaffId());
+            long first = firstSlot(a.getAppointmentDateTime()), end = endSlot(a.getAppointmentDateTime());
+            for(long slot = first; slot < end; slot++) {
+                long day = Math.floorDiv(slot, SLOTS_PER_DAY);
+                int slotOfDay = Math.floorMod(slot, SLOTS_PER_DAY);
+                long[] block = s.booked.computeIfAbsent(Math.floorDiv(day, BLOCK_DAYS), k -> new long[BLOCK_DAYS * WORDS]);
+                block[Math.floorMod(day, BLOCK_DAYS) * WORDS + (slotOfDay >>> 6)] |= 1L << slotOfDay;
+            }
+        }
+
+        // Whether every slot an appointment at this time would take is on one of the staff member's shifts
+        public synchronized boolean onShift(int staffId, LocalDateTime start) {
+            Schedule s = schedules.get(staffId);
+            if(s == null) return false;
+            for(long slot = firstSlot(start), end = endSlot(start); slot < end; slot++) {
+                DayOfWeek day = LocalDate.ofEpochDay(Math.floorDiv(slot, SLOTS_PER_DAY)).getDayOfWeek();
+                if(!isSet(s.weekly, (day.getValue() - 1) * WORDS, Math.floorMod(slot, SLOTS_PER_DAY))) return false;
+            }
+            return true;
+        }
+
+        // Staff among the given ones who are on shift and unbooked for an appointment at this time
+        public synchronized List<Integer> freeAt(Collection<Integer> staffIds, LocalDateTime start) {
+            List<Integer> free = new ArrayList<>();
+            long first = firstSlot(start), end = endSlot(start);
+            for(int staffId : staffIds) {
+                Schedule s = schedules.get(staffId);
+                if(s == null || !s.hasShifts) continue;
+                boolean ok = true;
+                for(long slot = first; slot < end && ok; slot++) {
+                    long day = Math.floorDiv(slot, SLOTS_PER_DAY);
+                    int slotOfDay = Math.floorMod(slot, SLOTS_PER_DAY);
+                    ok = (freeWord(s, day, slotOfDay >>> 6) & 1L << slotOfDay) != 0;
+                }
+                if(ok) free.add(staffId);
+            }
+            return free;
+        }
+
+        // Earliest slot boundary at or after from where any of the staff can take an appointment,
+        // within HORIZON_DAYS; ties go to the first staff member given. Null if there is none.
+        public synchronized Slot nextFree(Collection<Integer> staffIds, LocalDateTime from) {
+            long day = from.toLocalDate().toEpochDay();
+            int minute = from.getHour() * 60 + from.getMinute() + (from.getSecond() > 0 || from.getNano() > 0 ? 1 : 0);
+            int fromSlot = (minute + SLOT_MINUTES - 1) / SLOT_MINUTES;
+            for(int d = 0; d < HORIZON_DAYS; d++) {
+                int best = -1, bestStaff = 0;
+                for(int staffId : staffIds) {
+                    Schedule s = schedules.get(staffId);
+                    if(s == null || !s.hasShifts) continue;
+                    int slot = firstStart(s, day + d, d == 0 ? fromSlot : 0);
+                    if(slot >= 0 && (best < 0 || slot < best)) {
+                        best = slot;
+                        bestStaff = staffId;
+                    }
+                }
+                if(best >= 0) return new Slot(bestStaff, LocalDate.ofEpochDay(day + d).atStartOfDay().plusMinutes((long) best * SLOT_MINUTES));
+            }
+            return null;
+        }
+
+        // --- Staff names ---
+
+        public synchronized void addStaff(Staff staff) {
+            staffByName.merge(nameKey(staff.getName()), staff.getStaffId(), (a, b) -> a.equals(b) ? a : AMBIGUOUS);
+        }
+
+        // The id of the only staff member with this name (ignoring case), 0 if none, AMBIGUOUS if several
+        public synchronized int staffNamed(String name) {
+            return staffByName.getOrDefault(nameKey(name), 0);
+        }
+
+        // First slot in [fromSlot, SLOTS_PER_DAY) of the day where an appointment fits, or -1
+        private int firstStart(Schedule s, long day, int fromSlot) {
+            if(fromSlot >= SLOTS_PER_DAY) return -1;
+            for(int w = 0; w < WORDS; w++) window[w] = freeWord(s, day, w);
+            // An appointment late in the day runs into the next day's first slots
+            long next = freeWord(s, day + 1, 0);
+            window[WORDS - 1] |= next << TAIL_BITS;
+            window[WORDS] = next >>> (64 - TAIL_BITS);
+            for(int w = 0; w < WORDS; w++) {
+                long fits = window[w];
+                for(int j = 1; j < APPOINTMENT_SLOTS; j++) fits &= window[w] >>> j | window[w + 1] << (64 - j);
+                starts[w] = fits;
+            }
+            starts[WORDS - 1] &= (1L << TAIL_BITS) - 1;
+            for(int w = fromSlot >>> 6; w < WORDS; w++) {
+                long fits = starts[w];
+                if(w == fromSlot >>> 6) fits &= -1L << fromSlot;
+                if(fits != 0) return w * 64 + Long.numberOfTrailingZeros(fits);
+            }
+            return -1;
+        }
+
+        private long freeWord(Schedule s, long day, int word) {
+            DayOfWeek dow = LocalDate.ofEpochDay(day).getDayOfWeek();
+            long onShift = s.weekly[(dow.getValue() - 1) * WORDS + word];
+            if(onShift == 0) return 0;
+            long[] block = s.booked.get(Math.floorDiv(day, BLOCK_DAYS));
+            return block == null ? onShift : onShift & ~block[Math.floorMod(day, BLOCK_DAYS) * WORDS + word];
+        }
+
+        private Schedule schedule(int staffId) {
+            return schedules.computeIfAbsent(staffId, k -> new Schedule());
+        }
+
+        private static boolean isSet(long[] words, int base, int slot) {
+            return (words[base + (slot >>> 6)] & 1L << slot) != 0;
+        }
+
+        // Slots counted from the epoch; an appointment takes [firstSlot, endSlot)
+        static long firstSlot(LocalDateTime start) {
+            return Math.floorDiv(epochMinute(start), SLOT_MINUTES);
+        }
+
+        static long endSlot(LocalDateTime start) {
+            return Math.floorDiv(epochMinute(start) + AppointmentIndex.SLOT_LENGTH.toMinutes() + SLOT_MINUTES - 1, SLOT_MINUTES);
+        }
+
+        private static long epochMinute(LocalDateTime t) {
+            return t.toLocalDate().toEpochDay() * 24 * 60 + t.getHour() * 60 + t.getMinute();
+        }
+
+        static String slotTime(int slot) {
+            int minutes = slot * SLOT_MINUTES;
+            return String.format("%02d:%02d", minutes / 60, minutes % 60);
+        }
+
+        private static String nameKey(String name) {
+            return name.trim().toLowerCase();
+        }
+    }
+
+    // --- Reminders ---
+
+    // Hierarchical timing wheel over int ids with one-second ticks: LEVELS wheels of SLOTS slots,
+    // where a level-n slot spans SLOTS^n ticks, so six levels reach about 2,000 years ahead. A timer
+    // sits in the lowest level whose span holds both now and its deadline and drops a level each time
+    // the wheel above turns onto its slot. Scheduling is O(1), and each timer is moved at most LEVELS
+    // times however far ahead it is or how many others are pending.
+    //
+    // Timers are singly linked lists threaded through arrays indexed by id, about 12 bytes a timer
+    // and no objects. An id has at most one timer and timers can't be cancelled; the owner decides on
+    // expiry whether it still applies. Not thread-safe; ReminderScheduler locks around it.
+    static class TimingWheel {
+        static final int SLOT_BITS = 6;
+        static final int SLOTS = 1 << SLOT_BITS;
+        static final int LEVELS = 6;
+
+        private final int[] heads = new int[LEVELS * SLOTS];  // 0 ends a list, ids start at 1
+        private long[] deadlines = new long[1024];             // 0 when the id has no timer
+        private int[] next = new int[1024];
+        private int overdue;                                   // timers already due when scheduled
+        private long now;
+        private int size;
+        private int[] expired = new int[64];
+        private int expiredCount;
+
+        TimingWheel(long now) {
+            this.now = now;
+        }
+
+        // Returns false if the id already has a timer. A deadline that has passed fires on the next advance.
+        boolean schedule(int id, long deadline) {
+            if(id >= deadlines.length) {
+                int capacity = Math.max(id + 1, deadlines.length * 2);
+                deadlines = Arrays.copyOf(deadlines, capacity);
+                next = Arrays.copyOf(next, capacity);
+            }
+            if(deadlines[id] != 0) return false;
+            deadlines[id] = Math.max(deadline, 1);
+            size++;
+            if(deadline <= now) {
+                next[id] = overdue;
+                overdue = id;
+            } else {
+                place(id);
+            }
+            return true;
+        }
+
+        int size() { return size; }
+
+        // Turns the wheel to tick `to` and returns the ids whose deadlines it passed, earliest first
+        int[] advance(long to) {
+            expiredCount = 0;
+            for(int id = overdue; id != 0; ) {
+                int following = next[id];
+                expire(id);
+                id = following;
+            }
+            overdue = 0;
+            while(now < to) {
+                now++;
+                // When the lower digits of now wrap to zero, the slots above them come due: move their
+                // timers down, highest level first
+                int level = 0;
+                while(level < LEVELS - 1 && (now & ((1L << (SLOT_BITS * (level + 1))) - 1)) == 0) level++;
+                for(; level > 0; level--) {
+                    int slot = slotOf(level, now);
+                    int id = heads[slot];
+                    heads[slot] = 0;
+                    while(id != 0) {
+                        int following = next[id];
+                        if(deadlines[id] <= now) expire(id);
+                        else place(id);
+                        id = following;
+                    }
+                }
+                int slot = slotOf(0, now);
+                int id = heads[slot];
+                heads[slot] = 0;
+                while(id != 0) {
+                    int following = next[id];
+                    expire(id);
+                    id = following;
+                }
+            }
+            return Arrays.copyOf(expired, expiredCount);
+        }
+
+        private void place(int id) {
+            long deadline = deadlines[id];
+            int level = 0;
+            while(level < LEVELS - 1 && ((deadline ^ now) >>> (SLOT_BITS * (level + 1))) != 0) level++;
+            int slot = slotOf(level, deadline);
+            next[id] = heads[slot];
+            heads[slot] = id;
+        }
+
+        private void expire(int id) {
+            deadlines[id] = 0;
+            size--;
+            if(expiredCount == expired.length) expired = Arrays.copyOf(expired, expiredCount * 2);
+            expired[expiredCount++] = id;
+        }
+
+        private static int slotOf(int level, long tick) {
+            return level * SLOTS + ((int) (tick >>> (SLOT_BITS * level)) & (SLOTS - 1));
+        }
+    }
+
+    // Where reminders and no-show notices go. Called on the scheduler thread, so a slow sink delays
+    // later notices but never the caller that booked the appointment.
+    interface ReminderSink {
+        void notify(ReminderScheduler.Kind kind, Appointment appointment, Patient patient);
+    }
+
+    // Appends a tab-separated line per notice, for a mail or SMS gateway to pick up
+    static class FileReminderSink implements ReminderSink, Closeable {
+        private final BufferedWriter out;
+
+        FileReminderSink(Path file) throws IOException {
+            out = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+
+        @Override
+        public synchronized void notify(ReminderScheduler.Kind kind, Appointment a, Patient p) {
+            try {
+                out.write(LocalDateTime.now().format(DATE_TIME_FORMAT) + "\t" + kind + "\t" + a.getId() + "\t"
+                        + a.getAppointmentDateTime().format(DATE_TIME_FORMAT) + "\t" + a.getDoctorName() + "\t"
+                        + (p != null ? p.getName() + "\t" + p.getContact() : "\t"));
+                out.newLine();
+                out.flush();
+            } catch(IOException ex) {
+                System.err.println("Could not write reminder for appointment " + a.getId() + ": " + ex);
+            }
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            out.close();
+        }
+    }
+
+    // Reminds the patient a day and an hour before each appointment and marks it a no-show when
+    // nobody has checked them in 15 minutes after the start. The wheel holds only the next trigger of
+    // each appointment; firing one schedules the one after. At startup every stored appointment is
+    // scheduled again. Sent reminders are persisted with the appointment, so a restart doesn't repeat
+    // them, and a trigger that fell due while the application was down still fires if it is no later
+    // than its kind's late limit.
+    static class ReminderScheduler {
+        enum Kind {
+            DAY_BEFORE(-24 * 3600, 3600),
+            HOUR_BEFORE(-3600, 3600),
+            NO_SHOW(15 * 60, 24 * 3600);
+
+            final long offsetSeconds;     // from the appointment's start
+            final long lateLimitSeconds;  // dropped when it would fire later than this
+
+            Kind(long offsetSeconds, long lateLimitSeconds) {
+                this.offsetSeconds = offsetSeconds;
+                this.lateLimitSeconds = lateLimitSeconds;
+            }
+        }
+
+        private static final Kind[] KINDS = Kind.values();
+
+        private final HospitalManagementSystemGUI app;
+        private final LongSupplier clock;  // epoch seconds
+        private final TimingWheel wheel;
+        private final List<ReminderSink> sinks = new CopyOnWriteArrayList<>();
+        private final LongAdder remindersSent, noShows;
+        private byte[] kinds = new byte[1024];  // kind of each id's pending trigger
+        private Thread thread;
+
+        ReminderScheduler(HospitalManagementSystemGUI app, LongSupplier clock) {
+            this.app = app;
+            this.clock = clock;
+            this.wheel = new TimingWheel(clock.getAsLong());
+            this.remindersSent = app.metrics.counter("reminders.sent");
+            this.noShows = app.metrics.counter("reminders.noShows");
+        }
+
+        public void addSink(ReminderSink sink) { sinks.add(sink); }
+
+        public synchronized int pending() { return wheel.size(); }
+
+        // Registers the appointment's next trigger; does nothing if it already has one
+        public void schedule(Appointment a) {
+            scheduleFrom(a, 0);
+        }
+
+        public void start() {
+            thread = new Thread(this::run, "hms-reminders");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        // Ticks on each second boundary; a late wake-up (e.g. after the machine slept) catches up in one go
+        private void run() {
+            while(true) {
+                try {
+                    Thread.sleep(1000 - System.currentTimeMillis() % 1000);
+                } catch(InterruptedException ex) {
+                    return;
+                }
+                tick();
+            }
+        }
+
+        // Fires every trigger due by the clock's current second
+        void tick() {
+            int[] due;
+            byte[] dueKinds;
+            synchronized(this) {
+                due = wheel.advance(clock.getAsLong());
+                dueKinds = new byte[due.length];
+                for(int i = 0; i < due.length; i++) dueKinds[i] = kinds[due[i]];
+            }
+            for(int i = 0; i < due.length; i++) {
+                Appointment a = app.appointments.get(due[i]);
+                if(a != null) fire(a, KINDS[dueKinds[i]]);
+            }
+        }
+
+        private void fire(Appointment a, Kind kind) {
+            boolean changed;
+            CompletableFuture<Void> commit = null;
+            synchronized(a) {
+                changed = kind == Kind.NO_SHOW ? a.markNoShow()
+                        : a.getStatusCode() == Appointment.SCHEDULED && a.markReminderSent(kind.ordinal());
+                if(changed && app.persistence != null) commit = app.persistence.logAppointmentStatus(a);
+            }
+            if(commit != null) {
+                try {
+                    commit.join();
+                } catch(CompletionException ex) {
+                    // Nobody is told about a change that was not saved
+                    System.err.println("Could not save the status of appointment " + a.getId() + ": " + ex.getCause());
+                    return;
+                }
+            }
+            if(changed) {
+                if(kind == Kind.NO_SHOW) {
+                    noShows.increment();
+                    app.appointments.updated(a);
+                } else {
+                    remindersSent.increment();
+                }
+                Patient p = app.patients.get(a.getPatientId());
+                for(ReminderSink sink : sinks) {
+                    try {
+                        sink.notify(kind, a, p);
+                    } catch(RuntimeException ex) {
+                        System.err.println("Reminder sink failed for appointment " + a.getId() + ": " + ex);
+                    }
+                }
+            }
+            scheduleFrom(a, kind.ordinal() + 1);
+        }
+
+        // Schedules the first trigger from kinds[first..] that still applies and isn't too late
+        private synchronized void scheduleFrom(Appointment a, int first) {
+            if(a.getStatusCode() != Appointment.SCHEDULED) return;
+            long now = clock.getAsLong();
+            long start = a.getAppointmentDateTime().atZone(ZoneId.systemDefault()).toEpochSecond();
+            for(int k = first; k < KINDS.length; k++) {
+                Kind kind = KINDS[k];
+                if(kind != Kind.NO_SHOW && (a.getRemindersSent() & (1 << k)) != 0) continue;
+                long due = start + kind.offsetSeconds;
+                if(now > due + kind.lateLimitSeconds) continue;
+                if(wheel.schedule(a.getId(), due)) {
+                    if(a.getId() >= kinds.length) kinds = Arrays.copyOf(kinds, Math.max(a.getId() + 1, kinds.length * 2));
+                    kinds[a.getId()] = (byte) k;
+                }
+                return;
+            }
+        }
+    }
+
+    // --- Billing Ledger ---
+
+    // Running billing totals, updated as bills are created and paid, so the finance figures never
+    // scan the bills. Keeps totals per patient (dense counters indexed by patient id), per billing
+    // day and per month (skip lists keyed by epoch day and by month, for range sums), and overall.
+    // All amounts are minor units. New bills arrive through the repository listener. Payments come
+    // through paid(), which HospitalService calls once per bill when pay() flips it.
+    static class BillingLedger implements RepositoryListener<Billing> {
+        // Immutable figures for one bucket
+        static class Totals {
+            static final Totals EMPTY = new Totals(0, 0, 0);
+
+            final long billed;
+            final long paid;
+            final long bills;
+
+            Totals(long billed, long paid, long bills) {
+                this.billed = billed;
+                this.paid = paid;
+                this.bills = bills;
+            }
+
+            public long unpaid() { return billed - paid; }
+
+            Totals plus(Totals other) {
+                return new Totals(billed + other.billed, paid + other.paid, bills + other.bills);
+            }
+        }
+
+        private static class Rollup {
+            final LongAdder billed = new LongAdder();
+            final LongAdder paid = new LongAdder();
+            final LongAdder bills = new LongAdder();
+
+            Totals totals() { return new Totals(billed.sum(), paid.sum(), bills.sum()); }
+        }
+
+        private final DenseCounters billedByPatient = new DenseCounters();
+        private final DenseCounters paidByPatient = new DenseCounters();
+        private final ConcurrentSkipListMap<Long, Rollup> byDay = new ConcurrentSkipListMap<>();
+        private final ConcurrentSkipListMap<Integer, Rollup> byMonth = new ConcurrentSkipListMap<>();
+        private final Rollup overall = new Rollup();
+
+        // Builds the totals from the bills already loaded and then follows the repository
+        public BillingLedger(Repository<Billing> bills) {
+            for(Billing b : bills.values()) {
+                added(b);
+                if(b.isPaid()) paid(b);
+            }
+            bills.addListener(this);
+        }
+
+        @Override
+        public void added(Billing b) {
+            long amount = b.getAmountMinor();
+            billedByPatient.add(b.getPatientId(), amount);
+            for(Rollup rollup : rollups(b)) {
+                rollup.billed.add(amount);
+                rollup.bills.increment();
+            }
+        }
+
+        public void paid(Billing b) {
+            long amount = b.getAmountMinor();
+            paidByPatient.add(b.getPatientId(), amount);
+            for(Rollup rollup : rollups(b)) rollup.paid.add(amount);
+        }
+
+        public long billedFor(int patientId) { return billedByPatient.get(patientId); }
+        public long outstandingFor(int patientId) { return billedByPatient.get(patientId) - paidByPatient.get(patientId); }
+
+        public Totals overall() { return overall.totals(); }
+
+        public Totals day(LocalDate day) {
+            Rollup rollup = byDay.get(day.toEpochDay());
+            return rollup == null ? Totals.EMPTY : rollup.totals();
+        }
+
+        public Totals month(YearMonth month) {
+            Rollup rollup = byMonth.get(monthKey(month));
+            return rollup == null ? Totals.EMPTY : rollup.totals();
+        }
+
+        // Bills dated in [from, to]; walks one entry per day that has bills
+        public Totals between(LocalDate from, LocalDate to) {
+            Totals sum = Totals.EMPTY;
+            if(from.isAfter(to)) return sum;
+            for(Rollup rollup : byDay.subMap(from.toEpochDay(), true, to.toEpochDay(), true).values()) {
+                sum = sum.plus(rollup.totals());
+            }
+            return sum;
+        }
+
+        private Rollup[] rollups(Billing b) {
+            LocalDate day = b.getBillingDate().toLocalDate();
+            return new Rollup[]{
+                overall,
+                byDay.computeIfAbsent(day.toEpochDay(), k -> new Rollup()),
+                byMonth.computeIfAbsent(monthKey(YearMonth.from(day)), k -> new Rollup())
+            };
+        }
+
+        private static int monthKey(YearMonth month) {
+            return month.getYear() * 12 + month.getMonthValue() - 1;
+        }
+    }
+
+    // --- EHR Search ---
+
+    // Inverted index over every EHR record, updated as records are added. Each record gets a
+    // sequential doc id, so posting lists are sorted int arrays of doc ids (with a parallel array of
+    // term frequencies) and boolean operators are linear merges.
+    //
+    // Adjacent word pairs are indexed as well, so two-word phrases are answered from postings alone
+    // and longer phrases only re-read the records that contain all of their pairs.
+    //
+    // Query syntax: words are ANDed, "a OR b" matches either, -word excludes, and "quoted words"
+    // must appear as a phrase. Hits are ranked by tf-idf. catchUp and search synchronize on the index.
+    //
+    // Building it inflates every sealed EHR segment, so it starts empty and warm() fills it on a
+    // background thread; search refuses until then. catchUp indexes the records of one EHR that the
+    // index hasn't seen yet, so the warm-up and appends racing it never index a record twice.
+    static class EHRSearchIndex {
+        static class Hit {
+            final int patientId;
+            final int recordIndex;
+            final String record;
+            final double score;
+
+            Hit(int patientId, int recordIndex, String record, double score) {
+                this.patientId = patientId;
+                this.recordIndex = recordIndex;
+                this.record = record;
+                this.score = score;
+            }
+        }
+
+        private static class Postings {
+            int[] docs = new int[2];
+            int[] freqs = new int[2];
+            int size;
+
+            void add(int doc, int freq) {
+                if(size == docs.length) {
+                    docs = Arrays.copyOf(docs, size * 2);
+                    freqs = Arrays.copyOf(freqs, size * 2);
+                }
+                docs[size] = doc;
+                freqs[size] = freq;
+                size++;
+            }
+
+            int freq(int doc) {
+                int i = Arrays.binarySearch(docs, 0, size, doc);
+                return i >= 0 ? freqs[i] : 0;
+            }
+        }
+
+        private static final int[] NO_DOCS = new int[0];
+        private static final char PAIR_SEPARATOR = '\u0001';
+
+        private final Repository<EHR> ehrs;
+        private final HashMap<String, Postings> postings = new HashMap<>();
+        private int[] docPatient = new int[1024];
+        private int[] docRecord = new int[1024];
+        private int docCount;
+        // Per patient id: how many of its records are indexed
+        private int[] indexedRecords = new int[1024];
+        private volatile boolean ready;
+
+        public EHRSearchIndex(Repository<EHR> ehrs) {
+            this.ehrs = ehrs;
+        }
+
+        // Indexes every stored EHR; records appended meanwhile are caught up by whichever gets there first
+        public void warm() {
+            for(EHR ehr : ehrs.values()) catchUp(ehr);
+            ready = true;
+        }
+
+        public boolean isReady() { return ready; }
+
+        public synchronized void catchUp(EHR ehr) {
+            int patientId = ehr.getPatientId();
+            if(patientId >= indexedRecords.length) {
+                indexedRecords = Arrays.copyOf(indexedRecords, Math.max(patientId + 1, indexedRecords.length * 2));
+            }
+            int from = indexedRecords[patientId];
+            List<String> records = ehr.getRecords(from, Integer.MAX_VALUE - from);
+            for(int i = 0; i < records.size(); i++) add(patientId, from + i, records.get(i));
+            indexedRecords[patientId] = from + records.size();
+        }
+
+        private void add(int patientId, int recordIndex, String record) {
+            if(docCount == docPatient.length) {
+                docPatient = Arrays.copyOf(docPatient, docCount * 2);
+                docRecord = Arrays.copyOf(docRecord, docCount * 2);
+            }
+            int doc = docCount++;
+            docPatient[doc] = patientId;
+            docRecord[doc] = recordIndex;
+
+            Map<String, Integer> freqs = new HashMap<>();
+            List<String> terms = tokenize(record);
+            for(int i = 0; i < terms.size(); i++) {
+                freqs.merge(terms.get(i), 1, Integer::sum);
+                if(i > 0) freqs.merge(pair(terms.get(i - 1), terms.get(i)), 1, Integer::sum);
+            }
+            for(Map.Entry<String, Integer> entry : freqs.entrySet()) {
+                postings.computeIfAbsent(entry.getKey(), k -> new Postings()).add(doc, entry.getValue());
+            }
+        }
+
+        public List<Hit> search(String query, int limit) {
+            if(limit <= 0) throw new IllegalArgumentException("Limit must be positive, was " + limit + ".");
+            if(!ready) throw new IllegalStateException("The record index is still warming up. Try again in a moment.");
+            synchronized(this) {
+                return rank(query, limit);
+            }
+        }
+
+        private List<Hit> rank(String query, int limit) {
+            List<List<List<String>>> required = new ArrayList<>(); // AND of (OR of phrases)
+            List<String> excluded = new ArrayList<>();
+            parse(query, required, excluded);
+            if(required.isEmpty()) return Collections.emptyList();
+
+            int[] docs = null;
+            for(List<List<String>> alternatives : required) {
+                int[] groupDocs = NO_DOCS;
+                for(List<String> phrase : alternatives) groupDocs = union(groupDocs, phraseCandidates(phrase));
+                docs = docs == null ? groupDocs : intersect(docs, groupDocs);
+            }
+            for(String term : excluded) docs = subtract(docs, docsOf(term));
+
+            Map<String, Postings> queryPostings = new HashMap<>();
+            for(List<List<String>> alternatives : required) {
+                for(List<String> phrase : alternatives) {
+                    for(String term : phrase) queryPostings.put(term, postings.get(term));
+                }
+            }
+
+            PriorityQueue<Hit> top = new PriorityQueue<>(Comparator.comparingDouble((Hit h) -> h.score));
+            for(int doc : docs) {
+                String record = null;
+                double score = 0;
+                boolean matched = true;
+                for(List<List<String>> alternatives : required) {
+                    boolean groupMatched = false;
+                    for(List<String> phrase : alternatives) {
+                        // With OR the doc may have come from another alternative
+                        if(alternatives.size() > 1 && !isCandidate(phrase, doc)) continue;
+                        if(phrase.size() > 2) {
+                            if(record == null) record = recordText(doc);
+                            if(!containsPhrase(tokenize(record), phrase)) continue;
+                        }
+                        groupMatched = true;
+                        for(String term : phrase) score += tfIdf(queryPostings.get(term), doc);
+                    }
+                    if(!groupMatched) { matched = false; break; }
+                }
+                if(!matched) continue;
+                if(top.size() < limit || score > top.peek().score) {
+                    if(record == null) record = recordText(doc);
+                    top.add(new Hit(docPatient[doc], docRecord[doc], record, score));
+                    if(top.size() > limit) top.poll();
+                }
+            }
+            List<Hit> hits = new ArrayList<>(top);
+            hits.sort(Comparator.comparingDouble((Hit h) -> h.score).reversed());
+            return hits;
+        }
+
+        private boolean isCandidate(List<String> phrase, int doc) {
+            if(phrase.size() == 1) return contains(phrase.get(0), doc);
+            for(int i = 1; i < phrase.size(); i++) {
+                if(!contains(pair(phrase.get(i - 1), phrase.get(i)), doc)) return false;
+            }
+            return true;
+        }
+
+        private boolean contains(String term, int doc) {
+            Postings p = postings.get(term);
+            return p != null && p.freq(doc) > 0;
+        }
+
+        private double tfIdf(Postings p, int doc) {
+            if(p == null) return 0;
+            return p.freq(doc) * Math.log(1 + (double) docCount / p.size);
+        }
+
+        private String recordText(int doc) {
+            return ehrs.get(docPatient[doc]).getRecord(docRecord[doc]);
+        }
+
+        private int[] docsOf(String term) {
+            Postings p = postings.get(term);
+            return p == null ? NO_DOCS : Arrays.copyOf(p.docs, p.size);
+        }
+
+        // Docs containing every adjacent pair of the phrase (or the word, for a single word)
+        private int[] phraseCandidates(List<String> phrase) {
+            if(phrase.size() == 1) return docsOf(phrase.get(0));
+            int[] docs = docsOf(pair(phrase.get(0), phrase.get(1)));
+            for(int i = 2; i < phrase.size() && docs.length > 0; i++) {
+                docs = intersect(docs, docsOf(pair(phrase.get(i - 1), phrase.get(i))));
+            }
+            return docs;
+        }
+
+        private static String pair(String first, String second) {
+            return first + PAIR_SEPARATOR + second;
+        }
+
+        private static void parse(String query, List<List<List<String>>> required, List<String> excluded) {
+            boolean or = false;
+            int i = 0;
+            while(i < query.length()) {
+                char c = query.charAt(i);
+                if(Character.isWhitespace(c)) { i++; continue; }
+                List<String> phrase;
+                boolean negate = false;
+                if(c == '-') { negate = true; i++; }
+                if(i < query.length() && query.charAt(i) == '"') {
+                    int end = query.indexOf('"', i + 1);
+                    if(end < 0) end = query.length();
+                    phrase = tokenize(query.substring(i + 1, end));
+                    i = end + 1;
+                } else {
+                    int end = i;
+                    while(end < query.length() && !Character.isWhitespace(query.charAt(end))) end++;
+                    String word = query.substring(i, end);
+                    i = end;
+                    if(word.equals("OR") && !negate) { or = !required.isEmpty(); continue; }
+                    phrase = tokenize(word);
+                }
+                if(phrase.isEmpty()) { or = false; continue; }
+                if(negate) {
+                    excluded.addAll(phrase);
+                } else if(or) {
+                    required.get(required.size() - 1).add(phrase);
+                } else {
+                    List<List<String>> alternatives = new ArrayList<>();
+                    alternatives.add(phrase);
+                    required.add(alternatives);
+                }
+                or = false;
+            }
+        }
+
+        static List<String> tokenize(String text) {
+            List<String> terms = new ArrayList<>();
+            int start = -1;
+            for(int i = 0; i <= text.length(); i++) {
+                boolean word = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+                if(word && start < 0) start = i;
+                if(!word && start >= 0) {
+                    terms.add(text.substring(start, i).toLowerCase());
+                    start = -1;
+                }
+            }
+            return terms;
+        }
+
+        private static boolean containsPhrase(List<String> terms, List<String> phrase) {
+            return Collections.indexOfSubList(terms, phrase) >= 0;
+        }
+
+        private static int[] intersect(int[] a, int[] b) {
+            int[] out = new int[Math.min(a.length, b.length)];
+            int i = 0, j = 0, n = 0;
+            while(i < a.length && j < b.length) {
+                if(a[i] < b[j]) i++;
+                else if(a[i] > b[j]) j++;
+                else { out[n++] = a[i]; i++; j++; }
+            }
+            return Arrays.copyOf(out, n);
+        }
+
+        private static int[] union(int[] a, int[] b) {
+            if(a.length == 0) return b;
+            if(b.length == 0) return a;
+            int[] out = new int[a.length + b.length];
+            int i = 0, j = 0, n = 0;
+            while(i < a.length || j < b.length) {
+                if(j == b.length || (i < a.length && a[i] < b[j])) out[n++] = a[i++];
+                else if(i == a.length || b[j] < a[i]) out[n++] = b[j++];
+                else { out[n++] = a[i]; i++; j++; }
+            }
+            return Arrays.copyOf(out, n);
+        }
+
+        private static int[] subtract(int[] a, int[] b) {
+            int[] out = new int[a.length];
+            int i = 0, j = 0, n = 0;
+            while(i < a.length) {
+                while(j < b.length && b[j] < a[i]) j++;
+                if(j < b.length && b[j] == a[i]) i++;
+                else out[n++] = a[i++];
+            }
+            return Arrays.copyOf(out, n);
+        }
+    }
+
+    // --- Patient Matching ---
+
+    // Fuzzy name index and normalized contact index over every patient, updated on the adding
+    // thread, used to warn about duplicate registrations and for search-as-you-type.
+    //
+    // Each name word is padded as " word " and split into trigrams over [ a-z0-9] (accents are
+    // stripped, other characters break words), so a trigram packs into an int below 37^3 and the
+    // posting lists are a plain array indexed by it. Words also get a Soundex code for spellings
+    // that sound alike but share few trigrams. A query counts shared trigrams per patient in a
+    // reused scratch array, so the cost is the length of the posting lists it touches rather than
+    // the number of patients. A duplicate check scores 0.7 * Dice(trigrams) + 0.3 * fraction of words
+    // that sound alike; a search, where the query is usually part of a name, scores mostly on the
+    // fraction of the query's trigrams the name contains.
+    //
+    // Contacts are normalized to the last 10 digits of a phone number or a lowercased e-mail and
+    // kept in an open-addressing table of 64-bit hashes; hits are checked against the patient.
+    //
+    // It starts empty and warm() indexes the stored patients on a background thread while the
+    // repository listener adds new ones; add skips a patient already indexed, so the two can overlap.
+    static class PatientMatcher {
+        static class Match {
+            final Patient patient;
+            final double score;
+            final boolean sameContact;
+
+            Match(Patient patient, double score, boolean sameContact) {
+                this.patient = patient;
+                this.score = score;
+                this.sameContact = sameContact;
+            }
+        }
+
+        // Likely duplicates score at least this on the name, or share the contact
+        static final double DUPLICATE_SCORE = 0.75;
+        static final int DUPLICATE_LIMIT = 10;
+        private static final int ALPHABET = 37;
+        private static final int[] EMPTY = new int[0];
+        // Soundex digit per letter a-z; 0 for vowels, h, w and y
+        private static final String SOUNDEX = "01230120022455012623010202";
+
+        private final Repository<Patient> patients;
+        private final int[][] gramPostings = new int[ALPHABET * ALPHABET * ALPHABET][];
+        private final int[] gramSizes = new int[gramPostings.length];
+        private final int[][] soundPostings = new int[26 * 1000][];
+        private final int[] soundSizes = new int[soundPostings.length];
+        // Per patient id: distinct trigram count, and the query scratch space
+        private short[] gramCounts = new short[1024];
+        private short[] shared = new short[1024];
+        private byte[] sounds = new byte[1024];
+        private int[] touched = new int[1024];
+        private long[] contactKeys = new long[1024];
+        private int[] contactIds = new int[1024];
+        private int contactCount;
+        private final BitSet indexed = new BitSet();
+        private volatile boolean ready;
+
+        public PatientMatcher(Repository<Patient> patients) {
+            this.patients = patients;
+        }
+
+        public void warm() {
+            for(Patient p : patients.values()) add(p);
+            ready = true;
+        }
+
+        public boolean isReady() { return ready; }
+
+        public synchronized void add(Patient p) {
+            int id = p.getId();
+            if(indexed.get(id)) return;
+            indexed.set(id);
+            if(id >= gramCounts.length) {
+                int capacity = Math.max(id + 1, gramCounts.length * 2);
+                gramCounts = Arrays.copyOf(gramCounts, capacity);
+                shared = Arrays.copyOf(shared, capacity);
+                sounds = Arrays.copyOf(sounds, capacity);
+                touched = Arrays.copyOf(touched, capacity);
+            }
+            List<String> words = words(p.getName());
+            int[] grams = grams(words, false);
+            gramCounts[id] = (short) Math.min(grams.length, Short.MAX_VALUE);
+            for(int gram : grams) append(gramPostings, gramSizes, gram, id);
+            for(int sound : soundexCodes(words, false)) append(soundPostings, soundSizes, sound, id);
+
+            String contact = normalizeContact(p.getContact());
+            if(!contact.isEmpty()) addContact(hash(contact), id);
+        }
+
+        // Best matches for a name as typed: the last word counts as a prefix
+        public synchronized List<Match> search(String query, int limit) {
+            return rank(words(query), true, limit, 0);
+        }
+
+        // Patients likely to be the same person: a close name, or the same phone/e-mail
+        public synchronized List<Match> duplicates(String name, String contact) {
+            List<String> words = words(name);
+            List<Match> matches = rank(words, false, DUPLICATE_LIMIT, DUPLICATE_SCORE);
+            Set<Integer> sameContact = new HashSet<>();
+            for(Patient p : withContact(contact)) sameContact.add(p.getId());
+            if(sameContact.isEmpty()) return matches;
+
+            List<Match> result = new ArrayList<>();
+            for(Match m : matches) {
+                boolean same = sameContact.remove(m.patient.getId());
+                result.add(new Match(m.patient, m.score, same));
+            }
+            for(int id : sameContact) {
+                Patient p = patients.get(id);
+                result.add(new Match(p, similarity(words, words(p.getName())), true));
+            }
+            result.sort(Comparator.comparing((Match m) -> !m.sameContact).thenComparing(m -> -m.score));
+            return result;
+        }
+
+        // Patients whose normalized contact equals the given one's
+        public synchronized List<Patient> withContact(String contact) {
+            String key = normalizeContact(contact);
+            if(key.isEmpty()) return Collections.emptyList();
+            long hash = hash(key);
+            List<Patient> result = new ArrayList<>();
+            int mask = contactKeys.length - 1;
+            for(int slot = (int) hash & mask; contactKeys[slot] != 0; slot = (slot + 1) & mask) {
+                if(contactKeys[slot] != hash) continue;
+                Patient p = patients.get(contactIds[slot]);
+                if(p != null && normalizeContact(p.getContact()).equals(key)) result.add(p);
+            }
+            return result;
+        }
+
+        private List<Match> rank(List<String> words, boolean prefix, int limit, double minScore) {
+            int[] grams = grams(words, prefix);
+            int[] codes = soundexCodes(words, prefix);
+            if(grams.length == 0) return Collections.emptyList();
+
+            int count = 0;
+            for(int gram : grams) {
+                int[] ids = gramPostings[gram];
+                for(int i = 0, n = gramSizes[gram]; i < n; i++) {
+                    int id = ids[i];
+                    if(shared[id]++ == 0) touched[count++] = id;
+                }
+            }
+            // Sounding alike only adds to names that share a trigram; alone it can't reach a useful score
+            for(int code : codes) {
+                int[] ids = soundPostings[code];
+                for(int i = 0, n = soundSizes[code]; i < n; i++) {
+                    int id = ids[i];
+                    if(shared[id] != 0) sounds[id]++;
+                }
+            }
+
+            PriorityQueue<Match> top = new PriorityQueue<>(Comparator.comparingDouble((Match m) -> m.score));
+            for(int i = 0; i < count; i++) {
+                int id = touched[i];
+                double score = prefix ? coverage(shared[id], grams.length, gramCounts[id], sounds[id], codes.length)
+                        : score(shared[id], grams.length, gramCounts[id], sounds[id], codes.length);
+                shared[id] = 0;
+                sounds[id] = 0;
+                if(score < minScore || (top.size() == limit && score <= top.peek().score)) continue;
+                Patient p = patients.get(id);
+                if(p == null) continue;
+                top.add(new Match(p, score, false));
+                if(top.size() > limit) top.poll();
+            }
+            List<Match> result = new ArrayList<>(top);
+            result.sort(Comparator.comparingDouble((Match m) -> -m.score).thenComparingInt(m -> m.patient.getId()));
+            return result;
+        }
+
+        private static double score(int sharedGrams, int queryGrams, int nameGrams, int sharedSounds, int querySounds) {
+            double dice = 2.0 * sharedGrams / (queryGrams + nameGrams);
+            if(querySounds == 0) return dice;
+            return 0.7 * dice + 0.3 * sharedSounds / querySounds;
+        }
+
+        private static double coverage(int sharedGrams, int queryGrams, int nameGrams, int sharedSounds, int querySounds) {
+            double dice = 2.0 * sharedGrams / (queryGrams + nameGrams);
+            double sound = querySounds == 0 ? 0 : (double) sharedSounds / querySounds;
+            return 0.8 * sharedGrams / queryGrams + 0.1 * dice + 0.1 * sound;
+        }
+
+        // Same score as a duplicate check for two names, without the index
+        static double similarity(List<String> a, List<String> b) {
+            int[] gramsA = grams(a, false), gramsB = grams(b, false);
+            if(gramsA.length == 0 || gramsB.length == 0) return 0;
+            int[] soundsA = soundexCodes(a, false), soundsB = soundexCodes(b, false);
+            return score(countShared(gramsA, gramsB), gramsA.length, gramsB.length, countShared(soundsA, soundsB), soundsA.length);
+        }
+
+        private static int countShared(int[] a, int[] b) {
+            int i = 0, j = 0, n = 0;
+            while(i < a.length && j < b.length) {
+                if(a[i] < b[j]) i++;
+                else if(a[i] > b[j]) j++;
+                else { n++; i++; j++; }
+            }
+            return n;
+        }
+
+        private static void append(int[][] postings, int[] sizes, int key, int id) {
+            int[] ids = postings[key];
+            if(ids == null) ids = postings[key] = new int[4];
+            else if(sizes[key] == ids.length) ids = postings[key] = Arrays.copyOf(ids, ids.length * 2);
+            ids[sizes[key]++] = id;
+        }
+
+        private void addContact(long hash, int id) {
+            if(2 * (contactCount + 1) > contactKeys.length) {
+                long[] oldKeys = contactKeys;
+                int[] oldIds = contactIds;
+                contactKeys = new long[oldKeys.length * 2];
+                contactIds = new int[oldKeys.length * 2];
+                contactCount = 0;
+                for(int i = 0; i < oldKeys.length; i++) {
+                    if(oldKeys[i] != 0) addContact(oldKeys[i], oldIds[i]);
+                }
+            }
+            int mask = contactKeys.length - 1;
+            int slot = (int) hash & mask;
+            while(contactKeys[slot] != 0) slot = (slot + 1) & mask;
+            contactKeys[slot] = hash;
+            contactIds[slot] = id;
+            contactCount++;
+        }
+
+        // 64-bit FNV-1a, never 0 (the empty slot marker)
+        private static long hash(String key) {
+            long h = 0xcbf29ce484222325L;
+            for(int i = 0; i < key.length(); i++) {
+                h ^= key.charAt(i);
+                h *= 0x100000001b3L;
+            }
+            return h == 0 ? 1 : h;
+        }
+
+        // Lowercase words of [a-z0-9] with accents removed
+        static List<String> words(String text) {
+            boolean ascii = true;
+            for(int i = 0; i < text.length() && ascii; i++) ascii = text.charAt(i) < 0x80;
+            String folded = (ascii ? text : Normalizer.normalize(text, Normalizer.Form.NFD)).toLowerCase();
+            List<String> words = new ArrayList<>();
+            StringBuilder word = new StringBuilder();
+            for(int i = 0; i <= folded.length(); i++) {
+                char c = i < folded.length() ? folded.charAt(i) : ' ';
+                if((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')) {
+                    word.append(c);
+                } else if(Character.getType(c) != Character.NON_SPACING_MARK && word.length() > 0) {
+                    words.add(word.toString());
+                    word.setLength(0);
+                }
+            }
+            return words;
+        }
+
+        // Sorted distinct trigram codes. In prefix mode the last word gets no end padding, so a
+        // single typed letter adds nothing: a trigram per starting letter would list a 26th of all
+        // names and make every query that scans it slow.
+        static int[] grams(List<String> words, boolean prefix) {
+            int[] grams = new int[0];
+            int n = 0;
+            for(int w = 0; w < words.size(); w++) {
+                String word = words.get(w);
+                boolean open = prefix && w == words.size() - 1;
+                int padded = word.length() + (open ? 1 : 2);
+                if(padded < 3) continue;
+                if(n + padded > grams.length) grams = Arrays.copyOf(grams, Math.max(n + padded, grams.length * 2));
+                int a = 0, b = symbol(word.charAt(0));
+                for(int i = 1; i < padded - 1; i++) {
+                    int c = i < word.length() ? symbol(word.charAt(i)) : 0;
+                    grams[n++] = (a * ALPHABET + b) * ALPHABET + c;
+                    a = b;
+                    b = c;
+                }
+            }
+            return distinct(grams, n);
+        }
+
+        private static int symbol(char c) {
+            return c <= '9' ? 27 + (c - '0') : 1 + (c - 'a');
+        }
+
+        // Soundex codes (letter * 1000 + three digits) of the words that start with a letter;
+        // in prefix mode the unfinished last word is left out
+        static int[] soundexCodes(List<String> words, boolean prefix) {
+            int last = prefix ? words.size() - 1 : words.size();
+            int[] codes = new int[Math.max(last, 0)];
+            int n = 0;
+            for(int w = 0; w < last; w++) {
+                String word = words.get(w);
+                char first = word.charAt(0);
+                if(first < 'a' || first > 'z') continue;
+                int code = 0, digits = 0;
+                char previous = SOUNDEX.charAt(first - 'a');
+                for(int i = 1; i < word.length() && digits < 3; i++) {
+                    char c = word.charAt(i);
+                    if(c < 'a' || c > 'z') break;
+                    char digit = SOUNDEX.charAt(c - 'a');
+                    if(digit != '0' && digit != previous) {
+                        code = code * 10 + (digit - '0');
+                        digits++;
+                    }
+                    // h and w don't separate equal codes, vowels do
+                    if(c != 'h' && c != 'w') previous = digit;
+                }
+                for(; digits < 3; digits++) code *= 10;
+                codes[n++] = (first - 'a') * 1000 + code;
+            }
+            return distinct(codes, n);
+        }
+
+        private static int[] distinct(int[] values, int n) {
+            if(n == 0) return EMPTY;
+            Arrays.sort(values, 0, n);
+            int m = 1;
+            for(int i = 1; i < n; i++) {
+                if(values[i] != values[m - 1]) values[m++] = values[i];
+            }
+            return Arrays.copyOf(values, m);
+        }
+
+        // Last 10 digits of a phone number, a lowercased e-mail, or "" when neither
+        static String normalizeContact(String contact) {
+            String trimmed = contact.trim();
+            if(trimmed.indexOf('@') > 0) {
+                StringBuilder email = new StringBuilder();
+                for(int i = 0; i < trimmed.length(); i++) {
+                    if(!Character.isWhitespace(trimmed.charAt(i))) email.append(Character.toLowerCase(trimmed.charAt(i)));
+                }
+                return email.toString();
+            }
+            StringBuilder digits = new StringBuilder();
+            for(int i = 0; i < trimmed.length(); i++) {
+                char c = trimmed.charAt(i);
+                if(c >= '0' && c <= '9') digits.append(c);
+            }
+            if(digits.length() < 5) return "";
+            return digits.length() > 10 ? digits.substring(digits.length() - 10) : digits.toString();
+        }
+    }
+
+    // --- Metrics ---
+
+    // Named counters, latency histograms (in nanoseconds) and gauges. Metrics are created on first
+    // use and kept for the life of the process; callers hold on to them, so recording does no lookups.
+    static class Metrics {
+        // Timing for one service call: its latency plus a count of calls rejected with an exception
+        static class Operation {
+            private final LatencyHistogram latency;
+            private final LongAdder rejected;
+
+            Operation(LatencyHistogram latency, LongAdder rejected) {
+                this.latency = latency;
+                this.rejected = rejected;
+            }
+
+            public void record(long startNanos) { latency.record(System.nanoTime() - startNanos); }
+
+            public RuntimeException rejected(RuntimeException ex) {
+                rejected.increment();
+                return ex;
+            }
+        }
+
+        private final Map<String, LatencyHistogram> histograms = new ConcurrentSkipListMap<>();
+        private final Map<String, LongAdder> counters = new ConcurrentSkipListMap<>();
+        private final Map<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+
+        public LatencyHistogram histogram(String name) { return histograms.computeIfAbsent(name, n -> new LatencyHistogram()); }
+        public LongAdder counter(String name) { return counters.computeIfAbsent(name, n -> new LongAdder()); }
+        public void gauge(String name, LongSupplier value) { gauges.put(name, value); }
+
+        public Operation operation(String name) {
+            return new Operation(histogram(name), counter(name + ".rejected"));
+        }
+
+        public Map<String, LatencyHistogram> histograms() { return histograms; }
+        public Map<String, LongAdder> counters() { return counters; }
+        public Map<String, LongSupplier> gauges() { return gauges; }
+
+        // Clears histograms and counters; gauges read live values anyway
+        public void reset() {
+            for(LatencyHistogram h : histograms.values()) h.reset();
+            for(LongAdder c : counters.values()) c.reset();
+        }
+
+        // Plain-text report of every metric, latencies in milliseconds
+        public void dump(PrintWriter out) {
+            out.printf("--- metrics %s ---%n", LocalDateTime.now().format(DATE_TIME_FORMAT));
+            for(Map.Entry<String, LatencyHistogram> e : histograms.entrySet()) {
+                LatencyHistogram h = e.getValue();
+                if(h.count() == 0) continue;
+                out.printf("%-28s count %-9d p50 %9s  p99 %9s  max %9s%n", e.getKey(), h.count(),
+                        millis(h.percentile(0.50)), millis(h.percentile(0.99)), millis(h.max()));
+            }
+            for(Map.Entry<String, LongAdder> e : counters.entrySet()) {
+                long value = e.getValue().sum();
+                if(value != 0) out.printf("%-28s %d%n", e.getKey(), value);
+            }
+            for(Map.Entry<String, LongSupplier> e : gauges.entrySet()) {
+                out.printf("%-28s %d%n", e.getKey(), e.getValue().getAsLong());
+            }
+            out.flush();
+        }
+
+        static String millis(long nanos) {
+            return String.format("%.3f", nanos / 1e6);
+        }
+    }
+
+    // --- EDT Watchdog ---
+
+    // JFR event for a stretch where the EDT didn't get to queued events. Appears in any recording
+    // (e.g. java -XX:StartFlightRecording ...) under the "Hospital Management" category.
+    @Name("hms.EdtStall")
+    @Label("EDT Stall")
+    @Category("Hospital Management")
+    @Description("The event dispatch thread took longer than the stall threshold to run a queued event")
+    @StackTrace(false)
+    static class EdtStallEvent extends jdk.jfr.Event {
+        @Label("Stall")
+        @Timespan(Timespan.MILLISECONDS)
+        long stallMillis;
+
+        @Label("EDT Stack")
+        @Description("Top frames of the EDT while it was stuck")
+        String edtStack;
+    }
+
+    // Posts a no-op to the EDT every PROBE_MILLIS and times how long it waits to run. Waits go to the
+    // "edt.latency" histogram; one longer than the threshold is counted in "edt.stalls" and committed
+    // as an EdtStallEvent, with the EDT's stack as the watchdog saw it during the stall. Stalls are
+    // timed from when the probe was posted, so they can read up to PROBE_MILLIS short.
+    static class EdtWatchdog implements Runnable {
+        static final long PROBE_MILLIS = 50;
+        private static final int STACK_FRAMES = 12;
+
+        private final long thresholdNanos;
+        private final LatencyHistogram latency;
+        private final LongAdder stalls;
+        private volatile long postedAt;  // 0 while no probe is queued
+        private volatile Thread edt;
+        private volatile String stuckStack;
+
+        EdtWatchdog(Metrics metrics, long thresholdMillis) {
+            this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+            this.latency = metrics.histogram("edt.latency");
+            this.stalls = metrics.counter("edt.stalls");
+        }
+
+        void start() {
+            Thread t = new Thread(this, "hms-edt-watchdog");
+            t.setDaemon(true);
+            t.start();
+        }
+
+        @Override
+        public void run() {
+            while(true) {
+                try {
+                    Thread.sleep(PROBE_MILLIS);
+                } catch(InterruptedException ex) {
+                    return;
+                }
+                long posted = postedAt;
+                if(posted == 0) {
+                    stuckStack = null;
+                    postedAt = System.nanoTime();
+                    SwingUtilities.invokeLater(this::probe);
+                } else if(stuckStack == null && edt != null && System.nanoTime() - posted > thresholdNanos) {
+                    stuckStack = stackOf(edt);
+                }
+            }
+        }
+
+        private void probe() {
+            edt = Thread.currentThread();
+            long waited = System.nanoTime() - postedAt;
+            latency.record(waited);
+            if(waited > thresholdNanos) {
+                stalls.increment();
+                EdtStallEvent event = new EdtStallEvent();
+                if(event.isEnabled()) {
+                    event.stallMillis = TimeUnit.NANOSECONDS.toMillis(waited);
+                    event.edtStack = stuckStack;
+                    event.commit();
+                }
+            }
+            postedAt = 0;
+        }
+
+        private static String stackOf(Thread thread) {
+            StringBuilder text = new StringBuilder();
+            StackTraceElement[] frames = thread.getStackTrace();
+            for(int i = 0; i < Math.min(frames.length, STACK_FRAMES); i++) text.append(frames[i]).append('\n');
+            return text.toString();
+        }
+    }
+
+    // --- Service Layer ---
+
+    // Validation and creation logic for every entity, usable without Swing. Invalid input is
+    // reported as IllegalArgumentException with the message the panels show; a booking that clashes
+    // with the doctor's schedule is an IllegalStateException. Safe to call from any thread.
+    // Every public operation is timed into app.metrics under the name set in the constructor.
+    static class HospitalService {
+        private final HospitalManagementSystemGUI app;
+        private final Metrics.Operation patientRegister, patientDuplicates, patientSearch, appointmentSchedule, appointmentCheckIn, ehrAppend, ehrLoad, billCreate, billPay,
+                inventoryAdd, inventoryRestock, inventoryDispense, inventoryReserve, inventoryCommit, inventoryRelease,
+                inventoryReorderLevel, staffAdd, staffShift, rosterFreeAt, rosterNextFree;
+        // The last write logged by the batch running on this thread, if one is
+        private final ThreadLocal<Batch> batchCommit = new ThreadLocal<>();
+
+        public HospitalService(HospitalManagementSystemGUI app) {
+            this.app = app;
+            Metrics metrics = app.metrics;
+            patientRegister = metrics.operation("patient.register");
+            patientDuplicates = metrics.operation("patient.duplicates");
+            patientSearch = metrics.operation("patient.search");
+            appointmentSchedule = metrics.operation("appointment.schedule");
+            appointmentCheckIn = metrics.operation("appointment.checkIn");
+            ehrAppend = metrics.operation("ehr.append");
+            ehrLoad = metrics.operation("ehr.load");
+            billCreate = metrics.operation("bill.create");
+            billPay = metrics.operation("bill.pay");
+            inventoryAdd = metrics.operation("inventory.add");
+            inventoryRestock = metrics.operation("inventory.restock");
+            inventoryDispense = metrics.operation("inventory.dispense");
+            inventoryReserve = metrics.operation("inventory.reserve");
+            inventoryCommit = metrics.operation("inventory.commit");
+            inventoryRelease = metrics.operation("inventory.release");
+            inventoryReorderLevel = metrics.operation("inventory.reorderLevel");
+            staffAdd = metrics.operation("staff.add");
+            staffShift = metrics.operation("staff.shift");
+            rosterFreeAt = metrics.operation("roster.freeAt");
+            rosterNextFree = metrics.operation("roster.nextFree");
+        }
+
+        public Patient registerPatient(String name, String ageText, String gender, String contact) {
+            long start = System.nanoTime();
+            try {
+                name = trim(name);
+                ageText = trim(ageText);
+                gender = trim(gender);
+                contact = trim(contact);
+                if(name.isEmpty() || ageText.isEmpty() || gender.isEmpty() || contact.isEmpty()) {
+                    throw new IllegalArgumentException("Please fill all fields.");
+                }
+                int age = parsePositiveInt(ageText, "Age must be a positive integer.");
+
+                return create(new Patient(name, age, gender, contact), p -> app.persistence.logPatient(p), app.patients);
+            } catch(RuntimeException ex) {
+                throw patientRegister.rejected(ex);
+            } finally {
+                patientRegister.record(start);
+            }
+        }
+
+        // Registered patients who are probably the person about to be registered, same contact first
+        public List<PatientMatcher.Match> findDuplicates(String name, String contact) {
+            long start = System.nanoTime();
+            try {
+                return matcher().duplicates(trim(name), trim(contact));
+            } catch(RuntimeException ex) {
+                throw patientDuplicates.rejected(ex);
+            } finally {
+                patientDuplicates.record(start);
+            }
+        }
+
+        // Ranked results for a search box: the patient with that ID and patients with that phone
+        // or e-mail first, then fuzzy name matches with the last word taken as a prefix
+        public List<Patient> searchPatients(String query, int limit) {
+            long start = System.nanoTime();
+            try {
+                query = trim(query);
+                LinkedHashSet<Patient> result = new LinkedHashSet<>();
+                if(query.isEmpty()) return new ArrayList<>(result);
+                if(query.length() < 10 && query.chars().allMatch(c -> c >= '0' && c <= '9')) {
+                    Patient p = app.patients.get(Integer.parseInt(query));
+                    if(p != null) result.add(p);
+                }
+                PatientMatcher matcher = matcher();
+                result.addAll(matcher.withContact(query));
+                for(PatientMatcher.Match m : matcher.search(query, limit)) {
+                    if(result.size() >= limit) break;
+                    result.add(m.patient);
+                }
+                return new ArrayList<>(result);
+            } catch(RuntimeException ex) {
+                throw patientSearch.rejected(ex);
+            } finally {
+                patientSearch.record(start);
+            }
+        }
+
+        public Appointment scheduleAppointment(int patientId, String doctor, String dateTimeText) {
+            long start = System.nanoTime();
+            try {
+                doctor = trim(doctor);
+                dateTimeText = trim(dateTimeText);
+                if(app.patients.get(patientId) == null) throw new IllegalArgumentException("Unknown patient ID " + patientId + ".");
+                if(doctor.isEmpty() || dateTimeText.isEmpty()) {
+                    throw new IllegalArgumentException("Doctor and DateTime must be provided.");
+                }
+                LocalDateTime dateTime;
+                try {
+                    dateTime = LocalDateTime.parse(dateTimeText, DATE_TIME_FORMAT);
+                } catch(DateTimeParseException ex) {
+                    throw new IllegalArgumentException("DateTime format invalid. Use yyyy-MM-dd HH:mm");
+                }
+                // A doctor name that belongs to exactly one staff member links the appointment to them
+                int staffId = Math.max(app.roster.staffNamed(doctor), 0);
+                if(staffId != 0 && app.roster.hasShifts(staffId) && !app.roster.onShift(staffId, dateTime)) {
+                    throw new IllegalStateException(doctor + " is not on shift at " + dateTime.format(DATE_TIME_FORMAT) + ".");
+                }
+
+                // Check and take the slot in the index under its lock so two terminals can't book the
+                // same slot; the slot is held while the booking is saved and given back if that fails
+                Appointment a;
+                beginChange();
+                try {
+                    CompletableFuture<Void> commit = null;
+                    synchronized(app.appointmentIndex) {
+                        Appointment clash = app.appointmentIndex.findConflict(doctor, dateTime);
+                        if(clash != null) {
+                            throw new IllegalStateException(doctor + " is already booked at "
+                                    + clash.getAppointmentDateTime().format(DATE_TIME_FORMAT) + " (appointment ID " + clash.getId() + ").");
+                        }
+                        a = new Appointment(patientId, staffId, doctor, dateTime);
+                        app.appointmentIndex.add(a);
+                        if(app.persistence != null) commit = app.persistence.logAppointment(a);
+                    }
+                    publishAfter(commit, () -> app.appointments.add(a), () -> app.appointmentIndex.remove(a));
+                } finally {
+                    endChange();
+                }
+                return a;
+            } catch(RuntimeException ex) {
+                throw appointmentSchedule.rejected(ex);
+            } finally {
+                appointmentSchedule.record(start);
+            }
+        }
+
+        // Records that the patient has arrived, which also keeps the appointment from being marked a no-show
+        public Appointment checkIn(int appointmentId) {
+            long start = System.nanoTime();
+            try {
+                Appointment a = app.appointments.get(appointmentId);
+                if(a == null) throw new IllegalArgumentException("Unknown appointment ID " + appointmentId + ".");
+                CompletableFuture<Void> commit = null;
+                synchronized(a) {
+                    if(!a.checkIn()) throw new IllegalStateException("Appointment " + appointmentId + " is already checked in.");
+                    if(app.persistence != null) commit = app.persistence.logAppointmentStatus(a);
+                }
+                awaitCommit(commit);
+                app.appointments.updated(a);
+                return a;
+            } catch(RuntimeException ex) {
+                throw appointmentCheckIn.rejected(ex);
+            } finally {
+                appointmentCheckIn.record(start);
+            }
+        }
+
+        public EHR addEhrRecord(int patientId, String record) {
+            long start = System.nanoTime();
+            try {
+                record = trim(record);
+                if(record.isEmpty()) throw new IllegalArgumentException("Record cannot be empty.");
+                if(app.patients.get(patientId) == null) throw new IllegalArgumentException("Unknown patient ID " + patientId + ".");
+
+                EHR ehr = app.ehrRecords.computeIfAbsent(patientId, EHR::new);
+                int recordIndex;
+                CompletableFuture<Void> commit = null;
+                synchronized(ehr) {
+                    ehr.addRecord(record);
+                    recordIndex = ehr.size() - 1;
+                    if(app.persistence != null) commit = app.persistence.logEhrRecord(patientId, recordIndex, record);
+                }
+                awaitCommit(commit);
+                if(app.ehrSearchIndex != null) app.ehrSearchIndex.catchUp(ehr);
+                app.ehrRecords.updated(ehr);
+                return ehr;
+            } catch(RuntimeException ex) {
+                throw ehrAppend.rejected(ex);
+            } finally {
+                ehrAppend.record(start);
+            }
+        }
+
+        // The patient's record history with its newest records already inflated, so showing it
+        // doesn't decompress a sealed segment on the EDT
+        public EHR openEhr(int patientId) {
+            long start = System.nanoTime();
+            try {
+                if(app.patients.get(patientId) == null) throw new IllegalArgumentException("Unknown patient ID " + patientId + ".");
+                EHR ehr = app.ehrRecords.computeIfAbsent(patientId, EHR::new);
+                ehr.getRecords(Math.max(0, ehr.size() - EHR.SEGMENT_SIZE), EHR.SEGMENT_SIZE);
+                return ehr;
+            } catch(RuntimeException ex) {
+                throw ehrLoad.rejected(ex);
+            } finally {
+                ehrLoad.record(start);
+            }
+        }
+
+        public Billing createBill(int patientId, String amountText) {
+            long start = System.nanoTime();
+            try {
+                amountText = trim(amountText);
+                if(app.patients.get(patientId) == null) throw new IllegalArgumentException("Unknown patient ID " + patientId + ".");
+                if(amountText.isEmpty()) throw new IllegalArgumentException("Amount must be provided.");
+                long amount;
+                try {
+                    amount = Billing.parseAmount(amountText);
+                    if(amount <= 0) throw new NumberFormatException();
+                } catch(NumberFormatException | ArithmeticException ex) {
+                    throw new IllegalArgumentException("Amount must be a positive number with at most two decimal places.");
+                }
+
+                return create(new Billing(patientId, amount), b -> app.persistence.logBill(b), app.bills);
+            } catch(RuntimeException ex) {
+                throw billCreate.rejected(ex);
+            } finally {
+                billCreate.record(start);
+            }
+        }
+
+        // Marks a bill paid. Returns false if it already was.
+        public boolean payBill(int billId) {
+            long start = System.nanoTime();
+            try {
+                Billing bill = app.bills.get(billId);
+                if(bill == null) throw new IllegalArgumentException("Unknown bill ID " + billId + ".");
+                CompletableFuture<Void> commit = null;
+                synchronized(bill) {
+                    if(!bill.pay()) return false;
+                    if(app.persistence != null) commit = app.persistence.logBillPaid(bill);
+                }
+                awaitCommit(commit);
+                if(app.billingLedger != null) app.billingLedger.paid(bill);
+                app.bills.updated(bill);
+                return true;
+            } catch(RuntimeException ex) {
+                throw billPay.rejected(ex);
+            } finally {
+                billPay.record(start);
+            }
+        }
+
+        public InventoryItem addInventoryItem(String name, String quantityText, String unit) {
+            long start = System.nanoTime();
+            try {
+                name = trim(name);
+                quantityText = trim(quantityText);
+                unit = trim(unit);
+                if(name.isEmpty() || quantityText.isEmpty() || unit.isEmpty()) {
+                    throw new IllegalArgumentException("Please fill all fields.");
+                }
+                int quantity = parsePositiveInt(quantityText, "Quantity must be a positive integer.");
+
+                return create(new InventoryItem(name, quantity, unit), item -> app.persistence.logInventoryItem(item),
+                        app.inventoryItems);
+            } catch(RuntimeException ex) {
+                throw inventoryAdd.rejected(ex);
+            } finally {
+                inventoryAdd.record(start);
+            }
+        }
+
+        public void restock(int itemId, String amountText) {
+            long start = System.nanoTime();
+            try {
+                InventoryItem item = inventoryItem(itemId);
+                int amount = parsePositiveInt(trim(amountText), "Quantity must be a positive integer.");
+                if(!moveStock(item, amount, 0)) {
+                    throw new IllegalStateException("Stock of " + item.getName() + " can't exceed " + Integer.MAX_VALUE + ".");
+                }
+            } catch(RuntimeException ex) {
+                throw inventoryRestock.rejected(ex);
+            } finally {
+                inventoryRestock.record(start);
+            }
+        }
+
+        // Takes unreserved stock straight off the shelf
+        public void dispense(int itemId, String amountText) {
+            long start = System.nanoTime();
+            try {
+                InventoryItem item = inventoryItem(itemId);
+                int amount = parsePositiveInt(trim(amountText), "Quantity must be a positive integer.");
+                if(!moveStock(item, -amount, 0)) throw insufficient(item);
+            } catch(RuntimeException ex) {
+                throw inventoryDispense.rejected(ex);
+            } finally {
+                inventoryDispense.record(start);
+            }
+        }
+
+        // Holds stock for a dispense that completes later with commit or is abandoned with release
+        public void reserve(int itemId, int amount) {
+            long start = System.nanoTime();
+            try {
+                InventoryItem item = inventoryItem(itemId);
+                if(amount <= 0 || !moveStock(item, 0, amount)) throw insufficient(item);
+            } catch(RuntimeException ex) {
+                throw inventoryReserve.rejected(ex);
+            } finally {
+                inventoryReserve.record(start);
+            }
+        }
+
+        public void commitReservation(int itemId, int amount) {
+            long start = System.nanoTime();
+            try {
+                InventoryItem item = inventoryItem(itemId);
+                if(amount <= 0 || !moveStock(item, -amount, -amount)) {
+                    throw new IllegalStateException("Only " + item.getReserved() + " " + item.getUnit() + " of " + item.getName() + " are reserved.");
+                }
+            } catch(RuntimeException ex) {
+                throw inventoryCommit.rejected(ex);
+            } finally {
+                inventoryCommit.record(start);
+            }
+        }
+
+        public void releaseReservation(int itemId, int amount) {
+            long start = System.nanoTime();
+            try {
+                InventoryItem item = inventoryItem(itemId);
+                if(amount <= 0 || !moveStock(item, 0, -amount)) {
+                    throw new IllegalStateException("Only " + item.getReserved() + " " + item.getUnit() + " of " + item.getName() + " are reserved.");
+                }
+            } catch(RuntimeException ex) {
+                throw inventoryRelease.rejected(ex);
+            } finally {
+                inventoryRelease.record(start);
+            }
+        }
+
+        public void setReorderLevel(int itemId, String levelText) {
+            long start = System.nanoTime();
+            try {
+                InventoryItem item = inventoryItem(itemId);
+                int level;
+                try {
+                    level = Integer.parseInt(trim(levelText));
+                    if(level < 0) throw new NumberFormatException();
+                } catch(NumberFormatException ex) {
+                    throw new IllegalArgumentException("Reorder level must be zero or a positive integer.");
+                }
+                int old;
+                CompletableFuture<Void> commit = null;
+                synchronized(item) {
+                    old = item.setReorderLevel(level);
+                    if(app.persistence != null) commit = app.persistence.logReorderLevel(item);
+                }
+                awaitCommit(commit);
+                if(app.stockAlerts != null) app.stockAlerts.levelChanged(item, old, level);
+                app.inventoryItems.updated(item);
+            } catch(RuntimeException ex) {
+                throw inventoryReorderLevel.rejected(ex);
+            } finally {
+                inventoryReorderLevel.record(start);
+            }
+        }
+
+        private boolean moveStock(InventoryItem item, int onHandDelta, int reservedDelta) {
+            long before = item.adjust(onHandDelta, reservedDelta);
+            if(before == InventoryItem.REJECTED) return false;
+            // The record carries the quantity read when it is written, so the last one logged is current
+            CompletableFuture<Void> commit = null;
+            if(onHandDelta != 0 && app.persistence != null) commit = app.persistence.logInventoryQuantity(item);
+            int availableBefore = InventoryItem.available(before);
+            if(app.stockAlerts != null) app.stockAlerts.moved(item, availableBefore, availableBefore + onHandDelta - reservedDelta);
+            app.inventoryItems.updated(item);
+            awaitCommit(commit);
+            return true;
+        }
+
+        PersistenceEngine persistence() { return app.persistence; }
+
+        // Runs changes as one batch: each logs its writes without waiting for them, and the batch
+        // waits once for the last write before returning. The log fails every write after a failed
+        // one, so that wait covers them all. A change that throws is the caller's to catch.
+        public void batch(Runnable changes) {
+            if(batchCommit.get() != null) {
+                changes.run();
+                return;
+            }
+            Batch batch = new Batch();
+            beginChange();
+            try {
+                batchCommit.set(batch);
+                RuntimeException thrown = null;
+                try {
+                    changes.run();
+                } catch(RuntimeException ex) {
+                    thrown = ex;
+                } finally {
+                    batchCommit.remove();
+                }
+                // Whatever was logged before a throw still has to be published or undone
+                try {
+                    awaitCommit(batch.last);
+                } catch(RuntimeException ex) {
+                    for(Runnable undo : batch.undo) undo.run();
+                    if(thrown == null) throw ex;
+                    thrown.addSuppressed(ex);
+                    throw thrown;
+                }
+                for(Runnable publish : batch.publish) publish.run();
+                if(thrown != null) throw thrown;
+            } finally {
+                endChange();
+            }
+        }
+
+        private static class Batch {
+            CompletableFuture<Void> last;
+            final List<Runnable> publish = new ArrayList<>();
+            final List<Runnable> undo = new ArrayList<>();
+        }
+
+        // Logs a new entity and adds it to its repository once the record is on disk, so nothing
+        // that failed to save is ever shown
+        private <T> T create(T entity, Function<T, CompletableFuture<Void>> log, Repository<T> store) {
+            beginChange();
+            try {
+                publishAfter(app.persistence == null ? null : log.apply(entity), () -> store.add(entity), null);
+            } finally {
+                endChange();
+            }
+            return entity;
+        }
+
+        // Runs publish once the commit is on disk, or undo (if any) and throws if it failed. Inside
+        // batch() both wait for the end of the batch.
+        private void publishAfter(CompletableFuture<Void> commit, Runnable publish, Runnable undo) {
+            Batch batch = batchCommit.get();
+            if(batch != null) {
+                if(commit != null) batch.last = commit;
+                batch.publish.add(publish);
+                if(undo != null) batch.undo.add(undo);
+                return;
+            }
+            try {
+                awaitCommit(commit);
+            } catch(RuntimeException ex) {
+                if(undo != null) undo.run();
+                throw ex;
+            }
+            publish.run();
+        }
+
+        // Between the two, a snapshot can't roll the log; a batch holds this for its whole run
+        private void beginChange() {
+            if(app.persistence != null && batchCommit.get() == null) app.persistence.beginChange();
+        }
+
+        private void endChange() {
+            if(app.persistence != null && batchCommit.get() == null) app.persistence.endChange();
+        }
+
+        // Waits for a logged change to reach the disk, so nothing is reported done that a crash would
+        // lose. Callers release their entity lock first so other changes can share the same fsync.
+        // Inside batch() it only notes the write for the batch to wait on.
+        private void awaitCommit(CompletableFuture<Void> commit) {
+            if(commit == null) return;
+            Batch batch = batchCommit.get();
+            if(batch != null) {
+                batch.last = commit;
+                return;
+            }
+            try {
+                commit.join();
+            } catch(CompletionException ex) {
+                Throwable cause = ex.getCause();
+                throw new UncheckedIOException("The change could not be saved: " + cause,
+                        cause instanceof IOException ? (IOException) cause : new IOException(cause));
+            }
+        }
+
+        private InventoryItem inventoryItem(int itemId) {
+            InventoryItem item = app.inventoryItems.get(itemId);
+            if(item == null) throw new IllegalArgumentException("Unknown item ID " + itemId + ".");
+            return item;
+        }
+
+        // Only the GUI builds the matcher, and it is usable once its background warm-up is done
+        private PatientMatcher matcher() {
+            PatientMatcher matcher = app.patientMatcher;
+            if(matcher == null) throw new IllegalStateException("Patient search is not available here.");
+            if(!matcher.isReady()) throw new IllegalStateException("The patient index is still warming up. Try again in a moment.");
+            return matcher;
+        }
+
+        private static IllegalStateException insufficient(InventoryItem item) {
+            return new IllegalStateException("Only " + item.getAvailable() + " " + item.getUnit() + " of " + item.getName() + " available.");
+        }
+
+        public Staff addStaff(String name, String role, String contact) {
+            long start = System.nanoTime();
+            try {
+                name = trim(name);
+                role = trim(role);
+                contact = trim(contact);
+                if(name.isEmpty() || role.isEmpty() || contact.isEmpty()) {
+                    throw new IllegalArgumentException("Please fill all fields.");
+                }
+
+                return create(new Staff(name, role, contact), s -> app.persistence.logStaff(s), app.staffMembers);
+            } catch(RuntimeException ex) {
+                throw staffAdd.rejected(ex);
+            } finally {
+                staffAdd.record(start);
+            }
+        }
+
+        // Adds a weekly shift on each of the days; a shift ending at or before its start runs past midnight
+        public void addShift(int staffId, Set<DayOfWeek> days, String fromText, String toText) {
+            long start = System.nanoTime();
+            try {
+                Staff staff = app.staffMembers.get(staffId);
+                if(staff == null) throw new IllegalArgumentException("Unknown staff ID " + staffId + ".");
+                if(days.isEmpty()) throw new IllegalArgumentException("Choose at least one day.");
+                int from = parseShiftTime(fromText), to = parseShiftTime(toText);
+
+                // The log fails every write after a failed one, so waiting for the last covers them all
+                CompletableFuture<Void> commit = null;
+                synchronized(app.roster) {
+                    for(DayOfWeek day : days) {
+                        if(from < to) {
+                            commit = shift(staffId, day, from, to);
+                        } else {
+                            commit = shift(staffId, day, from, Roster.SLOTS_PER_DAY);
+                            if(to > 0) commit = shift(staffId, day.plus(1), 0, to);
+                        }
+                    }
+                }
+                awaitCommit(commit);
+                app.staffMembers.updated(staff);
+            } catch(RuntimeException ex) {
+                throw staffShift.rejected(ex);
+            } finally {
+                staffShift.record(start);
+            }
+        }
+
+        public void clearShifts(int staffId) {
+            long start = System.nanoTime();
+            try {
+                Staff staff = app.staffMembers.get(staffId);
+                if(staff == null) throw new IllegalArgumentException("Unknown staff ID " + staffId + ".");
+                CompletableFuture<Void> commit = null;
+                synchronized(app.roster) {
+                    app.roster.clearShifts(staffId);
+                    if(app.persistence != null) commit = app.persistence.logShiftsCleared(staffId);
+                }
+                awaitCommit(commit);
+                app.staffMembers.updated(staff);
+            } catch(RuntimeException ex) {
+                throw staffShift.rejected(ex);
+            } finally {
+                staffShift.record(start);
+            }
+        }
+
+        // Staff with the role (any staff when blank) who are on shift and unbooked for an appointment at the time
+        public List<Staff> freeStaff(String role, String atText) {
+            long start = System.nanoTime();
+            try {
+                LocalDateTime at = parseDateTime(atText);
+                List<Staff> free = new ArrayList<>();
+                for(int staffId : app.roster.freeAt(staffWithRole(role), at)) free.add(app.staffMembers.get(staffId));
+                return free;
+            } catch(RuntimeException ex) {
+                throw rosterFreeAt.rejected(ex);
+            } finally {
+                rosterFreeAt.record(start);
+            }
+        }
+
+        // The earliest appointment slot with any staff member of the role, from the given time or now if blank
+        public Roster.Slot nextFreeSlot(String role, String fromText) {
+            long start = System.nanoTime();
+            try {
+                LocalDateTime from = trim(fromText).isEmpty() ? LocalDateTime.now() : parseDateTime(fromText);
+                Roster.Slot slot = app.roster.nextFree(staffWithRole(role), from);
+                if(slot == null) {
+                    String who = trim(role).isEmpty() ? "Nobody" : "No " + trim(role);
+                    throw new IllegalStateException(who + " on the roster is free in the next " + Roster.HORIZON_DAYS + " days.");
+                }
+                return slot;
+            } catch(RuntimeException ex) {
+                throw rosterNextFree.rejected(ex);
+            } finally {
+                rosterNextFree.record(start);
+            }
+        }
+
+        private CompletableFuture<Void> shift(int staffId, DayOfWeek day, int fromSlot, int toSlot) {
+            app.roster.addShift(staffId, day, fromSlot, toSlot);
+            return app.persistence == null ? null : app.persistence.logShift(staffId, day, fromSlot, toSlot);
+        }
+
+        // Ids of staff whose role matches ignoring case, compared on role codes
+        private List<Integer> staffWithRole(String role) {
+            role = trim(role);
+            List<String> roles = Staff.roles.symbols();
+            boolean[] matches = new boolean[roles.size()];
+            for(int code = 0; code < matches.length; code++) matches[code] = role.isEmpty() || roles.get(code).equalsIgnoreCase(role);
+            List<Integer> ids = new ArrayList<>();
+            for(Staff s : app.staffMembers.values()) {
+                int code = s.getRoleCode();
+                if(code < matches.length && matches[code]) ids.add(s.getStaffId());
+            }
+            return ids;
+        }
+
+        private static LocalDateTime parseDateTime(String text) {
+            try {
+                return LocalDateTime.parse(trim(text), DATE_TIME_FORMAT);
+            } catch(DateTimeParseException ex) {
+                throw new IllegalArgumentException("DateTime format invalid. Use yyyy-MM-dd HH:mm");
+            }
+        }
+
+        // Slot number of an HH:mm time on a slot boundary
+        private static int parseShiftTime(String text) {
+            LocalTime time;
+            try {
+                time = LocalTime.parse(trim(text));
+            } catch(DateTimeParseException ex) {
+                throw new IllegalArgumentException("Shift times must be HH:mm.");
+            }
+            int minutes = time.getHour() * 60 + time.getMinute();
+            if(time.getSecond() != 0 || minutes % Roster.SLOT_MINUTES != 0) {
+                throw new IllegalArgumentException("Shift times must be on a " + Roster.SLOT_MINUTES + "-minute boundary.");
+            }
+            return minutes / Roster.SLOT_MINUTES;
+        }
+
+        private static String trim(String s) {
+            return s == null ? "" : s.trim();
+        }
+
+        private static int parsePositiveInt(String text, String message) {
+            try {
+                int value = Integer.parseInt(text);
+                if(value <= 0) throw new NumberFormatException();
+                return value;
+            } catch(NumberFormatException ex) {
+                throw new IllegalArgumentException(message);
+            }
+        }
+    }
+
+    // --- Bulk Import ---
+
+    // Streams a CSV file (first row is the header) or a JSON Lines file of flat objects into the
+    // service. Lines are read through a 1MB buffered reader and handed out in batches to a
+    // ForkJoinPool, where each batch is split recursively and rows are parsed, validated and inserted
+    // in parallel. A failing row is reported with its line number and does not stop the import.
+    // Each leaf task inserts its rows as one service batch and waits for the log once.
+    // Only a few batches are in flight at a time, so memory use does not grow with the file.
+    static class BulkImporter {
+        static final int BATCH_SIZE = 8192;
+        private static final int SPLIT_THRESHOLD = 512;
+
+        static class RowError {
+            final long line;
+            final String message;
+
+            RowError(long line, String message) {
+                this.line = line;
+                this.message = message;
+            }
+        }
+
+        static class Result {
+            long imported;
+            List<RowError> errors;
+        }
+
+        private final HospitalService service;
+        private final ForkJoinPool pool;
+
+        public BulkImporter(HospitalService service, ForkJoinPool pool) {
+            this.service = service;
+            this.pool = pool;
+        }
+
+        // entity is one of patients, staff, inventory, appointments, bills. Automatic snapshots are
+        // held off while the file loads and one is taken at the end.
+        public Result importFile(String entity, Path file) throws IOException {
+            PersistenceEngine persistence = service.persistence();
+            if(persistence != null) persistence.suspendSnapshots();
+            try {
+                return load(entity, file);
+            } finally {
+                if(persistence != null) persistence.resumeSnapshots();
+            }
+        }
+
+        private Result load(String entity, Path file) throws IOException {
+            Consumer<Map<String, String>> handler = handlerFor(entity);
+            String fileName = file.getFileName().toString().toLowerCase();
+            boolean json = fileName.endsWith(".jsonl") || fileName.endsWith(".json");
+            LongAdder imported = new LongAdder();
+            Queue<RowError> errors = new ConcurrentLinkedQueue<>();
+            ArrayDeque<ForkJoinTask<Void>> inFlight = new ArrayDeque<>();
+            int maxInFlight = 2 * pool.getParallelism();
+
+            try(BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(Files.newInputStream(file), StandardCharsets.UTF_8), 1 << 20)) {
+                String[] header = null;
+                long lineNumber = 0;
+                if(!json) {
+                    String headerLine = reader.readLine();
+                    lineNumber++;
+                    if(headerLine == null) throw new IOException("Empty file, expected a header row");
+                    header = parseCsvLine(headerLine);
+                    for(int i = 0; i < header.length; i++) header[i] = header[i].trim().toLowerCase();
+                }
+
+                String[] batch = new String[BATCH_SIZE];
+                int size = 0;
+                long batchStart = lineNumber + 1;
+                String line;
+                while((line = reader.readLine()) != null) {
+                    lineNumber++;
+                    batch[size++] = line;
+                    if(size == BATCH_SIZE) {
+                        if(inFlight.size() >= maxInFlight) inFlight.removeFirst().join();
+                        inFlight.addLast(pool.submit(new ImportTask(batch, 0, size, batchStart, header, handler, imported, errors)));
+                        batch = new String[BATCH_SIZE];
+                        size = 0;
+                        batchStart = lineNumber + 1;
+                    }
+                }
+                if(size > 0) inFlight.addLast(pool.submit(new ImportTask(batch, 0, size, batchStart, header, handler, imported, errors)));
+            }
+            while(!inFlight.isEmpty()) inFlight.removeFirst().join();
+
+            Result result = new Result();
+            result.imported = imported.sum();
+            result.errors = new ArrayList<>(errors);
+            result.errors.sort(Comparator.comparingLong(e -> e.line));
+            return result;
+        }
+
+        private Consumer<Map<String, String>> handlerFor(String entity) {
+            switch(entity) {
+                case "patients":
+                    return row -> service.registerPatient(row.get("name"), row.get("age"), row.get("gender"), row.get("contact"));
+                case "staff":
+                    return row -> service.addStaff(row.get("name"), row.get("role"), row.get("contact"));
+                case "inventory":
+                    return row -> service.addInventoryItem(row.get("name"), row.get("quantity"), row.get("unit"));
+                case "appointments":
+                    return row -> service.scheduleAppointment(parseId(row.get("patientid")), row.get("doctor"), row.get("datetime"));
+                case "bills":
+                    return row -> service.createBill(parseId(row.get("patientid")), row.get("amount"));
+                default:
+                    throw new IllegalArgumentException("Unknown entity type " + entity
+                            + ", expected patients, staff, inventory, appointments or bills");
+            }
+        }
+
+        private static int parseId(String text) {
+            try {
+                return Integer.parseInt(text == null ? "" : text.trim());
+            } catch(NumberFormatException ex) {
+                throw new IllegalArgumentException("patientId must be a number.");
+            }
+        }
+
+        private class ImportTask extends RecursiveAction {
+            private final String[] lines;
+            private final int from, to;
+            private final long firstLine;
+            private final String[] header;
+            private final Consumer<Map<String, String>> handler;
+            private final LongAdder imported;
+            private final Queue<RowError> errors;
+
+            ImportTask(String[] lines, int from, int to, long firstLine, String[] header,
+                       Consumer<Map<String, String>> handler, LongAdder imported, Queue<RowError> errors) {
+                this.lines = lines;
+                this.from = from;
+                this.to = to;
+                this.firstLine = firstLine;
+                this.header = header;
+                this.handler = handler;
+                this.imported = imported;
+                this.errors = errors;
+            }
+
+            @Override
+            protected void compute() {
+                if(to - from > SPLIT_THRESHOLD) {
+                    int mid = (from + to) >>> 1;
+                    invokeAll(new ImportTask(lines, from, mid, firstLine, header, handler, imported, errors),
+                              new ImportTask(lines, mid, to, firstLine, header, handler, imported, errors));
+                    return;
+                }
+                // One wait for the disk per leaf rather than per row; the rows only count once it is over
+                int[] added = {0};
+                try {
+                    service.batch(() -> {
+                        for(int i = from; i < to; i++) {
+                            String line = lines[i];
+                            if(line.trim().isEmpty()) continue;
+                            try {
+                                handler.accept(header == null ? parseJsonObject(line) : toRow(header, parseCsvLine(line)));
+                                added[0]++;
+                            } catch(RuntimeException ex) {
+                                errors.add(new RowError(firstLine + i, ex.getMessage()));
+                            }
+                        }
+                    });
+                    imported.add(added[0]);
+                } catch(UncheckedIOException ex) {
+                    errors.add(new RowError(firstLine + from, "Lines " + (firstLine + from) + " to " + (firstLine + to - 1)
+                            + " were added but not saved: " + ex.getMessage()));
+                }
+            }
+        }
+
+        private static Map<String, String> toRow(String[] header, String[] values) {
+            if(values.length != header.length) {
+                throw new IllegalArgumentException("Expected " + header.length + " columns but found " + values.length + ".");
+            }
+            Map<String, String> row = new HashMap<>();
+            for(int i = 0; i < header.length; i++) row.put(header[i], values[i]);
+            return row;
+        }
+
+        // RFC 4180 style: commas separate fields, quoted fields may contain commas and "" for a quote.
+        // Quoted line breaks are not supported.
+        static String[] parseCsvLine(String line) {
+            List<String> fields = new ArrayList<>();
+            StringBuilder field = new StringBuilder();
+            boolean quoted = false;
+            for(int i = 0; i < line.length(); i++) {
+                char c = line.charAt(i);
+                if(quoted) {
+                    if(c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                        field.append('"');
+                        i++;
+                    } else if(c == '"') {
+                        quoted = false;
+                    } else {
+                        field.append(c);
+                    }
+                } else if(c == '"') {
+                    quoted = true;
+                } else if(c == ',') {
+                    fields.add(field.toString());
+                    field.setLength(0);
+                } else {
+                    field.append(c);
+                }
+            }
+            if(quoted) throw new IllegalArgumentException("Unterminated quoted field.");
+            fields.add(field.toString());
+            return fields.toArray(new String[0]);
+        }
+
+        // One flat JSON object: string, number, boolean or null values. Keys are lower-cased.
+        static Map<String, String> parseJsonObject(String line) {
+            Map<String, String> row = new HashMap<>();
+            int[] pos = {skipSpace(line, 0)};
+            expect(line, pos, '{');
+            if(peek(line, pos) == '}') return row;
+            while(true) {
+                String key = readJsonString(line, pos).toLowerCase();
+                expect(line, pos, ':');
+                pos[0] = skipSpace(line, pos[0]);
+                String value;
+                if(peek(line, pos) == '"') {
+                    value = readJsonString(line, pos);
+                } else {
+                    int start = pos[0];
+                    while(pos[0] < line.length() && ",} \t".indexOf(line.charAt(pos[0])) < 0) pos[0]++;
+                    value = line.substring(start, pos[0]);
+                    if(value.equals("null")) value = null;
+                    else if(value.isEmpty() || value.startsWith("{") || value.startsWith("[")) {
+                        throw new IllegalArgumentException("Unsupported JSON value for " + key + ".");
+                    }
+                }
+                row.put(key, value);
+                char next = peek(line, pos);
+                pos[0]++;
+                if(next == '}') return row;
+                if(next != ',') throw new IllegalArgumentException("Malformed JSON object.");
+            }
+        }
+
+        private static String readJsonString(String line, int[] pos) {
+            expect(line, pos, '"');
+            StringBuilder sb = new StringBuilder();
+            while(pos[0] < line.length()) {
+                char c = line.charAt(pos[0]++);
+                if(c == '"') return sb.toString();
+                if(c != '\\') {
+                    sb.append(c);
+                    continue;
+                }
+                if(pos[0] >= line.length()) break;
+                char escaped = line.charAt(pos[0]++);
+                switch(escaped) {
+                    case 'n': sb.append('\n'); break;
+                    case 't': sb.append('\t'); break;
+                    case 'r': sb.append('\r'); break;
+                    case 'b': sb.append('\b'); break;
+                    case 'f': sb.append('\f'); break;
+                    case 'u':
+                        if(pos[0] + 4 > line.length()) throw new IllegalArgumentException("Malformed JSON escape.");
+                        sb.append((char) Integer.parseInt(line.substring(pos[0], pos[0] + 4), 16));
+                        pos[0] += 4;
+                        break;
+                    default: sb.append(escaped);
+                }
+            }
+            throw new IllegalArgumentException("Unterminated JSON string.");
+        }
+
+        private static void expect(String line, int[] pos, char c) {
+            if(peek(line, pos) != c) throw new IllegalArgumentException("Malformed JSON object, expected '" + c + "'.");
+            pos[0]++;
+        }
+
+        private static char peek(String line, int[] pos) {
+            pos[0] = skipSpace(line, pos[0]);
+            return pos[0] < line.length() ? line.charAt(pos[0]) : '\0';
+        }
+
+        private static int skipSpace(String line, int pos) {
+            while(pos < line.length() && Character.isWhitespace(line.charAt(pos))) pos++;
+            return pos;
+        }
+    }
+
+    // --- Bulk Export ---
+
+    // Writes stores out one file per entity type, as CSV (header row first, columns named as
+    // BulkImporter reads them) or JSON Lines, optionally gzipped. Stores are walked through their live
+    // values() iterators, so nothing is copied: each row is formatted into a reused StringBuilder,
+    // encoded into a direct buffer and written to the file's channel whenever the buffer fills, and
+    // memory stays flat however many rows there are. Entity types are exported in parallel, one task
+    // each. A file is written under a .part name and renamed when complete.
+    static class BulkExporter {
+        static final List<String> ENTITIES = List.of("patients", "appointments", "bills", "inventory", "staff");
+        private static final int BUFFER_SIZE = 256 << 10;
+        private static final int CHECK_EVERY = 4096;  // rows between cancellation checks
+
+        // Date bounds apply to appointment times and billing dates, the patient to patients,
+        // appointments and bills. Types without the field are exported whole.
+        static class Filter {
+            LocalDateTime from = LocalDateTime.MIN;  // inclusive
+            LocalDateTime to = LocalDateTime.MAX;    // exclusive
+            int patientId;                           // 0 for every patient
+
+            boolean patient(int id) { return patientId == 0 || patientId == id; }
+            boolean time(LocalDateTime t) { return !t.isBefore(from) && t.isBefore(to); }
+
+            // From and to are yyyy-MM-dd days, both included; blank fields leave that bound open
+            static Filter parse(String from, String to, String patient) {
+                Filter filter = new Filter();
+                try {
+                    if(!from.isBlank()) filter.from = LocalDate.parse(from.trim()).atStartOfDay();
+                    if(!to.isBlank()) filter.to = LocalDate.parse(to.trim()).plusDays(1).atStartOfDay();
+                } catch(DateTimeParseException ex) {
+                    throw new IllegalArgumentException("Dates must be yyyy-MM-dd");
+                }
+                if(!patient.isBlank()) {
+                    try {
+                        filter.patientId = Integer.parseInt(patient.trim());
+                    } catch(NumberFormatException ex) {
+                        throw new IllegalArgumentException("Patient ID must be a number");
+                    }
+                    if(filter.patientId <= 0) throw new IllegalArgumentException("Patient ID must be positive");
+                }
+                if(!filter.from.isBefore(filter.to)) throw new IllegalArgumentException("From date is after the to date");
+                return filter;
+            }
+        }
+
+        static class Result {
+            final Map<String, Long> rows = new TreeMap<>();
+            final Map<String, Path> files = new TreeMap<>();
+        }
+
+        private final HospitalManagementSystemGUI app;
+        private final ExecutorService pool;
+        private final boolean json, gzip;
+
+        public BulkExporter(HospitalManagementSystemGUI app, ExecutorService pool, boolean json, boolean gzip) {
+            this.app = app;
+            this.pool = pool;
+            this.json = json;
+            this.gzip = gzip;
+        }
+
+        // Exports the entity types into dir. Setting cancel stops every file at its next check and
+        // deletes it; the call then throws CancellationException.
+        public Result export(Collection<String> entities, Path dir, Filter filter, AtomicBoolean cancel) throws IOException {
+            for(String entity : entities) {
+                if(!ENTITIES.contains(entity)) {
+                    throw new IllegalArgumentException("Unknown entity type " + entity
+                            + ", expected patients, staff, inventory, appointments or bills");
+                }
+            }
+            Files.createDirectories(dir);
+            Map<String, Future<Long>> running = new LinkedHashMap<>();
+            for(String entity : entities) {
+                Path file = fileFor(dir, entity);
+                running.put(entity, pool.submit(() -> exportOne(entity, file, filter, cancel)));
+            }
+            Result result = new Result();
+            IOException failure = null;
+            for(Map.Entry<String, Future<Long>> e : running.entrySet()) {
+                try {
+                    result.rows.put(e.getKey(), e.getValue().get());
+                    result.files.put(e.getKey(), fileFor(dir, e.getKey()));
+                } catch(InterruptedException ex) {
+                    cancel.set(true);
+                    Thread.currentThread().interrupt();
+                    throw new CancellationException("Export interrupted");
+                } catch(ExecutionException ex) {
+                    Throwable cause = ex.getCause();
+                    if(cause instanceof IOException && failure == null) failure = (IOException) cause;
+                    else if(cause instanceof RuntimeException && !(cause instanceof CancellationException)) throw (RuntimeException) cause;
+                }
+            }
+            if(failure != null) throw failure;
+            if(cancel.get()) throw new CancellationException("Export cancelled");
+            return result;
+        }
+
+        Path fileFor(Path dir, String entity) {
+            return dir.resolve(entity + (json ? ".jsonl" : ".csv") + (gzip ? ".gz" : ""));
+        }
+
+        private long exportOne(String entity, Path file, Filter filter, AtomicBoolean cancel) throws IOException {
+            Path part = file.resolveSibling(file.getFileName() + ".part");
+            boolean complete = false;
+            try {
+                long rows;
+                try(RowWriter out = new RowWriter(part, columnsOf(entity), json, gzip)) {
+                    switch(entity) {
+                        case "patients":
+                            for(Patient p : app.patients.values()) {
+                                if(!filter.patient(p.getId())) continue;
+                                out.number(p.getId()).text(p.getName()).number(p.getAge()).text(p.getGender()).text(p.getContact());
+                                if(out.endRow() % CHECK_EVERY == 0 && cancel.get()) break;
+                            }
+                            break;
+                        case "appointments":
+                            for(Appointment a : app.appointments.values()) {
+                                if(!filter.patient(a.getPatientId()) || !filter.time(a.getAppointmentDateTime())) continue;
+                                out.number(a.getId()).number(a.getPatientId()).number(a.getStaffId()).text(a.getDoctorName())
+                                        .text(a.getAppointmentDateTime().format(DATE_TIME_FORMAT)).text(a.getStatus());
+                                if(out.endRow() % CHECK_EVERY == 0 && cancel.get()) break;
+                            }
+                            break;
+                        case "bills":
+                            for(Billing b : app.bills.values()) {
+                                if(!filter.patient(b.getPatientId()) || !filter.time(b.getBillingDate())) continue;
+                                out.number(b.getBillId()).number(b.getPatientId()).decimal(Billing.formatAmount(b.getAmountMinor()))
+                                        .text(b.getBillingDate().format(DATE_TIME_FORMAT)).bool(b.isPaid());
+                                if(out.endRow() % CHECK_EVERY == 0 && cancel.get()) break;
+                            }
+                            break;
+                        case "inventory":
+                            for(InventoryItem item : app.inventoryItems.values()) {
+                                out.number(item.getItemId()).text(item.getName()).number(item.getQuantity()).text(item.getUnit())
+                                        .number(item.getReorderLevel());
+                                if(out.endRow() % CHECK_EVERY == 0 && cancel.get()) break;
+                            }
+                            break;
+                        default:
+                            for(Staff s : app.staffMembers.values()) {
+                                out.number(s.getStaffId()).text(s.getName()).text(s.getRole()).text(s.getContact());
+                                if(out.endRow() % CHECK_EVERY == 0 && cancel.get()) break;
+                            }
+                    }
+                    if(cancel.get()) throw new CancellationException("Export cancelled");
+                    rows = out.rows();
+                }
+                Files.move(part, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                complete = true;
+                return rows;
+            } finally {
+                if(!complete) Files.deleteIfExists(part);
+            }
+        }
+
+        private static String[] columnsOf(String entity) {
+            switch(entity) {
+                case "patients": return new String[]{"id", "name", "age", "gender", "contact"};
+                case "appointments": return new String[]{"id", "patientId", "staffId", "doctor", "dateTime", "status"};
+                case "bills": return new String[]{"id", "patientId", "amount", "billingDate", "paid"};
+                case "inventory": return new String[]{"id", "name", "quantity", "unit", "reorderLevel"};
+                default: return new String[]{"id", "name", "role", "contact"};
+            }
+        }
+
+        // Formats rows field by field into a line buffer and streams the encoded bytes to a file.
+        // Fields must be given in column order, then endRow().
+        static class RowWriter implements Closeable {
+            private static final int FLUSH_CHARS = 8192;
+
+            private final String[] columns;
+            private final boolean json;
+            private final FileChannel channel;
+            private final WritableByteChannel target;  // the channel, or a gzip stream over it
+            private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+            private final StringBuilder line = new StringBuilder(FLUSH_CHARS + 1024);
+            private int column;
+            private long rows;
+            private boolean closed;
+
+            RowWriter(Path file, String[] columns, boolean json, boolean gzip) throws IOException {
+                this.columns = columns;
+                this.json = json;
+                this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING);
+                this.target = gzip ? Channels.newChannel(new GZIPOutputStream(Channels.newOutputStream(channel), 1 << 16)) : channel;
+                if(!json) {
+                    for(String name : columns) field().append(name);
+                    endLine();
+                }
+            }
+
+            RowWriter number(long value) {
+                field().append(value);
+                return this;
+            }
+
+            // A number already formatted, e.g. an amount; unquoted in JSON
+            RowWriter decimal(String value) {
+                field().append(value);
+                return this;
+            }
+
+            RowWriter bool(boolean value) {
+                field().append(value);
+                return this;
+            }
+
+            RowWriter text(String value) {
+                StringBuilder out = field();
+                if(json) {
+                    appendJsonString(out, value);
+                } else if(value.indexOf(',') >= 0 || value.indexOf('"') >= 0 || value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0) {
+                    out.append('"');
+                    for(int i = 0; i < value.length(); i++) {
+                        char c = value.charAt(i);
+                        if(c == '"') out.append('"');
+                        out.append(c);
+                    }
+                    out.append('"');
+                } else {
+                    out.append(value);
+                }
+                return this;
+            }
+
+            // Returns the number of rows written so far
+            long endRow() throws IOException {
+                if(column != columns.length) throw new IllegalStateException("Row has " + column + " of " + columns.length + " fields");
+                endLine();
+                return ++rows;
+            }
+
+            long rows() { return rows; }
+
+            private StringBuilder field() {
+                if(json) {
+                    line.append(column == 0 ? '{' : ',');
+                    appendJsonString(line, columns[column]);
+                    line.append(':');
+                } else if(column > 0) {
+                    line.append(',');
+                }
+                column++;
+                return line;
+            }
+
+            private void endLine() throws IOException {
+                if(json) line.append('}');
+                line.append('\n');
+                column = 0;
+                if(line.length() >= FLUSH_CHARS) encodeLine();
+            }
+
+            private void encodeLine() throws IOException {
+                CharBuffer chars = CharBuffer.wrap(line);
+                while(encoder.encode(chars, buffer, false).isOverflow()) drain();
+                line.setLength(0);
+            }
+
+            private void drain() throws IOException {
+                buffer.flip();
+                while(buffer.hasRemaining()) target.write(buffer);
+                buffer.clear();
+            }
+
+            @Override
+            public void close() throws IOException {
+                if(closed) return;
+                closed = true;
+                try {
+                    encodeLine();
+                    CharBuffer empty = CharBuffer.allocate(0);
+                    while(encoder.encode(empty, buffer, true).isOverflow()) drain();
+                    drain();
+                } finally {
+                    target.close();
+                    channel.close();
+                }
+            }
+
+            private static void appendJsonString(StringBuilder out, String value) {
+                out.append('"');
+                for(int i = 0; i < value.length(); i++) {
+                    char c = value.charAt(i);
+                    switch(c) {
+                        case '"': out.append("\\\""); break;
+                        case '\\': out.append("\\\\"); break;
+                        case '\n': out.append("\\n"); break;
+                        case '\r': out.append("\\r"); break;
+                        case '\t': out.append("\\t"); break;
+                        default:
+                            if(c < 0x20) out.append(String.format("\\u%04x", (int) c));
+                            else out.append(c);
+                    }
+                }
+                out.append('"');
+            }
+        }
+    }
+
+    // --- Table Models ---
+
+    // Views entities in place instead of copying them into Object[] rows.
+    // JTable only asks for the cells inside its viewport, so values are computed on demand.
+    // A row is just an entity id; its cells read the entity from the repository's dense id-indexed
+    // store, and an update repaints only the rows of the entities that changed.
+    // Rows are filled by TaskRunner.load. Entities inserted while a load runs are held back and
+    // merged when it ends, skipping any the load delivered itself. A load that delivers rows in id
+    // order, as Repository.values() does, keeps the view in id order: inserts go in at their id's
+    // position and rows are found by binary search. Other loads (ranked search results) keep their
+    // own order, take inserts at the end and are searched through an index built on first use.
+    static abstract class EntityTableModel<T> extends AbstractTableModel {
+        private final String[] columns;
+        private final Repository<T> repository;
+        private int[] ids = new int[16];
+        private int rowCount;
+        private boolean idOrdered = true;
+        // (id << 32 | row) for every row, sorted; only for views not in id order, null until needed
+        private long[] rowsById;
+        private SwingWorker<?, ?> loader;
+        private List<T> arrivedDuringLoad;
+
+        public EntityTableModel(String[] columns, Repository<T> repository) {
+            this.columns = columns;
+            this.repository = repository;
+        }
+
+        protected abstract Object valueAt(T entity, int column);
+
+        public T getRow(int row) { return repository.get(ids[row]); }
+
+        public void rowsInserted(List<T> entities) {
+            if(loader != null) arrivedDuringLoad.addAll(entities);
+            else insertRows(entities);
+        }
+
+        public void rowsUpdated(List<T> entities) {
+            int[] changed = new int[entities.size()];
+            int n = 0;
+            for(T entity : entities) {
+                int row = rowOf(repository.idOf(entity));
+                if(row >= 0) changed[n++] = row;
+            }
+            Arrays.sort(changed, 0, n);
+            // one event per run of adjacent rows
+            for(int i = 0; i < n; ) {
+                int first = changed[i], last = first;
+                while(++i < n && changed[i] <= last + 1) last = changed[i];
+                fireTableRowsUpdated(first, last);
+            }
+        }
+
+        void beginLoad(SwingWorker<?, ?> worker) {
+            if(loader != null) loader.cancel(false);
+            loader = worker;
+            arrivedDuringLoad = new ArrayList<>();
+            ids = new int[16];
+            rowCount = 0;
+            idOrdered = true;
+            rowsById = null;
+            fireTableDataChanged();
+        }
+
+        boolean isLoading(SwingWorker<?, ?> worker) { return loader == worker; }
+
+        void appendLoaded(List<T> chunk) {
+            if(chunk.isEmpty()) return;
+            int first = rowCount;
+            for(T entity : chunk) append(repository.idOf(entity));
+            fireTableRowsInserted(first, rowCount - 1);
+        }
+
+        void endLoad() {
+            List<T> arrived = arrivedDuringLoad;
+            loader = null;
+            arrivedDuringLoad = null;
+            insertRows(arrived);
+        }
+
+        private void insertRows(List<T> entities) {
+            int[] added = new int[entities.size()];
+            int n = 0;
+            for(T entity : entities) {
+                int id = repository.idOf(entity);
+                if(rowOf(id) < 0) added[n++] = id;
+            }
+            if(n == 0) return;
+            int first = rowCount;
+            if(!idOrdered) {
+                for(int i = 0; i < n; i++) append(added[i]);
+                fireTableRowsInserted(first, rowCount - 1);
+                return;
+            }
+            Arrays.sort(added, 0, n);
+            if(rowCount == 0 || added[0] > ids[rowCount - 1]) {
+                for(int i = 0; i < n; i++) append(added[i]);
+                fireTableRowsInserted(first, rowCount - 1);
+                return;
+            }
+            // Ids from other threads' blocks can land below rows already shown: merge in one pass
+            int[] merged = new int[Math.max(ids.length, rowCount + n)];
+            int[] positions = new int[n];
+            int i = 0, j = 0, k = 0;
+            while(j < n) {
+                if(i < rowCount && ids[i] < added[j]) merged[k++] = ids[i++];
+                else { positions[j] = k; merged[k++] = added[j++]; }
+            }
+            System.arraycopy(ids, i, merged, k, rowCount - i);
+            ids = merged;
+            rowCount += n;
+            // Ascending final positions, so each event is valid after the ones before it
+            for(int p = 0; p < n; ) {
+                int from = positions[p], to = from;
+                while(++p < n && positions[p] == to + 1) to = positions[p];
+                fireTableRowsInserted(from, to);
+            }
+        }
+
+        private void append(int id) {
+            if(rowCount == ids.length) ids = Arrays.copyOf(ids, ids.length * 2);
+            if(rowCount > 0 && id <= ids[rowCount - 1]) idOrdered = false;
+            ids[rowCount++] = id;
+            rowsById = null;
+        }
+
+        private int rowOf(int id) {
+            if(idOrdered) {
+                int row = Arrays.binarySearch(ids, 0, rowCount, id);
+                return row >= 0 ? row : -1;
+            }
+            if(rowsById == null) {
+                rowsById = new long[rowCount];
+                for(int row = 0; row < rowCount; row++) rowsById[row] = (long) ids[row] << 32 | row;
+                Arrays.sort(rowsById);
+            }
+            int i = Arrays.binarySearch(rowsById, (long) id << 32);
+            if(i < 0) i = -i - 1;
+            return i < rowsById.length && (int) (rowsById[i] >>> 32) == id ? (int) rowsById[i] : -1;
+        }
+
+        @Override public int getRowCount() { return rowCount; }
+        @Override public int getColumnCount() { return columns.length; }
+        @Override public String getColumnName(int column) { return columns[column]; }
+        @Override public Object getValueAt(int row, int column) { return valueAt(getRow(row), column); }
+    }
+
+    // --- Patient Directory ---
+
+    // Registration-ordered patient list shared by every patient selector, with prefix
+    // indexes on ID and on each word of the name so type-ahead never scans all patients.
+    static class PatientDirectory {
+        static final int MAX_MATCHES = 500;
+
+        private final ArrayList<Patient> all = new ArrayList<>();
+        private final TreeMap<String, List<Patient>> byName = new TreeMap<>();
+        private final TreeMap<String, Patient> byId = new TreeMap<>();
+        private final List<PatientSelectorModel> models = new ArrayList<>();
+
+        public PatientDirectory(Collection<Patient> initial) {
+            for(Patient p : initial) index(p);
+        }
+
+        public void add(Patient p) {
+            index(p);
+            for(PatientSelectorModel model : models) model.patientAdded(p, all.size() - 1);
+        }
+
+        private void index(Patient p) {
+            all.add(p);
+            byId.put(String.valueOf(p.getId()), p);
+            for(String key : nameKeys(p)) {
+                byName.computeIfAbsent(key, k -> new ArrayList<>(1)).add(p);
+            }
+        }
+
+        public int size() { return all.size(); }
+        public Patient get(int index) { return all.get(index); }
+
+        // Patients whose ID, full name or any name word starts with the prefix, ID hits first.
+        public List<Patient> search(String prefix) {
+            String key = prefix.trim().toLowerCase();
+            LinkedHashSet<Patient> matches = new LinkedHashSet<>();
+            for(Patient p : byId.subMap(key, key + Character.MAX_VALUE).values()) {
+                if(matches.size() >= MAX_MATCHES) break;
+                matches.add(p);
+            }
+            outer:
+            for(List<Patient> list : byName.subMap(key, key + Character.MAX_VALUE).values()) {
+                for(Patient p : list) {
+                    if(matches.size() >= MAX_MATCHES) break outer;
+                    matches.add(p);
+                }
+            }
+            return new ArrayList<>(matches);
+        }
+
+        static boolean matches(Patient p, String prefix) {
+            String key = prefix.trim().toLowerCase();
+            if(String.valueOf(p.getId()).startsWith(key)) return true;
+            for(String nameKey : nameKeys(p)) {
+                if(nameKey.startsWith(key)) return true;
+            }
+            return false;
+        }
+
+        private static List<String> nameKeys(Patient p) {
+            String name = p.getName().trim().toLowerCase();
+            List<String> keys = new ArrayList<>();
+            keys.add(name);
+            for(String word : name.split("\\s+")) {
+                if(!word.isEmpty() && !word.equals(name)) keys.add(word);
+            }
+            return keys;
+        }
+    }
+
+    // Per-selector combo box model: a live view of the directory when unfiltered, otherwise the
+    // prefix matches. Each combo keeps its own selection while sharing the same patient list.
+    static class PatientSelectorModel extends AbstractListModel<Patient> implements ComboBoxModel<Patient> {
+        private final PatientDirectory directory;
+        private String filter = "";
+        private List<Patient> matches;
+        private Object selected;
+
+        public PatientSelectorModel(PatientDirectory directory) {
+            this.directory = directory;
+            directory.models.add(this);
+        }
+
+        public void setFilter(String filter) {
+            int oldSize = getSize();
+            this.filter = filter.trim();
+            this.matches = this.filter.isEmpty() ? null : directory.search(this.filter);
+            if(oldSize > 0) fireIntervalRemoved(this, 0, oldSize - 1);
+            if(getSize() > 0) fireIntervalAdded(this, 0, getSize() - 1);
+        }
+
+        void patientAdded(Patient p, int directoryIndex) {
+            if(matches == null) {
+                fireIntervalAdded(this, directoryIndex, directoryIndex);
+            } else if(matches.size() < PatientDirectory.MAX_MATCHES && PatientDirectory.matches(p, filter)) {
+                matches.add(p);
+                fireIntervalAdded(this, matches.size() - 1, matches.size() - 1);
+            }
+        }
+
+        @Override public int getSize() { return matches == null ? directory.size() : matches.size(); }
+        @Override public Patient getElementAt(int index) { return matches == null ? directory.get(index) : matches.get(index); }
+        @Override public Object getSelectedItem() { return selected; }
+
+        @Override
+        public void setSelectedItem(Object item) {
+            if(!Objects.equals(selected, item)) {
+                selected = item;
+                fireContentsChanged(this, -1, -1);
+            }
+        }
+    }
+
+    // Type-ahead search field next to a combo box of the matching patients
+    class PatientSelector extends JPanel {
+        private final PatientSelectorModel model = new PatientSelectorModel(patientDirectory);
+        private final JTextField searchField = new JTextField(6);
+        private final JComboBox<Patient> comboBox = new JComboBox<>(model);
+
+        public PatientSelector() {
+            super(new BorderLayout(5, 0));
+            searchField.setToolTipText("Type a patient ID or name to filter");
+            searchField.getDocument().addDocumentListener(new DocumentListener() {
+                public void insertUpdate(DocumentEvent e) { applyFilter(); }
+                public void removeUpdate(DocumentEvent e) { applyFilter(); }
+                public void changedUpdate(DocumentEvent e) { applyFilter(); }
+            });
+            // A prototype keeps JComboBox from measuring every patient to size itself
+            comboBox.setPrototypeDisplayValue(PROTOTYPE_PATIENT);
+            add(searchField, BorderLayout.WEST);
+            add(comboBox, BorderLayout.CENTER);
+        }
+
+        private void applyFilter() {
+            model.setFilter(searchField.getText());
+            if(model.getSize() > 0 && !searchField.getText().trim().isEmpty()) {
+                comboBox.setSelectedIndex(0);
+            }
+        }
+
+        public Patient getSelectedPatient() { return (Patient) comboBox.getSelectedItem(); }
+
+        public void addSelectionListener(Runnable listener) {
+            comboBox.addActionListener(e -> listener.run());
+        }
+
+        public void clearSelection() {
+            searchField.setText("");
+            comboBox.setSelectedIndex(-1);
+        }
+    }
+
+    // --- Background Tasks ---
+
+    // Runs panel actions and queries on SwingWorkers so the EDT only builds components, applies
+    // results and paints. Doubles as the status bar: it shows what is running, the progress of
+    // table loads and a Cancel button for loads. Actions that change data aren't cancellable, so
+    // a half-made change never depends on where a cancel landed.
+    class TaskRunner extends JPanel {
+        static final int LOAD_CHUNK = 500;
+
+        private final JLabel statusLabel = new JLabel("Ready");
+        private final JProgressBar progressBar = new JProgressBar(0, 100);
+        private final JButton cancelBtn = new JButton("Cancel");
+        // EDT only
+        private final List<SwingWorker<?, ?>> running = new ArrayList<>();
+        private final Map<SwingWorker<?, ?>, String> descriptions = new HashMap<>();
+        private final Set<SwingWorker<?, ?>> cancellable = new HashSet<>();
+
+        TaskRunner() {
+            super(new BorderLayout(5, 0));
+            setBorder(BorderFactory.createEmptyBorder(2, 10, 2, 10));
+            JPanel controls = new JPanel(new FlowLayout(FlowLayout.RIGHT, 5, 0));
+            controls.add(progressBar);
+            controls.add(cancelBtn);
+            add(statusLabel, BorderLayout.CENTER);
+            add(controls, BorderLayout.EAST);
+            progressBar.setVisible(false);
+            cancelBtn.setVisible(false);
+            cancelBtn.addActionListener(e -> {
+                for(SwingWorker<?, ?> worker : new ArrayList<>(cancellable)) worker.cancel(false);
+            });
+        }
+
+        <T> void run(Component owner, String description, Callable<T> work, Consumer<T> done) {
+            run(owner, description, work, done, "Error");
+        }
+
+        // Runs work in the background and hands its result to done on the EDT. A failure is shown
+        // in a dialog over owner: IllegalArgumentException as a validation error, IllegalStateException
+        // (a conflict with the current data) under conflictTitle.
+        <T> void run(Component owner, String description, Callable<T> work, Consumer<T> done, String conflictTitle) {
+            SwingWorker<T, Void> worker = new SwingWorker<T, Void>() {
+                @Override
+                protected T doInBackground() throws Exception {
+                    return work.call();
+                }
+
+                @Override
+                protected void done() {
+                    finished(this);
+                    try {
+                        done.accept(get());
+                    } catch(ExecutionException ex) {
+                        showFailure(owner, ex.getCause(), conflictTitle);
+                    } catch(InterruptedException | CancellationException ex) {
+                        // not cancellable, and done() only runs once the work has finished
+                    }
+                }
+            };
+            start(worker, description, false);
+        }
+
+        // Replaces the model's rows with the query result. The query runs in the background and its
+        // rows are handed to the EDT in chunks of LOAD_CHUNK, so the table fills progressively and
+        // the EDT never appends more than it has rows to show. The result is walked, not copied, so
+        // a live view such as Repository.values() loads without a second list. A new load into the
+        // same model cancels the one in progress.
+        <T> void load(Component owner, String description, EntityTableModel<T> model, Callable<? extends Collection<T>> query) {
+            SwingWorker<Void, List<T>> worker = new SwingWorker<Void, List<T>>() {
+                @Override
+                protected Void doInBackground() throws Exception {
+                    Collection<T> result = query.call();
+                    // A live view can grow while it is walked, so progress is capped
+                    long total = Math.max(1, result.size()), sent = 0;
+                    List<T> chunk = new ArrayList<>(LOAD_CHUNK);
+                    for(T row : result) {
+                        if(isCancelled()) return null;
+                        chunk.add(row);
+                        if(chunk.size() == LOAD_CHUNK) {
+                            publish(chunk);
+                            sent += LOAD_CHUNK;
+                            setProgress((int) Math.min(100, 100 * sent / total));
+                            chunk = new ArrayList<>(LOAD_CHUNK);
+                        }
+                    }
+                    if(!chunk.isEmpty()) publish(chunk);
+                    setProgress(100);
+                    return null;
+                }
+
+                @Override
+                protected void process(List<List<T>> chunks) {
+                    if(isCancelled() || !model.isLoading(this)) return;
+                    for(List<T> chunk : chunks) model.appendLoaded(chunk);
+                }
+
+                @Override
+                protected void done() {
+                    finished(this);
+                    if(!model.isLoading(this)) return;
+                    model.endLoad();
+                    try {
+                        get();
+                    } catch(ExecutionException ex) {
+                        showFailure(owner, ex.getCause(), "Error");
+                    } catch(InterruptedException | CancellationException ex) {
+                        // cancelled from the status bar; the rows loaded so far stay
+                    }
+                }
+            };
+            model.beginLoad(worker);
+            start(worker, description, true);
+        }
 
-    static class Appointment {
-        private static int idCounter = 1;
-        private int id;
-        private int patientId;
-        private String doctorName;
-        private LocalDateTime appointmentDateTime;
+        private void start(SwingWorker<?, ?> worker, String description, boolean canCancel) {
+            running.add(worker);
+            descriptions.put(worker, description);
+            if(canCancel) cancellable.add(worker);
+            worker.addPropertyChangeListener(e -> {
+                if("progress".equals(e.getPropertyName()) && !running.isEmpty() && worker == running.get(running.size() - 1)) {
+                    progressBar.setIndeterminate(false);
+                    progressBar.setValue((Integer) e.getNewValue());
+                }
+            });
+            updateStatus();
+            worker.execute();
+        }
 
-        public Appointment(int patientId, String doctorName, LocalDateTime appointmentDateTime) {
-            this.id = idCounter++;
-            this.patientId = patientId;
-            this.doctorName = doctorName;
-            this.appointmentDateTime = appointmentDateTime;
+        private void finished(SwingWorker<?, ?> worker) {
+            running.remove(worker);
+            descriptions.remove(worker);
+            cancellable.remove(worker);
+            updateStatus();
         }
 
-        public int getId() { return id; }
-        public int getPatientId() { return patientId; }
-        public String getDoctorName() { return doctorName; }
-        public LocalDateTime getAppointmentDateTime() { return appointmentDateTime; }
+        private void updateStatus() {
+            if(running.isEmpty()) {
+                statusLabel.setText("Ready");
+                progressBar.setVisible(false);
+                cancelBtn.setVisible(false);
+                return;
+            }
+            SwingWorker<?, ?> latest = running.get(running.size() - 1);
+            String text = descriptions.get(latest) + "...";
+            if(running.size() > 1) text += " (+" + (running.size() - 1) + " more)";
+            statusLabel.setText(text);
+            progressBar.setVisible(true);
+            progressBar.setIndeterminate(latest.getProgress() == 0);
+            progressBar.setValue(latest.getProgress());
+            cancelBtn.setVisible(!cancellable.isEmpty());
+        }
 
-        @Override
-        public String toString() {
-            return String.format("%d - PatientID:%d Doctor:%s %s", id, patientId, doctorName,
-                    appointmentDateTime.format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm")));
+        private void showFailure(Component owner, Throwable cause, String conflictTitle) {
+            if(cause instanceof IllegalArgumentException) {
+                JOptionPane.showMessageDialog(owner, cause.getMessage(), "Validation Error", JOptionPane.ERROR_MESSAGE);
+            } else if(cause instanceof IllegalStateException) {
+                JOptionPane.showMessageDialog(owner, cause.getMessage(), conflictTitle, JOptionPane.ERROR_MESSAGE);
+            } else if(cause instanceof UncheckedIOException) {
+                JOptionPane.showMessageDialog(owner, cause.getMessage(), "Storage Error", JOptionPane.ERROR_MESSAGE);
+            } else {
+                JOptionPane.showMessageDialog(owner, "Unexpected error: " + cause, "Error", JOptionPane.ERROR_MESSAGE);
+            }
         }
     }
 
-    static class EHR {
-        private int patientId;
-        private ArrayList<String> records;
+    // --- Diagnostics ---
+
+    // Hidden window (Ctrl+Shift+D in the main frame) with every metric, refreshed each second while open
+    class DiagnosticsDialog extends JDialog {
+        private final String[] columns = {"Metric", "Count", "p50 (ms)", "p99 (ms)", "Max (ms)", "Mean (ms)"};
+        private List<Object[]> rows = new ArrayList<>();
+        private final AbstractTableModel model = new AbstractTableModel() {
+            @Override public int getRowCount() { return rows.size(); }
+            @Override public int getColumnCount() { return columns.length; }
+            @Override public String getColumnName(int column) { return columns[column]; }
+            @Override public Object getValueAt(int row, int column) { return rows.get(row)[column]; }
+        };
+        private final javax.swing.Timer refresh = new javax.swing.Timer(1000, e -> reload());
+
+        DiagnosticsDialog(JFrame owner) {
+            super(owner, "Diagnostics", false);
+            setLayout(new BorderLayout(5, 5));
+            add(new JScrollPane(new JTable(model)), BorderLayout.CENTER);
+
+            JPanel buttons = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+            JButton resetBtn = new JButton("Reset");
+            JButton closeBtn = new JButton("Close");
+            buttons.add(resetBtn);
+            buttons.add(closeBtn);
+            add(buttons, BorderLayout.SOUTH);
+
+            resetBtn.addActionListener(e -> {
+                metrics.reset();
+                reload();
+            });
+            closeBtn.addActionListener(e -> setVisible(false));
+            setSize(700, 450);
+            setLocationRelativeTo(owner);
+        }
 
-        public EHR(int patientId) {
-            this.patientId = patientId;
-            this.records = new ArrayList<>();
+        @Override
+        public void setVisible(boolean visible) {
+            if(visible) {
+                reload();
+                refresh.start();
+            } else {
+                refresh.stop();
+            }
+            super.setVisible(visible);
         }
 
-        public int getPatientId() { return patientId; }
-        public ArrayList<String> getRecords() { return records; }
-        public void addRecord(String record) { records.add(record); }
+        private void reload() {
+            List<Object[]> fresh = new ArrayList<>();
+            for(Map.Entry<String, LatencyHistogram> e : metrics.histograms().entrySet()) {
+                LatencyHistogram h = e.getValue();
+                fresh.add(new Object[]{e.getKey(), h.count(), Metrics.millis(h.percentile(0.50)),
+                        Metrics.millis(h.percentile(0.99)), Metrics.millis(h.max()), Metrics.millis((long) h.mean())});
+            }
+            for(Map.Entry<String, LongAdder> e : metrics.counters().entrySet()) {
+                fresh.add(new Object[]{e.getKey(), e.getValue().sum(), "", "", "", ""});
+            }
+            for(Map.Entry<String, LongSupplier> e : metrics.gauges().entrySet()) {
+                fresh.add(new Object[]{e.getKey(), e.getValue().getAsLong(), "", "", "", ""});
+            }
+            rows = fresh;
+            model.fireTableDataChanged();
+        }
     }
 
-    static class Billing {
-        private static int idCounter = 1;
-        private int billId;
-        private int patientId;
-        private double amount;
-        private LocalDateTime billingDate;
-        private boolean paid;
+    // Exports the chosen stores to a directory in the background. Closing the dialog or pressing
+    // Cancel stops a running export and removes its partly written files.
+    class ExportDialog extends JDialog {
+        private final Map<String, JCheckBox> types = new LinkedHashMap<>();
+        private final JComboBox<String> formatBox = new JComboBox<>(new String[]{"CSV", "JSON Lines"});
+        private final JCheckBox gzipBox = new JCheckBox("Compress (gzip)");
+        private final JTextField fromField = new JTextField(), toField = new JTextField(), patientField = new JTextField();
+        private final JTextField dirField = new JTextField(Paths.get(DATA_DIR, "export").toAbsolutePath().toString());
+        private final JButton exportBtn = new JButton("Export");
+        private final JButton cancelBtn = new JButton("Cancel");
+        private AtomicBoolean cancel;  // set while an export runs; EDT only
+
+        ExportDialog(JFrame owner) {
+            super(owner, "Export Data", false);
+            setLayout(new BorderLayout(5, 5));
+
+            JPanel typePanel = new JPanel(new GridLayout(0, 1));
+            typePanel.setBorder(BorderFactory.createTitledBorder("Data"));
+            for(String entity : BulkExporter.ENTITIES) {
+                JCheckBox box = new JCheckBox(Character.toUpperCase(entity.charAt(0)) + entity.substring(1), true);
+                types.put(entity, box);
+                typePanel.add(box);
+            }
+            add(typePanel, BorderLayout.WEST);
+
+            JPanel formPanel = new JPanel(new GridLayout(6, 2, 5, 5));
+            formPanel.setBorder(BorderFactory.createEmptyBorder(5, 5, 5, 5));
+            formPanel.add(new JLabel("Format:"));
+            formPanel.add(formatBox);
+            formPanel.add(new JLabel(""));
+            formPanel.add(gzipBox);
+            formPanel.add(new JLabel("From (yyyy-MM-dd):"));
+            formPanel.add(fromField);
+            formPanel.add(new JLabel("To (yyyy-MM-dd):"));
+            formPanel.add(toField);
+            formPanel.add(new JLabel("Patient ID:"));
+            formPanel.add(patientField);
+            JButton browseBtn = new JButton("Folder...");
+            formPanel.add(browseBtn);
+            formPanel.add(dirField);
+            add(formPanel, BorderLayout.CENTER);
+
+            JPanel buttons = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+            buttons.add(exportBtn);
+            buttons.add(cancelBtn);
+            add(buttons, BorderLayout.SOUTH);
+
+            browseBtn.addActionListener(e -> {
+                JFileChooser chooser = new JFileChooser(dirField.getText());
+                chooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+                if(chooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
+                    dirField.setText(chooser.getSelectedFile().getAbsolutePath());
+                }
+            });
+            exportBtn.addActionListener(e -> export());
+            cancelBtn.addActionListener(e -> setVisible(false));
+            pack();
+            setLocationRelativeTo(owner);
+        }
 
-        public Billing(int patientId, double amount) {
-            this.billId = idCounter++;
-            this.patientId = patientId;
-            this.amount = amount;
-            this.billingDate = LocalDateTime.now();
-            this.paid = false;
+        @Override
+        public void setVisible(boolean visible) {
+            if(!visible && cancel != null) cancel.set(true);
+            super.setVisible(visible);
         }
 
-        public int getBillId() { return billId; }
-        public int getPatientId() { return patientId; }
-        public double getAmount() { return amount; }
-        public LocalDateTime getBillingDate() { return billingDate; }
-        public boolean isPaid() { return paid; }
-        public void pay() { this.paid = true; }
+        private void export() {
+            List<String> chosen = new ArrayList<>();
+            for(Map.Entry<String, JCheckBox> e : types.entrySet()) {
+                if(e.getValue().isSelected()) chosen.add(e.getKey());
+            }
+            if(chosen.isEmpty()) {
+                JOptionPane.showMessageDialog(this, "Choose at least one kind of data to export", "Validation Error", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+            BulkExporter.Filter filter;
+            try {
+                filter = BulkExporter.Filter.parse(fromField.getText(), toField.getText(), patientField.getText());
+            } catch(IllegalArgumentException ex) {
+                JOptionPane.showMessageDialog(this, ex.getMessage(), "Validation Error", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+            Path dir = Paths.get(dirField.getText().trim());
+            BulkExporter exporter = new BulkExporter(HospitalManagementSystemGUI.this, ForkJoinPool.commonPool(),
+                    formatBox.getSelectedIndex() == 1, gzipBox.isSelected());
+            AtomicBoolean flag = new AtomicBoolean();
+            cancel = flag;
+            exportBtn.setEnabled(false);
+            tasks.run(this, "Exporting", () -> {
+                try {
+                    return exporter.export(chosen, dir, filter, flag);
+                } catch(CancellationException ex) {
+                    return null;
+                } finally {
+                    // done only runs on success, so re-enable here for failures too
+                    SwingUtilities.invokeLater(() -> {
+                        if(cancel == flag) cancel = null;
+                        exportBtn.setEnabled(true);
+                    });
+                }
+            }, result -> {
+                if(result == null) return;
+                StringBuilder message = new StringBuilder("Exported to " + dir.toAbsolutePath() + ":");
+                for(Map.Entry<String, Long> e : result.rows.entrySet()) {
+                    message.append("\n").append(e.getValue()).append(' ').append(e.getKey());
+                }
+                JOptionPane.showMessageDialog(this, message.toString(), "Export Complete", JOptionPane.INFORMATION_MESSAGE);
+            });
+        }
+    }
 
-        @Override
-        public String toString() {
-            return String.format("%d - PatientID:%d Amount:%.2f Date:%s Paid:%s", billId, patientId, amount,
-                    billingDate.format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm")), paid ? "Yes" : "No");
+    // --- GUI Components ---
+    private JFrame frame;
+    private TaskRunner tasks;
+    private PatientDirectory patientDirectory;
+    private PatientMatcher patientMatcher;
+    private AppointmentIndex appointmentIndex;
+    private EHRSearchIndex ehrSearchIndex;
+    private PersistenceEngine persistence;
+    private BillingLedger billingLedger;
+    private ReminderScheduler reminders;
+    private final StockAlerts stockAlerts = new StockAlerts();
+    private HospitalService service;
+
+    public static void main(String[] args) throws IOException {
+        if(args.length > 0 && args[0].equals("--report")) {
+            printReport(Paths.get(DATA_DIR, "columns"));
+            return;
+        }
+        if(args.length > 0 && args[0].equals("--footprint")) {
+            printFootprint(1_000_000);
+            return;
+        }
+        if(args.length > 0 && args[0].equals("--import")) {
+            if(args.length != 3) {
+                System.err.println("Usage: --import <patients|staff|inventory|appointments|bills> <file.csv|file.jsonl>");
+                System.exit(2);
+            }
+            System.exit(runImport(args[1], Paths.get(args[2])));
         }
+        if(args.length > 0 && args[0].equals("--export")) {
+            System.exit(runExport(Arrays.copyOfRange(args, 1, args.length)));
+        }
+        // Recovery runs here on the main thread, so the EDT only builds the window; the search indexes warm up behind it
+        HospitalManagementSystemGUI app = new HospitalManagementSystemGUI();
+        try {
+            app.openPersistence(Paths.get(DATA_DIR));
+        } catch(IOException ex) {
+            JOptionPane.showMessageDialog(null, "Could not open data directory " + DATA_DIR + ": " + ex.getMessage(),
+                    "Startup Error", JOptionPane.ERROR_MESSAGE);
+            System.exit(1);
+        }
+        app.buildSearchIndexes();
+        app.startReminders(Paths.get(DATA_DIR, "reminders.log"));
+        // -Dhms.metricsLogSeconds=60 appends p50/p99 per operation to hms-data/metrics.log every minute
+        app.startMetricsLog(Paths.get(DATA_DIR, "metrics.log"), Integer.getInteger("hms.metricsLogSeconds", 0));
+        SwingUtilities.invokeLater(app::buildGUI);
     }
 
-    static class InventoryItem {
-        private static int idCounter = 1;
-        private int itemId;
-        private String name;
-        private int quantity;
-        private String unit;
+    // Heap used per entry by the maps the stores were built on versus Repository, for the same
+    // entries. Values are shared, so the figures are the per-entry overhead of the container itself.
+    // Run with a fixed heap (e.g. -Xms1g -Xmx1g) for stable numbers.
+    private static void printFootprint(int entries) {
+        Integer[] values = new Integer[entries];
+        for(int i = 0; i < entries; i++) values[i] = i + 1;
+
+        long base = usedHeap();
+        Map<Integer, Integer> hashMap = new HashMap<>();
+        for(Integer v : values) hashMap.put(Integer.valueOf(v), v);  // a fresh boxed key, as put(p.getId(), p) makes
+        long hashMapBytes = usedHeap() - base;
+        hashMap = null;
+
+        base = usedHeap();
+        Map<Integer, Integer> concurrentMap = new ConcurrentHashMap<>();
+        for(Integer v : values) concurrentMap.put(Integer.valueOf(v), v);
+        long concurrentMapBytes = usedHeap() - base;
+        concurrentMap = null;
+
+        base = usedHeap();
+        Repository<Integer> repository = new Repository<>(Integer::intValue);
+        for(Integer v : values) repository.add(v);
+        long repositoryBytes = usedHeap() - base;
+        int kept = repository.size();
+
+        System.out.printf("%,d entries (heap bytes per entry)%n", kept);
+        System.out.printf("  HashMap<Integer, T>            %6.1f%n", (double) hashMapBytes / entries);
+        System.out.printf("  ConcurrentHashMap<Integer, T>  %6.1f%n", (double) concurrentMapBytes / entries);
+        System.out.printf("  Repository<T>                  %6.1f%n", (double) repositoryBytes / entries);
+    }
 
-        public InventoryItem(String name, int quantity, String unit) {
-            this.itemId = idCounter++;
-            this.name = name;
-            this.quantity = quantity;
-            this.unit = unit;
-        }
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for(int i = 0; i < 4; i++) System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
 
-        public int getItemId() { return itemId; }
-        public String getName() { return name; }
-        public int getQuantity() { return quantity; }
-        public String getUnit() { return unit; }
-        public void addQuantity(int amount) { quantity += amount; }
-        public boolean reduceQuantity(int amount) {
-            if(amount > quantity) return false;
-            quantity -= amount;
-            return true;
+    // Headless bulk load into the data directory; refused while the GUI has it open.
+    // Returns the process exit code: 0 when every row was imported, 1 otherwise.
+    private static int runImport(String entity, Path file) throws IOException {
+        HospitalManagementSystemGUI app = new HospitalManagementSystemGUI();
+        try {
+            app.openPersistence(Paths.get(DATA_DIR));
+        } catch(IOException ex) {
+            System.err.println("Could not open data directory " + DATA_DIR + ": " + ex.getMessage());
+            return 1;
+        }
+        BulkImporter.Result result;
+        long start = System.nanoTime();
+        try {
+            result = new BulkImporter(app.service, ForkJoinPool.commonPool()).importFile(entity, file);
+        } catch(IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            return 2;
+        } finally {
+            app.persistence.close();
+        }
+        long millis = (System.nanoTime() - start) / 1_000_000;
+
+        System.out.println("Imported " + result.imported + " " + entity + " in " + millis + " ms, "
+                + result.errors.size() + " rows rejected");
+        int shown = Math.min(result.errors.size(), 100);
+        for(int i = 0; i < shown; i++) {
+            BulkImporter.RowError error = result.errors.get(i);
+            System.err.println("line " + error.line + ": " + error.message);
         }
+        if(shown < result.errors.size()) System.err.println("... and " + (result.errors.size() - shown) + " more");
+        return result.errors.isEmpty() ? 0 : 1;
     }
 
-    static class Staff {
-        private static int idCounter = 1;
-        private int staffId;
-        private String name;
-        private String role;
-        private String contact;
-
-        public Staff(String name, String role, String contact) {
-            this.staffId = idCounter++;
-            this.name = name;
-            this.role = role;
-            this.contact = contact;
+    // Headless export of the data directory:
+    //   --export <dir> [--format csv|jsonl] [--gzip] [--from yyyy-MM-dd] [--to yyyy-MM-dd] [--patient id] [--types a,b]
+    // Returns the process exit code, 2 for bad arguments.
+    private static int runExport(String[] args) throws IOException {
+        String usage = "Usage: --export <dir> [--format csv|jsonl] [--gzip] [--from yyyy-MM-dd] [--to yyyy-MM-dd]"
+                + " [--patient id] [--types patients,appointments,bills,inventory,staff]";
+        if(args.length == 0 || args[0].startsWith("--")) {
+            System.err.println(usage);
+            return 2;
+        }
+        Path dir = Paths.get(args[0]);
+        String format = "csv", from = "", to = "", patient = "";
+        boolean gzip = false;
+        List<String> types = BulkExporter.ENTITIES;
+        BulkExporter.Filter filter;
+        try {
+            for(int i = 1; i < args.length; i++) {
+                String option = args[i];
+                if(option.equals("--gzip")) {
+                    gzip = true;
+                    continue;
+                }
+                if(i + 1 == args.length) throw new IllegalArgumentException("Missing value for " + option);
+                String value = args[++i];
+                switch(option) {
+                    case "--format": format = value; break;
+                    case "--from": from = value; break;
+                    case "--to": to = value; break;
+                    case "--patient": patient = value; break;
+                    case "--types": types = Arrays.asList(value.split(",")); break;
+                    default: throw new IllegalArgumentException("Unknown option " + option);
+                }
+            }
+            if(!format.equals("csv") && !format.equals("jsonl")) throw new IllegalArgumentException("Format must be csv or jsonl");
+            filter = BulkExporter.Filter.parse(from, to, patient);
+        } catch(IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.err.println(usage);
+            return 2;
         }
 
-        public int getStaffId() { return staffId; }
-        public String getName() { return name; }
-        public String getRole() { return role; }
-        public String getContact() { return contact; }
+        HospitalManagementSystemGUI app = new HospitalManagementSystemGUI();
+        try {
+            app.readPersistence(Paths.get(DATA_DIR));
+        } catch(IOException ex) {
+            System.err.println("Could not open data directory " + DATA_DIR + ": " + ex.getMessage());
+            return 1;
+        }
+        BulkExporter.Result result;
+        long start = System.nanoTime();
+        try {
+            result = new BulkExporter(app, ForkJoinPool.commonPool(), format.equals("jsonl"), gzip)
+                    .export(types, dir, filter, new AtomicBoolean());
+        } catch(IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            return 2;
+        } finally {
+            app.persistence.close();
+        }
+        long millis = (System.nanoTime() - start) / 1_000_000;
+        for(Map.Entry<String, Long> e : result.rows.entrySet()) {
+            System.out.println("Exported " + e.getValue() + " " + e.getKey() + " to " + result.files.get(e.getKey()));
+        }
+        System.out.println("Done in " + millis + " ms");
+        return 0;
+    }
 
-        @Override
-        public String toString() {
-            return staffId + " - " + name + " (" + role + ")";
+    // Nightly figures straight from the columnar snapshot, without loading the stores
+    private static void printReport(Path columns) throws IOException {
+        ColumnarStore store = ColumnarStore.open(columns);
+        try {
+            BillingColumns bills = store.bills();
+            System.out.printf("Bills: %d  paid: %s  unpaid: %s%n", bills.rows(),
+                    Billing.formatAmount(bills.totalAmount(true)), Billing.formatAmount(bills.totalAmount(false)));
+
+            PatientColumns patients = store.patients();
+            System.out.println("Patients: " + patients.rows() + " by gender " + patients.countByGender());
+
+            AppointmentColumns appointments = store.appointments();
+            LocalDateTime today = LocalDateTime.now().toLocalDate().atStartOfDay();
+            System.out.println("Appointments: " + appointments.rows() + ", today by doctor "
+                    + appointments.countByDoctor(today, today.plusDays(1)));
+        } finally {
+            store.close();
         }
     }
 
-    // --- Managers / Models ---
-    private Map<Integer, Patient> patients = new HashMap<>();
-    private Map<Integer, Appointment> appointments = new HashMap<>();
-    private Map<Integer, EHR> ehrRecords = new HashMap<>();
-    private Map<Integer, Billing> bills = new HashMap<>();
-    private Map<Integer, InventoryItem> inventoryItems = new HashMap<>();
-    private Map<Integer, Staff> staffMembers = new HashMap<>();
+    // Loads the stores for export without changing the data directory; see PersistenceEngine.read
+    private void readPersistence(Path dataDir) throws IOException {
+        persistence = new PersistenceEngine(this, dataDir);
+        persistence.read();
+    }
 
-    // --- GUI Components ---
-    private JFrame frame;
+    // Recovers the stores and sets up the indexes and service on top of them
+    private void openPersistence(Path dataDir) throws IOException {
+        persistence = new PersistenceEngine(this, dataDir);
+        persistence.recover();
+        Runtime.getRuntime().addShutdownHook(new Thread(persistence::close, "hms-shutdown"));
+
+        // The service checks for clashes against this index and adds each booking to it itself
+        appointmentIndex = new AppointmentIndex(appointments);
+        // Bookings and staff names are looked up by the service, so these are updated on the adding thread too
+        for(Appointment a : appointments.values()) roster.book(a);
+        appointments.addListener(roster::book);
+        for(Staff s : staffMembers.values()) roster.addStaff(s);
+        staffMembers.addListener(roster::addStaff);
+        billingLedger = new BillingLedger(bills);
+        service = new HospitalService(this);
+
+        metrics.gauge("store.patients", patients::size);
+        metrics.gauge("store.appointments", appointments::size);
+        metrics.gauge("store.ehrs", ehrRecords::size);
+        metrics.gauge("store.bills", bills::size);
+        metrics.gauge("store.inventory", inventoryItems::size);
+        metrics.gauge("store.staff", staffMembers::size);
+        metrics.gauge("wal.queued", persistence::queuedWrites);
+    }
 
-    // References to panels for updating combo boxes
-    private AppointmentPanel appointmentPanel;
-    private EHRPanel ehrPanel;
-    private BillingPanel billingPanel;
+    // Rebuilds the reminder wheel from the stored appointments and starts it; notices are appended to file
+    private void startReminders(Path file) throws IOException {
+        reminders = new ReminderScheduler(this, () -> System.currentTimeMillis() / 1000);
+        reminders.addSink(new FileReminderSink(file));
+        for(Appointment a : appointments.values()) reminders.schedule(a);
+        appointments.addListener(reminders::schedule);
+        metrics.gauge("reminders.pending", reminders::pending);
+        reminders.start();
+    }
 
-    public static void main(String[] args) {
-        SwingUtilities.invokeLater(() -> {
-            HospitalManagementSystemGUI app = new HospitalManagementSystemGUI();
-            app.buildGUI();
+    // Appends a metrics report to the file every periodSeconds; off when periodSeconds is 0
+    private void startMetricsLog(Path file, int periodSeconds) {
+        if(periodSeconds <= 0) return;
+        ScheduledExecutorService logger = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "hms-metrics-log");
+            t.setDaemon(true);
+            return t;
         });
+        logger.scheduleAtFixedRate(() -> {
+            try(PrintWriter out = new PrintWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND))) {
+                metrics.dump(out);
+            } catch(IOException ex) {
+                System.err.println("Could not write " + file + ": " + ex);
+            }
+        }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    // Indexes only the panels search; headless imports and exports never build them. The matcher
+    // and the record index take seconds per million rows, so they are filled on a background thread
+    // and report that they are warming up until then; the window doesn't wait for them.
+    private void buildSearchIndexes() {
+        // The service checks registrations for duplicates against this one, so it is updated on the adding thread
+        patientMatcher = new PatientMatcher(patients);
+        patients.addListener(patientMatcher::add);
+        patientDirectory = new PatientDirectory(patients.values());
+        patients.addListener(onEdt(added -> added.forEach(patientDirectory::add)));
+        ehrSearchIndex = new EHRSearchIndex(ehrRecords);
+        // Patients first: registration waits on the duplicate check, record search is rarer
+        Thread warmer = new Thread(() -> {
+            patientMatcher.warm();
+            ehrSearchIndex.warm();
+        }, "hms-index-warmup");
+        warmer.setDaemon(true);
+        warmer.start();
     }
 
     private void buildGUI() {
+        tasks = new TaskRunner();
         frame = new JFrame("Hospital Management System");
         frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         frame.setSize(900, 600);
@@ -201,6 +5619,7 @@ public class HospitalManagementSystemGUI {
         JButton billingBtn = new JButton("Billing and Invoicing");
         JButton inventoryBtn = new JButton("Inventory Management");
         JButton staffBtn = new JButton("Staff Management");
+        JButton exportBtn = new JButton("Export Data");
 
         menuPanel.add(patientBtn);
         menuPanel.add(Box.createVerticalStrut(10));
@@ -213,14 +5632,16 @@ public class HospitalManagementSystemGUI {
         menuPanel.add(inventoryBtn);
         menuPanel.add(Box.createVerticalStrut(10));
         menuPanel.add(staffBtn);
+        menuPanel.add(Box.createVerticalStrut(10));
+        menuPanel.add(exportBtn);
 
         JPanel contentPanel = new JPanel(new CardLayout());
 
         // Create panels for each module
         PatientPanel patientPanel = new PatientPanel();
-        appointmentPanel = new AppointmentPanel();
-        ehrPanel = new EHRPanel();
-        billingPanel = new BillingPanel();
+        AppointmentPanel appointmentPanel = new AppointmentPanel();
+        EHRPanel ehrPanel = new EHRPanel();
+        BillingPanel billingPanel = new BillingPanel();
         InventoryPanel inventoryPanel = new InventoryPanel();
         StaffPanel staffPanel = new StaffPanel();
 
@@ -238,32 +5659,32 @@ public class HospitalManagementSystemGUI {
         billingBtn.addActionListener(e -> switchCard(contentPanel, "Billing"));
         inventoryBtn.addActionListener(e -> switchCard(contentPanel, "Inventory"));
         staffBtn.addActionListener(e -> switchCard(contentPanel, "Staff"));
+        ExportDialog exportDialog = new ExportDialog(frame);
+        exportBtn.addActionListener(e -> exportDialog.setVisible(true));
 
         mainPanel.add(menuPanel, BorderLayout.WEST);
         mainPanel.add(contentPanel, BorderLayout.CENTER);
+        mainPanel.add(tasks, BorderLayout.SOUTH);
 
         frame.getContentPane().add(mainPanel);
+
+        DiagnosticsDialog diagnostics = new DiagnosticsDialog(frame);
+        JRootPane root = frame.getRootPane();
+        root.getInputMap(JComponent.WHEN_IN_FOCUSED_WINDOW).put(KeyStroke.getKeyStroke("ctrl shift D"), "diagnostics");
+        root.getActionMap().put("diagnostics", new AbstractAction() {
+            @Override
+            public void actionPerformed(java.awt.event.ActionEvent e) {
+                diagnostics.setVisible(true);
+            }
+        });
+        new EdtWatchdog(metrics, EDT_STALL_MILLIS).start();
+
         frame.setVisible(true);
     }
 
     private void switchCard(JPanel contentPanel, String cardName) {
         CardLayout cl = (CardLayout)(contentPanel.getLayout());
         cl.show(contentPanel, cardName);
-        // When switching to Appointment, EHR, or Billing panel, refresh the patients combo box
-        if(cardName.equals("Appointment")) {
-            appointmentPanel.refreshPatients();
-        } else if(cardName.equals("EHR")) {
-            ehrPanel.refreshPatients();
-        } else if(cardName.equals("Billing")) {
-            billingPanel.refreshPatients();
-        }
-    }
-
-    // Call this after a new patient is added to refresh combos
-    private void refreshPatientComboBoxes() {
-        if(appointmentPanel != null) appointmentPanel.refreshPatients();
-        if(ehrPanel != null) ehrPanel.refreshPatients();
-        if(billingPanel != null) billingPanel.refreshPatients();
     }
 
 
@@ -271,8 +5692,11 @@ public class HospitalManagementSystemGUI {
 
     // Patient Registration Panel
     class PatientPanel extends JPanel {
-        private JTextField nameField, ageField, genderField, contactField;
-        private DefaultTableModel tableModel;
+        static final int SEARCH_LIMIT = 200;
+
+        private JTextField nameField, ageField, genderField, contactField, searchField;
+        private EntityTableModel<Patient> tableModel;
+        private boolean showingAll = true;
 
         public PatientPanel() {
             setLayout(new BorderLayout(10, 10));
@@ -303,49 +5727,79 @@ public class HospitalManagementSystemGUI {
             add(formPanel, BorderLayout.NORTH);
 
             // Table to display patients
-            tableModel = new DefaultTableModel(new Object[]{"ID", "Name", "Age", "Gender", "Contact"}, 0);
+            tableModel = new EntityTableModel<Patient>(new String[]{"ID", "Name", "Age", "Gender", "Contact"}, patients) {
+                @Override
+                protected Object valueAt(Patient p, int column) {
+                    switch(column) {
+                        case 0: return p.getId();
+                        case 1: return p.getName();
+                        case 2: return p.getAge();
+                        case 3: return p.getGender();
+                        default: return p.getContact();
+                    }
+                }
+            };
             JTable table = new JTable(tableModel);
+            patients.addListener(onEdt(added -> {
+                if(showingAll) tableModel.rowsInserted(added);
+            }));
+            tasks.load(this, "Loading patients", tableModel, patients::values);
             JScrollPane scrollPane = new JScrollPane(table);
-            add(scrollPane, BorderLayout.CENTER);
-
-            registerBtn.addActionListener(e -> {
-                String name = nameField.getText().trim();
-                String ageText = ageField.getText().trim();
-                String gender = genderField.getText().trim();
-                String contact = contactField.getText().trim();
 
-                if(name.isEmpty() || ageText.isEmpty() || gender.isEmpty() || contact.isEmpty()) {
-                    JOptionPane.showMessageDialog(this, "Please fill all fields.", "Validation Error", JOptionPane.ERROR_MESSAGE);
-                    return;
-                }
-
-                int age;
-                try {
-                    age = Integer.parseInt(ageText);
-                    if(age <= 0) throw new NumberFormatException();
-                } catch(NumberFormatException ex) {
-                    JOptionPane.showMessageDialog(this, "Age must be a positive integer.", "Validation Error", JOptionPane.ERROR_MESSAGE);
-                    return;
-                }
+            JPanel searchPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+            searchPanel.add(new JLabel("Search:"));
+            searchField = new JTextField(24);
+            searchField.setToolTipText("Name (close spellings match too), patient ID, phone or e-mail");
+            searchPanel.add(searchField);
+
+            JPanel tablePanel = new JPanel(new BorderLayout());
+            tablePanel.add(searchPanel, BorderLayout.NORTH);
+            tablePanel.add(scrollPane, BorderLayout.CENTER);
+            add(tablePanel, BorderLayout.CENTER);
+
+            // Searches once typing pauses; a new search replaces the rows of the one before
+            javax.swing.Timer searchTimer = new javax.swing.Timer(150, e -> applySearch());
+            searchTimer.setRepeats(false);
+            searchField.getDocument().addDocumentListener(new DocumentListener() {
+                public void insertUpdate(DocumentEvent e) { searchTimer.restart(); }
+                public void removeUpdate(DocumentEvent e) { searchTimer.restart(); }
+                public void changedUpdate(DocumentEvent e) { searchTimer.restart(); }
+            });
 
-                Patient p = new Patient(name, age, gender, contact);
-                patients.put(p.getId(), p);
-                refreshTable();
-                clearForm();
-                refreshPatientComboBoxes();
-                JOptionPane.showMessageDialog(this, "Patient registered with ID " + p.getId(), "Success", JOptionPane.INFORMATION_MESSAGE);
+            registerBtn.addActionListener(e -> {
+                String name = nameField.getText(), age = ageField.getText();
+                String gender = genderField.getText(), contact = contactField.getText();
+                tasks.run(this, "Checking for duplicates", () -> service.findDuplicates(name, contact), duplicates -> {
+                    if(!duplicates.isEmpty() && !confirmNotDuplicate(duplicates)) return;
+                    tasks.run(this, "Registering patient", () -> service.registerPatient(name, age, gender, contact), p -> {
+                        clearForm();
+                        JOptionPane.showMessageDialog(this, "Patient registered with ID " + p.getId(), "Success", JOptionPane.INFORMATION_MESSAGE);
+                    });
+                }, "Please Wait");
             });
 
             clearBtn.addActionListener(e -> clearForm());
-
-            refreshTable();
         }
 
-        private void refreshTable() {
-            tableModel.setRowCount(0);
-            for(Patient p : patients.values()) {
-                tableModel.addRow(new Object[]{p.getId(), p.getName(), p.getAge(), p.getGender(), p.getContact()});
+        private boolean confirmNotDuplicate(List<PatientMatcher.Match> duplicates) {
+            StringBuilder message = new StringBuilder("This patient may already be registered:\n\n");
+            for(PatientMatcher.Match m : duplicates) {
+                Patient p = m.patient;
+                message.append(p.getId()).append(" - ").append(p.getName()).append(", ").append(p.getAge())
+                        .append(", ").append(p.getGender()).append(", ").append(p.getContact()).append("  (")
+                        .append(m.sameContact ? "same contact, " : "").append(Math.round(m.score * 100)).append("% name match)\n");
             }
+            message.append("\nRegister as a new patient anyway?");
+            return JOptionPane.showConfirmDialog(this, message.toString(), "Possible Duplicate",
+                    JOptionPane.YES_NO_OPTION, JOptionPane.WARNING_MESSAGE) == JOptionPane.YES_OPTION;
+        }
+
+        // Ranked matches aren't in id order, so new registrations aren't appended to them
+        private void applySearch() {
+            String query = searchField.getText().trim();
+            showingAll = query.isEmpty();
+            if(showingAll) tasks.load(this, "Loading patients", tableModel, patients::values);
+            else tasks.load(this, "Searching patients", tableModel, () -> service.searchPatients(query, SEARCH_LIMIT));
         }
 
         private void clearForm() {
@@ -358,10 +5812,13 @@ public class HospitalManagementSystemGUI {
 
     // Appointment Scheduling Panel
     class AppointmentPanel extends JPanel {
-        private JComboBox<Patient> patientComboBox;
+        private PatientSelector patientSelector;
         private JTextField doctorField;
         private JTextField dateTimeField; // yyyy-MM-dd HH:mm
-        private DefaultTableModel tableModel;
+        private JTextField filterDoctorField, filterFromField, filterToField;
+        private JTextField roleField, availableAtField;
+        private EntityTableModel<Appointment> tableModel;
+        private boolean showingAll = true;
 
         public AppointmentPanel() {
             setLayout(new BorderLayout(10,10));
@@ -369,8 +5826,8 @@ public class HospitalManagementSystemGUI {
             JPanel formPanel = new JPanel(new GridLayout(4,2,5,5));
 
             formPanel.add(new JLabel("Select Patient:"));
-            patientComboBox = new JComboBox<>();
-            formPanel.add(patientComboBox);
+            patientSelector = new PatientSelector();
+            formPanel.add(patientSelector);
 
             formPanel.add(new JLabel("Doctor Name:"));
             doctorField = new JTextField();
@@ -386,76 +5843,204 @@ public class HospitalManagementSystemGUI {
             JButton clearBtn = new JButton("Clear");
             formPanel.add(clearBtn);
 
-            add(formPanel, BorderLayout.NORTH);
-
-            tableModel = new DefaultTableModel(new Object[]{"ID", "Patient", "Doctor", "Date & Time"},0);
+            JPanel filterPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+            filterPanel.add(new JLabel("Doctor:"));
+            filterDoctorField = new JTextField(8);
+            filterPanel.add(filterDoctorField);
+            filterPanel.add(new JLabel("From:"));
+            filterFromField = new JTextField(10);
+            filterPanel.add(filterFromField);
+            filterPanel.add(new JLabel("To:"));
+            filterToField = new JTextField(10);
+            filterPanel.add(filterToField);
+            JButton filterBtn = new JButton("Filter");
+            filterPanel.add(filterBtn);
+            JButton patientFilterBtn = new JButton("Selected Patient");
+            filterPanel.add(patientFilterBtn);
+            JButton showAllBtn = new JButton("Show All");
+            filterPanel.add(showAllBtn);
+
+            JPanel availabilityPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+            availabilityPanel.add(new JLabel("Role:"));
+            roleField = new JTextField(8);
+            roleField.setToolTipText("Staff role, e.g. Cardiologist; blank for anyone on the roster");
+            availabilityPanel.add(roleField);
+            availabilityPanel.add(new JLabel("At / After:"));
+            availableAtField = new JTextField(10);
+            availableAtField.setToolTipText("yyyy-MM-dd HH:mm; Next Free Slot starts from now when blank");
+            availabilityPanel.add(availableAtField);
+            JButton freeAtBtn = new JButton("Who's Free");
+            availabilityPanel.add(freeAtBtn);
+            JButton nextFreeBtn = new JButton("Next Free Slot");
+            availabilityPanel.add(nextFreeBtn);
+
+            JPanel queryPanel = new JPanel(new GridLayout(2,1));
+            queryPanel.add(filterPanel);
+            queryPanel.add(availabilityPanel);
+
+            JPanel northPanel = new JPanel(new BorderLayout(5,5));
+            northPanel.add(formPanel, BorderLayout.NORTH);
+            northPanel.add(queryPanel, BorderLayout.SOUTH);
+            add(northPanel, BorderLayout.NORTH);
+
+            tableModel = new EntityTableModel<Appointment>(new String[]{"ID", "Patient", "Doctor", "Date & Time", "Status"}, appointments) {
+                @Override
+                protected Object valueAt(Appointment a, int column) {
+                    switch(column) {
+                        case 0: return a.getId();
+                        case 1:
+                            Patient p = patients.get(a.getPatientId());
+                            return (p != null) ? p.getName() : "Unknown";
+                        case 2: return a.getDoctorName();
+                        case 3: return a.getAppointmentDateTime().format(DATE_TIME_FORMAT);
+                        default: return a.getStatus();
+                    }
+                }
+            };
             JTable table = new JTable(tableModel);
+            appointments.addListener(onEdt(added -> {
+                if(showingAll) tableModel.rowsInserted(added);
+            }, tableModel::rowsUpdated));
+            showAll();
             JScrollPane scrollPane = new JScrollPane(table);
             add(scrollPane, BorderLayout.CENTER);
 
+            JPanel statusPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+            JButton checkInBtn = new JButton("Check In Selected");
+            statusPanel.add(checkInBtn);
+            add(statusPanel, BorderLayout.SOUTH);
+
+            checkInBtn.addActionListener(e -> {
+                int row = table.getSelectedRow();
+                if(row < 0) {
+                    JOptionPane.showMessageDialog(this, "Select an appointment first.", "Error", JOptionPane.ERROR_MESSAGE);
+                    return;
+                }
+                Appointment selected = tableModel.getRow(table.convertRowIndexToModel(row));
+                tasks.run(this, "Checking in", () -> service.checkIn(selected.getId()), a -> {}, "Check-in");
+            });
+
             scheduleBtn.addActionListener(e -> {
-                Patient selectedPatient = (Patient) patientComboBox.getSelectedItem();
+                Patient selectedPatient = patientSelector.getSelectedPatient();
                 if(selectedPatient == null) {
                     JOptionPane.showMessageDialog(this, "No patient selected.", "Error", JOptionPane.ERROR_MESSAGE);
                     return;
                 }
-                String doctor = doctorField.getText().trim();
-                String dtStr = dateTimeField.getText().trim();
-                if(doctor.isEmpty() || dtStr.isEmpty()) {
-                    JOptionPane.showMessageDialog(this, "Doctor and DateTime must be provided.", "Validation Error", JOptionPane.ERROR_MESSAGE);
-                    return;
-                }
-                LocalDateTime dateTime;
-                try {
-                    dateTime = LocalDateTime.parse(dtStr, DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm"));
-                } catch (Exception ex) {
-                    JOptionPane.showMessageDialog(this, "DateTime format invalid. Use yyyy-MM-dd HH:mm", "Validation Error", JOptionPane.ERROR_MESSAGE);
-                    return;
-                }
-                Appointment a = new Appointment(selectedPatient.getId(), doctor, dateTime);
-                appointments.put(a.getId(), a);
-                refreshTable();
-                clearForm();
-                JOptionPane.showMessageDialog(this, "Appointment scheduled with ID " + a.getId(), "Success", JOptionPane.INFORMATION_MESSAGE);
+                String doctor = doctorField.getText(), dateTime = dateTimeField.getText();
+                tasks.run(this, "Scheduling appointment", () -> service.scheduleAppointment(selectedPatient.getId(), doctor, dateTime), a -> {
+                    clearForm();
+                    JOptionPane.showMessageDialog(this, "Appointment scheduled with ID " + a.getId(), "Success", JOptionPane.INFORMATION_MESSAGE);
+                }, "Scheduling Conflict");
+            });
+
+            freeAtBtn.addActionListener(e -> {
+                String role = roleField.getText(), at = availableAtField.getText();
+                tasks.run(this, "Checking availability", () -> service.freeStaff(role, at), free -> {
+                    if(free.isEmpty()) {
+                        JOptionPane.showMessageDialog(this, "Nobody matching is free then.", "Availability", JOptionPane.INFORMATION_MESSAGE);
+                        return;
+                    }
+                    DefaultListModel<String> names = new DefaultListModel<>();
+                    for(Staff s : free) names.addElement(s.toString());
+                    JList<String> list = new JList<>(names);
+                    list.setVisibleRowCount(12);
+                    JOptionPane.showMessageDialog(this, new JScrollPane(list), free.size() + " free", JOptionPane.PLAIN_MESSAGE);
+                });
+            });
+            nextFreeBtn.addActionListener(e -> {
+                String role = roleField.getText(), from = availableAtField.getText();
+                tasks.run(this, "Finding a free slot", () -> service.nextFreeSlot(role, from), slot -> {
+                    Staff s = staffMembers.get(slot.staffId);
+                    doctorField.setText(s.getName());
+                    dateTimeField.setText(slot.start.format(DATE_TIME_FORMAT));
+                    JOptionPane.showMessageDialog(this, s.getName() + " is free at " + slot.start.format(DATE_TIME_FORMAT)
+                            + ". The form has been filled in.", "Next Free Slot", JOptionPane.INFORMATION_MESSAGE);
+                }, "Availability");
             });
 
             clearBtn.addActionListener(e -> clearForm());
+            filterBtn.addActionListener(e -> applyFilter());
+            patientFilterBtn.addActionListener(e -> {
+                Patient selectedPatient = patientSelector.getSelectedPatient();
+                if(selectedPatient == null) {
+                    JOptionPane.showMessageDialog(this, "No patient selected.", "Error", JOptionPane.ERROR_MESSAGE);
+                    return;
+                }
+                showRows(() -> appointmentIndex.forPatient(selectedPatient.getId()));
+            });
+            showAllBtn.addActionListener(e -> showAll());
+        }
 
-            refreshTable();
-            refreshPatients();
+        private void showAll() {
+            showingAll = true;
+            tasks.load(this, "Loading appointments", tableModel, appointments::values);
         }
 
-        public void refreshPatients() {
-            patientComboBox.removeAllItems();
-            for(Patient p : patients.values()) {
-                patientComboBox.addItem(p);
+        // Doctor and/or time range; an empty bound is open
+        private void applyFilter() {
+            String doctor = filterDoctorField.getText().trim();
+            LocalDateTime from, to;
+            try {
+                String fromText = filterFromField.getText().trim();
+                String toText = filterToField.getText().trim();
+                from = fromText.isEmpty() ? LocalDateTime.MIN : LocalDateTime.parse(fromText, DATE_TIME_FORMAT);
+                to = toText.isEmpty() ? LocalDateTime.MAX : LocalDateTime.parse(toText, DATE_TIME_FORMAT);
+            } catch(Exception ex) {
+                JOptionPane.showMessageDialog(this, "DateTime format invalid. Use yyyy-MM-dd HH:mm", "Validation Error", JOptionPane.ERROR_MESSAGE);
+                return;
             }
-            patientComboBox.setSelectedIndex(-1);
+            showRows(() -> doctor.isEmpty() ? appointmentIndex.between(from, to) : appointmentIndex.forDoctor(doctor, from, to));
         }
 
-        private void refreshTable() {
-            tableModel.setRowCount(0);
-            for(Appointment a : appointments.values()) {
-                Patient p = patients.get(a.getPatientId());
-                String patientName = (p != null) ? p.getName() : "Unknown";
-                tableModel.addRow(new Object[]{a.getId(), patientName, a.getDoctorName(),
-                        a.getAppointmentDateTime().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm"))});
-            }
+        // Query results are in time order, so new appointments aren't appended to them
+        private void showRows(Callable<Collection<Appointment>> query) {
+            showingAll = false;
+            tasks.load(this, "Filtering appointments", tableModel, query);
         }
 
         private void clearForm() {
             doctorField.setText("");
             dateTimeField.setText("");
-            patientComboBox.setSelectedIndex(-1);
+            patientSelector.clearSelection();
         }
     }
 
     // Electronic Health Records Panel
+    // Virtual list over one patient's EHR; JList only asks for the rows it paints.
+    // The row count is the model's own and only moves on the EDT, when the list is told, so records
+    // appended by other threads never show up in getSize() ahead of their event.
+    static class EHRListModel extends AbstractListModel<String> {
+        private EHR ehr;
+        private int size;
+
+        public void show(EHR ehr) {
+            int oldSize = size;
+            this.ehr = null;
+            size = 0;
+            if(oldSize > 0) fireIntervalRemoved(this, 0, oldSize - 1);
+            this.ehr = ehr;
+            changed(ehr);
+        }
+
+        public boolean isShowing(EHR ehr) { return this.ehr == ehr; }
+
+        // Picks up records appended to the shown EHR since the list was last told
+        public void changed(EHR changed) {
+            if(changed != ehr || ehr == null) return;
+            int oldSize = size;
+            size = ehr.size();
+            if(size > oldSize) fireIntervalAdded(this, oldSize, size - 1);
+        }
+
+        @Override public int getSize() { return size; }
+        @Override public String getElementAt(int index) { return "- " + ehr.getRecord(index); }
+    }
+
     class EHRPanel extends JPanel {
-        private JComboBox<Patient> patientComboBox;
-        private JTextArea recordsArea;
+        private PatientSelector patientSelector;
+        private EHRListModel recordsModel = new EHRListModel();
+        private JList<String> recordsList;
         private JTextField newRecordField;
-        private DefaultTableModel tableModel;
 
         public EHRPanel() {
             setLayout(new BorderLayout(10,10));
@@ -465,16 +6050,31 @@ public class HospitalManagementSystemGUI {
 
             JPanel comboPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
             comboPanel.add(new JLabel("Select Patient:"));
-            patientComboBox = new JComboBox<>();
-            comboPanel.add(patientComboBox);
+            patientSelector = new PatientSelector();
+            comboPanel.add(patientSelector);
             JButton loadBtn = new JButton("Load Records");
             comboPanel.add(loadBtn);
 
-            topPanel.add(comboPanel, BorderLayout.NORTH);
-
-            recordsArea = new JTextArea(10, 40);
-            recordsArea.setEditable(false);
-            JScrollPane scrollPane = new JScrollPane(recordsArea);
+            JPanel searchPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+            searchPanel.add(new JLabel("Search All Records:"));
+            JTextField searchField = new JTextField(25);
+            searchField.setToolTipText("Words are ANDed; use OR, -word to exclude, \"quoted phrase\"");
+            searchPanel.add(searchField);
+            JButton searchBtn = new JButton("Search");
+            searchPanel.add(searchBtn);
+
+            JPanel headerPanel = new JPanel(new GridLayout(2,1));
+            headerPanel.add(comboPanel);
+            headerPanel.add(searchPanel);
+            topPanel.add(headerPanel, BorderLayout.NORTH);
+
+            recordsList = new JList<>(recordsModel);
+            ehrRecords.addListener(onEdt(added -> added.forEach(recordsModel::changed),
+                                         updated -> updated.forEach(recordsModel::changed)));
+            // Fixed cell sizes stop JList from measuring every record to lay itself out
+            recordsList.setPrototypeCellValue("- XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX");
+            recordsList.setVisibleRowCount(10);
+            JScrollPane scrollPane = new JScrollPane(recordsList);
             topPanel.add(scrollPane, BorderLayout.CENTER);
 
             formPanel.add(new JLabel("Add New Record:"), BorderLayout.NORTH);
@@ -487,67 +6087,73 @@ public class HospitalManagementSystemGUI {
             add(formPanel, BorderLayout.SOUTH);
 
             loadBtn.addActionListener(e -> loadRecords());
+            searchBtn.addActionListener(e -> search(searchField.getText()));
+            searchField.addActionListener(e -> search(searchField.getText()));
             addRecordBtn.addActionListener(e -> addRecord());
-
-            refreshPatients();
-        }
-
-        public void refreshPatients() {
-            patientComboBox.removeAllItems();
-            for(Patient p : patients.values()) {
-                patientComboBox.addItem(p);
-            }
-            patientComboBox.setSelectedIndex(-1);
-            recordsArea.setText("");
         }
 
         private void loadRecords() {
-            Patient selectedPatient = (Patient) patientComboBox.getSelectedItem();
+            Patient selectedPatient = patientSelector.getSelectedPatient();
             if(selectedPatient == null) {
                 JOptionPane.showMessageDialog(this, "No patient selected.", "Error", JOptionPane.ERROR_MESSAGE);
                 return;
             }
-            EHR ehr = ehrRecords.get(selectedPatient.getId());
-            if(ehr == null) {
-                ehr = new EHR(selectedPatient.getId());
-                ehrRecords.put(selectedPatient.getId(), ehr);
-            }
-            StringBuilder sb = new StringBuilder();
-            for(String rec : ehr.getRecords()) {
-                sb.append("- ").append(rec).append("\n");
-            }
-            recordsArea.setText(sb.toString());
+            tasks.run(this, "Loading records", () -> service.openEhr(selectedPatient.getId()), ehr -> {
+                recordsModel.show(ehr);
+                if(recordsModel.getSize() > 0) recordsList.ensureIndexIsVisible(recordsModel.getSize() - 1);
+            });
         }
 
         private void addRecord() {
-            Patient selectedPatient = (Patient) patientComboBox.getSelectedItem();
+            Patient selectedPatient = patientSelector.getSelectedPatient();
             if(selectedPatient == null) {
                 JOptionPane.showMessageDialog(this, "No patient selected.", "Error", JOptionPane.ERROR_MESSAGE);
                 return;
             }
-            String newRec = newRecordField.getText().trim();
-            if(newRec.isEmpty()) {
-                JOptionPane.showMessageDialog(this, "Record cannot be empty.", "Validation Error", JOptionPane.ERROR_MESSAGE);
+            String record = newRecordField.getText();
+            tasks.run(this, "Adding record", () -> service.addEhrRecord(selectedPatient.getId(), record), ehr -> {
+                newRecordField.setText("");
+                if(recordsModel.isShowing(ehr)) {
+                    recordsModel.changed(ehr);
+                } else {
+                    recordsModel.show(ehr);
+                }
+                recordsList.ensureIndexIsVisible(recordsModel.getSize() - 1);
+                JOptionPane.showMessageDialog(this, "Record added successfully.", "Success", JOptionPane.INFORMATION_MESSAGE);
+            });
+        }
+
+        private void search(String query) {
+            if(query.trim().isEmpty()) {
+                JOptionPane.showMessageDialog(this, "Enter words to search for.", "Validation Error", JOptionPane.ERROR_MESSAGE);
                 return;
             }
-            EHR ehr = ehrRecords.get(selectedPatient.getId());
-            if(ehr == null) {
-                ehr = new EHR(selectedPatient.getId());
-                ehrRecords.put(selectedPatient.getId(), ehr);
-            }
-            ehr.addRecord(newRec);
-            newRecordField.setText("");
-            loadRecords();
-            JOptionPane.showMessageDialog(this, "Record added successfully.", "Success", JOptionPane.INFORMATION_MESSAGE);
+            tasks.run(this, "Searching records", () -> ehrSearchIndex.search(query, 100), hits -> {
+                if(hits.isEmpty()) {
+                    JOptionPane.showMessageDialog(this, "No records match.", "Search", JOptionPane.INFORMATION_MESSAGE);
+                    return;
+                }
+                DefaultListModel<String> results = new DefaultListModel<>();
+                for(EHRSearchIndex.Hit hit : hits) {
+                    Patient p = patients.get(hit.patientId);
+                    String patientName = (p != null) ? p.getName() : "Unknown";
+                    results.addElement(hit.patientId + " - " + patientName + " #" + (hit.recordIndex + 1) + ": " + hit.record);
+                }
+                JList<String> resultList = new JList<>(results);
+                resultList.setVisibleRowCount(12);
+                JOptionPane.showMessageDialog(this, new JScrollPane(resultList), hits.size() + " matching records",
+                        JOptionPane.PLAIN_MESSAGE);
+            }, "Search");
         }
     }
 
     // Billing and Invoicing Panel
     class BillingPanel extends JPanel {
-        private JComboBox<Patient> patientComboBox;
+        private PatientSelector patientSelector;
         private JTextField amountField;
-        private DefaultTableModel tableModel;
+        private EntityTableModel<Billing> tableModel;
         private JTable table;
+        private JLabel patientSummaryLabel, totalsLabel;
 
         public BillingPanel() {
             setLayout(new BorderLayout(10,10));
@@ -555,8 +6161,8 @@ public class HospitalManagementSystemGUI {
             JPanel formPanel = new JPanel(new GridLayout(3,2,5,5));
 
             formPanel.add(new JLabel("Select Patient:"));
-            patientComboBox = new JComboBox<>();
-            formPanel.add(patientComboBox);
+            patientSelector = new PatientSelector();
+            formPanel.add(patientSelector);
 
             formPanel.add(new JLabel("Amount:"));
             amountField = new JTextField();
@@ -570,77 +6176,101 @@ public class HospitalManagementSystemGUI {
 
             add(formPanel, BorderLayout.NORTH);
 
-            tableModel = new DefaultTableModel(new Object[]{"Bill ID", "Patient", "Amount", "Date", "Paid"}, 0);
+            tableModel = new EntityTableModel<Billing>(new String[]{"Bill ID", "Patient", "Amount", "Date", "Paid"}, bills) {
+                @Override
+                protected Object valueAt(Billing b, int column) {
+                    switch(column) {
+                        case 0: return b.getBillId();
+                        case 1:
+                            Patient p = patients.get(b.getPatientId());
+                            return (p != null) ? p.getName() : "Unknown";
+                        case 2: return Billing.formatAmount(b.getAmountMinor());
+                        case 3: return b.getBillingDate().format(DATE_TIME_FORMAT);
+                        default: return b.isPaid() ? "Yes" : "No";
+                    }
+                }
+            };
             table = new JTable(tableModel);
+            bills.addListener(onEdt(added -> {
+                tableModel.rowsInserted(added);
+                refreshSummary();
+            }, updated -> {
+                tableModel.rowsUpdated(updated);
+                refreshSummary();
+            }));
+            tasks.load(this, "Loading bills", tableModel, bills::values);
             JScrollPane scrollPane = new JScrollPane(table);
             add(scrollPane, BorderLayout.CENTER);
 
+            // Figures come from the ledger's running totals, so refreshing is cheap
+            JPanel summaryPanel = new JPanel(new BorderLayout(5, 5));
+            JPanel labels = new JPanel(new GridLayout(2, 1));
+            patientSummaryLabel = new JLabel();
+            totalsLabel = new JLabel();
+            labels.add(patientSummaryLabel);
+            labels.add(totalsLabel);
+            summaryPanel.add(labels, BorderLayout.CENTER);
+            JButton payBtn = new JButton("Mark Selected Paid");
+            summaryPanel.add(payBtn, BorderLayout.EAST);
+            add(summaryPanel, BorderLayout.SOUTH);
+            refreshSummary();
+            patientSelector.addSelectionListener(this::refreshSummary);
+
+            payBtn.addActionListener(e -> {
+                int row = table.getSelectedRow();
+                if(row < 0) {
+                    JOptionPane.showMessageDialog(this, "Select a bill in the table first.", "Error", JOptionPane.ERROR_MESSAGE);
+                    return;
+                }
+                Billing bill = tableModel.getRow(table.convertRowIndexToModel(row));
+                tasks.run(this, "Recording payment", () -> service.payBill(bill.getBillId()), paid -> {
+                    if(!paid) JOptionPane.showMessageDialog(this, "Bill " + bill.getBillId() + " is already paid.", "Error", JOptionPane.ERROR_MESSAGE);
+                });
+            });
+
             addBillBtn.addActionListener(e -> {
-                Patient selectedPatient = (Patient) patientComboBox.getSelectedItem();
+                Patient selectedPatient = patientSelector.getSelectedPatient();
                 if(selectedPatient == null) {
                     JOptionPane.showMessageDialog(this, "No patient selected.", "Error", JOptionPane.ERROR_MESSAGE);
                     return;
                 }
-                String amountText = amountField.getText().trim();
-                if(amountText.isEmpty()) {
-                    JOptionPane.showMessageDialog(this, "Amount must be provided.", "Validation Error", JOptionPane.ERROR_MESSAGE);
-                    return;
-                }
-                double amount;
-                try {
-                    amount = Double.parseDouble(amountText);
-                    if(amount <= 0) throw new NumberFormatException();
-                } catch(NumberFormatException ex) {
-                    JOptionPane.showMessageDialog(this, "Amount must be a positive number.", "Validation Error", JOptionPane.ERROR_MESSAGE);
-                    return;
-                }
-
-                Billing bill = new Billing(selectedPatient.getId(), amount);
-                bills.put(bill.getBillId(), bill);
-                refreshTable();
-                clearForm();
-                JOptionPane.showMessageDialog(this, "Bill added successfully with ID " + bill.getBillId(), "Success", JOptionPane.INFORMATION_MESSAGE);
+                String amount = amountField.getText();
+                tasks.run(this, "Adding bill", () -> service.createBill(selectedPatient.getId(), amount), bill -> {
+                    clearForm();
+                    JOptionPane.showMessageDialog(this, "Bill added successfully with ID " + bill.getBillId(), "Success", JOptionPane.INFORMATION_MESSAGE);
+                });
             });
 
             clearBtn.addActionListener(e -> clearForm());
-
-            refreshPatients();
-            refreshTable();
-        }
-
-        public void refreshPatients() {
-            patientComboBox.removeAllItems();
-            for(Patient p : patients.values()) {
-                patientComboBox.addItem(p);
-            }
-            patientComboBox.setSelectedIndex(-1);
-        }
-
-        private void refreshTable() {
-            tableModel.setRowCount(0);
-            for(Billing b : bills.values()) {
-                Patient p = patients.get(b.getPatientId());
-                String patientName = (p != null) ? p.getName() : "Unknown";
-                tableModel.addRow(new Object[]{
-                        b.getBillId(),
-                        patientName,
-                        String.format("%.2f", b.getAmount()),
-                        b.getBillingDate().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm")),
-                        b.isPaid() ? "Yes" : "No"
-                });
-            }
         }
 
         private void clearForm() {
             amountField.setText("");
-            patientComboBox.setSelectedIndex(-1);
+            patientSelector.clearSelection();
+        }
+
+        private void refreshSummary() {
+            LocalDate today = LocalDate.now();
+            BillingLedger.Totals day = billingLedger.day(today);
+            BillingLedger.Totals month = billingLedger.month(YearMonth.from(today));
+            BillingLedger.Totals overall = billingLedger.overall();
+            Patient selectedPatient = patientSelector.getSelectedPatient();
+            patientSummaryLabel.setText(selectedPatient == null ? "Select a patient to see their outstanding balance."
+                    : "Outstanding for " + selectedPatient.getName() + ": "
+                      + Billing.formatAmount(billingLedger.outstandingFor(selectedPatient.getId())));
+            totalsLabel.setText("Today: " + Billing.formatAmount(day.billed) + " billed, " + Billing.formatAmount(day.paid)
+                    + " paid    This month: " + Billing.formatAmount(month.billed) + " billed, " + Billing.formatAmount(month.paid)
+                    + " paid    All bills: " + Billing.formatAmount(overall.paid) + " paid, "
+                    + Billing.formatAmount(overall.unpaid()) + " unpaid");
         }
     }
 
     // Inventory Management Panel
     class InventoryPanel extends JPanel {
-        private JTextField nameField, quantityField, unitField;
-        private DefaultTableModel tableModel;
+        private JTextField nameField, quantityField, unitField, amountField;
+        private EntityTableModel<InventoryItem> tableModel;
+        private JTable table;
+        private JLabel alertLabel;
 
         public InventoryPanel() {
             setLayout(new BorderLayout(10,10));
@@ -667,47 +6297,65 @@ public class HospitalManagementSystemGUI {
 
             add(formPanel, BorderLayout.NORTH);
 
-            tableModel = new DefaultTableModel(new Object[]{"Item ID", "Name", "Quantity", "Unit"}, 0);
-            JTable table = new JTable(tableModel);
+            tableModel = new EntityTableModel<InventoryItem>(new String[]{"Item ID", "Name", "Quantity", "Reserved", "Unit", "Reorder Level", "Status"},
+                    inventoryItems) {
+                @Override
+                protected Object valueAt(InventoryItem item, int column) {
+                    switch(column) {
+                        case 0: return item.getItemId();
+                        case 1: return item.getName();
+                        case 2: return item.getQuantity();
+                        case 3: return item.getReserved();
+                        case 4: return item.getUnit();
+                        case 5: return item.getReorderLevel();
+                        default: return item.getAvailable() <= item.getReorderLevel() ? "LOW" : "OK";
+                    }
+                }
+            };
+            table = new JTable(tableModel);
+            inventoryItems.addListener(onEdt(tableModel::rowsInserted, tableModel::rowsUpdated));
+            tasks.load(this, "Loading inventory", tableModel, inventoryItems::values);
             JScrollPane scrollPane = new JScrollPane(table);
             add(scrollPane, BorderLayout.CENTER);
 
-            addItemBtn.addActionListener(e -> {
-                String name = nameField.getText().trim();
-                String quantityText = quantityField.getText().trim();
-                String unit = unitField.getText().trim();
-
-                if(name.isEmpty() || quantityText.isEmpty() || unit.isEmpty()) {
-                    JOptionPane.showMessageDialog(this, "Please fill all fields.", "Validation Error", JOptionPane.ERROR_MESSAGE);
-                    return;
+            // Stock movements on the item selected in the table
+            JPanel stockPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+            stockPanel.add(new JLabel("Amount:"));
+            amountField = new JTextField(6);
+            stockPanel.add(amountField);
+            JButton restockBtn = new JButton("Restock");
+            stockPanel.add(restockBtn);
+            JButton dispenseBtn = new JButton("Dispense");
+            stockPanel.add(dispenseBtn);
+            JButton reorderBtn = new JButton("Set Reorder Level");
+            stockPanel.add(reorderBtn);
+            alertLabel = new JLabel(" ");
+            alertLabel.setForeground(Color.RED);
+            stockPanel.add(alertLabel);
+            add(stockPanel, BorderLayout.SOUTH);
+
+            stockAlerts.addListener(new StockListener() {
+                public void lowStock(InventoryItem item, int available) {
+                    runOnEdt(() -> alertLabel.setText("Low stock: " + item.getName() + " (" + available + " " + item.getUnit() + " available)"));
                 }
-
-                int quantity;
-                try {
-                    quantity = Integer.parseInt(quantityText);
-                    if(quantity <= 0) throw new NumberFormatException();
-                } catch(NumberFormatException ex) {
-                    JOptionPane.showMessageDialog(this, "Quantity must be a positive integer.", "Validation Error", JOptionPane.ERROR_MESSAGE);
-                    return;
+                public void backInStock(InventoryItem item, int available) {
+                    runOnEdt(() -> alertLabel.setText(item.getName() + " back above reorder level (" + available + " " + item.getUnit() + ")"));
                 }
-
-                InventoryItem item = new InventoryItem(name, quantity, unit);
-                inventoryItems.put(item.getItemId(), item);
-                refreshTable();
-                clearForm();
-                JOptionPane.showMessageDialog(this, "Inventory item added with ID " + item.getItemId(), "Success", JOptionPane.INFORMATION_MESSAGE);
             });
 
-            clearBtn.addActionListener(e -> clearForm());
+            restockBtn.addActionListener(e -> moveStock((item, amount) -> service.restock(item.getItemId(), amount)));
+            dispenseBtn.addActionListener(e -> moveStock((item, amount) -> service.dispense(item.getItemId(), amount)));
+            reorderBtn.addActionListener(e -> moveStock((item, level) -> service.setReorderLevel(item.getItemId(), level)));
 
-            refreshTable();
-        }
+            addItemBtn.addActionListener(e -> {
+                String name = nameField.getText(), quantity = quantityField.getText(), unit = unitField.getText();
+                tasks.run(this, "Adding inventory item", () -> service.addInventoryItem(name, quantity, unit), item -> {
+                    clearForm();
+                    JOptionPane.showMessageDialog(this, "Inventory item added with ID " + item.getItemId(), "Success", JOptionPane.INFORMATION_MESSAGE);
+                });
+            });
 
-        private void refreshTable() {
-            tableModel.setRowCount(0);
-            for(InventoryItem item : inventoryItems.values()) {
-                tableModel.addRow(new Object[]{item.getItemId(), item.getName(), item.getQuantity(), item.getUnit()});
-            }
+            clearBtn.addActionListener(e -> clearForm());
         }
 
         private void clearForm() {
@@ -715,12 +6363,29 @@ public class HospitalManagementSystemGUI {
             quantityField.setText("");
             unitField.setText("");
         }
+
+        // Applies a movement with the amount field's text to the item selected in the table
+        private void moveStock(BiConsumer<InventoryItem, String> movement) {
+            int row = table.getSelectedRow();
+            if(row < 0) {
+                JOptionPane.showMessageDialog(this, "Select an item in the table first.", "Error", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+            InventoryItem item = tableModel.getRow(table.convertRowIndexToModel(row));
+            String amount = amountField.getText();
+            tasks.run(this, "Updating stock", () -> {
+                movement.accept(item, amount);
+                return null;
+            }, done -> amountField.setText(""), "Stock Error");
+        }
     }
 
     // Staff Management Panel
     class StaffPanel extends JPanel {
         private JTextField nameField, roleField, contactField;
-        private DefaultTableModel tableModel;
+        private JTextField shiftFromField, shiftToField;
+        private EntityTableModel<Staff> tableModel;
+        private JTable table;
 
         public StaffPanel() {
             setLayout(new BorderLayout(10,10));
@@ -747,37 +6412,85 @@ public class HospitalManagementSystemGUI {
 
             add(formPanel, BorderLayout.NORTH);
 
-            tableModel = new DefaultTableModel(new Object[]{"Staff ID", "Name", "Role", "Contact"}, 0);
-            JTable table = new JTable(tableModel);
+            tableModel = new EntityTableModel<Staff>(new String[]{"Staff ID", "Name", "Role", "Contact", "Shifts"}, staffMembers) {
+                @Override
+                protected Object valueAt(Staff s, int column) {
+                    switch(column) {
+                        case 0: return s.getStaffId();
+                        case 1: return s.getName();
+                        case 2: return s.getRole();
+                        case 3: return s.getContact();
+                        default: return roster.describeShifts(s.getStaffId());
+                    }
+                }
+            };
+            table = new JTable(tableModel);
+            staffMembers.addListener(onEdt(tableModel::rowsInserted, tableModel::rowsUpdated));
+            tasks.load(this, "Loading staff", tableModel, staffMembers::values);
             JScrollPane scrollPane = new JScrollPane(table);
             add(scrollPane, BorderLayout.CENTER);
 
-            addStaffBtn.addActionListener(e -> {
-                String name = nameField.getText().trim();
-                String role = roleField.getText().trim();
-                String contact = contactField.getText().trim();
-
-                if(name.isEmpty() || role.isEmpty() || contact.isEmpty()) {
-                    JOptionPane.showMessageDialog(this, "Please fill all fields.", "Validation Error", JOptionPane.ERROR_MESSAGE);
-                    return;
-                }
+            JPanel shiftPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+            shiftPanel.add(new JLabel("Shift for selected staff:"));
+            JComboBox<String> daysBox = new JComboBox<>(new String[]{"Mon-Fri", "Sat-Sun", "Every day", "Monday", "Tuesday",
+                    "Wednesday", "Thursday", "Friday", "Saturday", "Sunday"});
+            shiftPanel.add(daysBox);
+            shiftPanel.add(new JLabel("From:"));
+            shiftFromField = new JTextField("08:00", 5);
+            shiftPanel.add(shiftFromField);
+            shiftPanel.add(new JLabel("To:"));
+            shiftToField = new JTextField("16:00", 5);
+            shiftPanel.add(shiftToField);
+            JButton addShiftBtn = new JButton("Add Shift");
+            shiftPanel.add(addShiftBtn);
+            JButton clearShiftsBtn = new JButton("Clear Shifts");
+            shiftPanel.add(clearShiftsBtn);
+            add(shiftPanel, BorderLayout.SOUTH);
 
-                Staff s = new Staff(name, role, contact);
-                staffMembers.put(s.getStaffId(), s);
-                refreshTable();
-                clearForm();
-                JOptionPane.showMessageDialog(this, "Staff member added with ID " + s.getStaffId(), "Success", JOptionPane.INFORMATION_MESSAGE);
+            addStaffBtn.addActionListener(e -> {
+                String name = nameField.getText(), role = roleField.getText(), contact = contactField.getText();
+                tasks.run(this, "Adding staff member", () -> service.addStaff(name, role, contact), s -> {
+                    clearForm();
+                    JOptionPane.showMessageDialog(this, "Staff member added with ID " + s.getStaffId(), "Success", JOptionPane.INFORMATION_MESSAGE);
+                });
             });
 
             clearBtn.addActionListener(e -> clearForm());
+            addShiftBtn.addActionListener(e -> {
+                Staff s = selectedStaff();
+                if(s == null) return;
+                Set<DayOfWeek> days = shiftDays((String) daysBox.getSelectedItem());
+                String from = shiftFromField.getText(), to = shiftToField.getText();
+                tasks.run(this, "Adding shift", () -> {
+                    service.addShift(s.getStaffId(), days, from, to);
+                    return s;
+                }, added -> {});
+            });
+            clearShiftsBtn.addActionListener(e -> {
+                Staff s = selectedStaff();
+                if(s == null) return;
+                tasks.run(this, "Clearing shifts", () -> {
+                    service.clearShifts(s.getStaffId());
+                    return s;
+                }, cleared -> {});
+            });
+        }
 
-            refreshTable();
+        private Staff selectedStaff() {
+            int row = table.getSelectedRow();
+            if(row < 0) {
+                JOptionPane.showMessageDialog(this, "Select a staff member first.", "Error", JOptionPane.ERROR_MESSAGE);
+                return null;
+            }
+            return tableModel.getRow(table.convertRowIndexToModel(row));
         }
 
-        private void refreshTable() {
-            tableModel.setRowCount(0);
-            for(Staff s : staffMembers.values()) {
-                tableModel.addRow(new Object[]{s.getStaffId(), s.getName(), s.getRole(), s.getContact()});
+        private Set<DayOfWeek> shiftDays(String choice) {
+            switch(choice) {
+                case "Mon-Fri": return EnumSet.range(DayOfWeek.MONDAY, DayOfWeek.FRIDAY);
+                case "Sat-Sun": return EnumSet.of(DayOfWeek.SATURDAY, DayOfWeek.SUNDAY);
+                case "Every day": return EnumSet.allOf(DayOfWeek.class);
+                default: return EnumSet.of(DayOfWeek.valueOf(choice.toUpperCase()));
             }
         }
 
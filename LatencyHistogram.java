@@ -0,0 +1,67 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Latency histogram with HdrHistogram-style log-linear buckets: values below SUB_BUCKETS get a
+// bucket each, and above that every power of two is split into SUB_BUCKETS equal buckets, so a
+// reported percentile is within 1/SUB_BUCKETS (about 6%) of the true value at any magnitude.
+// Recording is a few atomic adds and never allocates or locks. Shared by the hospital metrics and
+// the ATM load simulator.
+public class LatencyHistogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        counts.incrementAndGet(bucket(value));
+        count.increment();
+        sum.add(value);
+        for(long m; value > (m = max.get()) && !max.compareAndSet(m, value); ) { }
+    }
+
+    public long count() { return count.sum(); }
+    public long max() { return max.get(); }
+    public double mean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    // Smallest recorded bucket bound that at least fraction q of the values fall under
+    public long percentile(double q) {
+        long n = count.sum();
+        if(n == 0) return 0;
+        long target = Math.max(1, (long) Math.ceil(q * n));
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if(seen >= target) return Math.min(highestValue(i), max.get());
+        }
+        return max.get();
+    }
+
+    // Not atomic with concurrent records; a value recorded meanwhile may survive in one of the totals
+    public void reset() {
+        for(int i = 0; i < BUCKETS; i++) counts.set(i, 0);
+        count.reset();
+        sum.reset();
+        max.set(0);
+    }
+
+    static int bucket(long value) {
+        if(value < SUB_BUCKETS) return (int) Math.max(value, 0);
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    static long highestValue(int bucket) {
+        if(bucket < SUB_BUCKETS) return bucket;
+        int shift = bucket / SUB_BUCKETS - 1;
+        long sub = bucket % SUB_BUCKETS + SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+}
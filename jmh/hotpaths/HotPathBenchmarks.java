@@ -0,0 +1,127 @@
+package hotpaths;
+
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+// JMH versions of the cases in Benchmarks, run with gradle jmh (results go to
+// build/reports/jmh/results.json). JMH refuses benchmarks in the default package and a packaged
+// class can't name the application's classes, so each method looks up its case through
+// Benchmarks.prepare by reflection once per trial; the measured call is a plain Callable.
+//
+// @OperationsPerInvocation must match the operations the case performs per call; prepare checks it,
+// so the two can't drift apart silently. The value each call returns is consumed by JMH's Blackhole.
+// The teardown closes what the case's setup made: thread pools, the bank and its temp directory.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms2g", "-Xmx2g", "-Djava.awt.headless=true"})
+@State(Scope.Benchmark)
+public class HotPathBenchmarks {
+    // Method name -> Benchmarks case name and the params that pick it
+    private static final Map<String, String[]> CASES = new HashMap<>();
+    static {
+        CASES.put("patientCreate", new String[]{"patient.create", ""});
+        CASES.put("lookupRepository", new String[]{"lookup.repository", ""});
+        CASES.put("lookupHashMap", new String[]{"lookup.hashMap", ""});
+        CASES.put("tablePopulate10k", new String[]{"table.populate", "rows=10000"});
+        CASES.put("tablePopulate100k", new String[]{"table.populate", "rows=100000"});
+        CASES.put("tablePopulate1m", new String[]{"table.populate", "rows=1000000"});
+        CASES.put("ehrRender", new String[]{"ehr.render", ""});
+        CASES.put("atmDeposit", new String[]{"atm.deposit", ""});
+        CASES.put("atmWithdraw", new String[]{"atm.withdraw", ""});
+        CASES.put("atmDepositWithdrawShared", new String[]{"atm.depositWithdraw", "accounts=shared"});
+        CASES.put("atmDepositWithdrawOwn", new String[]{"atm.depositWithdraw", "accounts=own"});
+        CASES.put("atmTransfer", new String[]{"atm.transfer", ""});
+        CASES.put("atmWithdrawWithStatement", new String[]{"atm.withdrawWithStatement", ""});
+        CASES.put("atmLogin", new String[]{"atm.login", ""});
+        CASES.put("atmDurableDeposit", new String[]{"atm.durableDeposit", "windowMicros=0"});
+        CASES.put("atmDurableDepositWindowed", new String[]{"atm.durableDeposit", "windowMicros=500"});
+    }
+
+    private Callable<Long> body;
+
+    @Setup(Level.Trial)
+    @SuppressWarnings("unchecked")
+    public void prepare(BenchmarkParams params) throws Exception {
+        String benchmark = params.getBenchmark();
+        String[] c = CASES.get(benchmark.substring(benchmark.lastIndexOf('.') + 1));
+        Method prepare = Class.forName("Benchmarks").getMethod("prepare", String.class, String.class, int.class);
+        body = (Callable<Long>) prepare.invoke(null, c[0], c[1], params.getOpsPerInvocation());
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws Exception {
+        if(body instanceof AutoCloseable) ((AutoCloseable) body).close();
+        body = null;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(10_000)
+    public long patientCreate() throws Exception { return body.call(); }
+
+    @Benchmark
+    @OperationsPerInvocation(1 << 16)
+    public long lookupRepository() throws Exception { return body.call(); }
+
+    @Benchmark
+    @OperationsPerInvocation(1 << 16)
+    public long lookupHashMap() throws Exception { return body.call(); }
+
+    @Benchmark
+    @OperationsPerInvocation(10_000)
+    public long tablePopulate10k() throws Exception { return body.call(); }
+
+    @Benchmark
+    @OperationsPerInvocation(100_000)
+    public long tablePopulate100k() throws Exception { return body.call(); }
+
+    @Benchmark
+    @OperationsPerInvocation(1_000_000)
+    public long tablePopulate1m() throws Exception { return body.call(); }
+
+    @Benchmark
+    @OperationsPerInvocation(40 * 64)
+    public long ehrRender() throws Exception { return body.call(); }
+
+    @Benchmark
+    @OperationsPerInvocation(100_000)
+    public long atmDeposit() throws Exception { return body.call(); }
+
+    @Benchmark
+    @OperationsPerInvocation(100_000)
+    public long atmWithdraw() throws Exception { return body.call(); }
+
+    @Benchmark
+    @OperationsPerInvocation(100_000)
+    public long atmDepositWithdrawShared() throws Exception { return body.call(); }
+
+    @Benchmark
+    @OperationsPerInvocation(100_000)
+    public long atmDepositWithdrawOwn() throws Exception { return body.call(); }
+
+    @Benchmark
+    @OperationsPerInvocation(100_000)
+    public long atmTransfer() throws Exception { return body.call(); }
+
+    @Benchmark
+    @OperationsPerInvocation(100_000)
+    public long atmWithdrawWithStatement() throws Exception { return body.call(); }
+
+    @Benchmark
+    @OperationsPerInvocation(2000)
+    public long atmLogin() throws Exception { return body.call(); }
+
+    @Benchmark
+    @OperationsPerInvocation(64 * 32)
+    public long atmDurableDeposit() throws Exception { return body.call(); }
+
+    @Benchmark
+    @OperationsPerInvocation(64 * 32)
+    public long atmDurableDepositWindowed() throws Exception { return body.call(); }
+}